@@ -0,0 +1,77 @@
+package eu.kuffel.vxapp.handlers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per acquire of the local rate limit engines under contention, 8 threads acquire either one hot key
+ * or keys spread over 1024 clients. The limit is reached after the first period, so allowed and
+ * rejected requests are both measured.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class AppRateLimiterBenchmark {
+
+    private static final int LIMIT = 1000;
+    private static final long PERIOD_MS = 1000;
+
+    @Param({"gcra", "fixedwindow", "slidinglog"})
+    public String engine;
+
+    @Param({"1", "1024"})
+    public int keys;
+
+    private AppRateLimiter limiter;
+    private String[] names;
+
+
+    @Setup
+    public void setup(){
+        if("fixedwindow".equals(engine)){
+            limiter = new AppFixedWindowRateLimiter();
+        }else if("slidinglog".equals(engine)){
+            limiter = new AppSlidingLogRateLimiter();
+        }else{
+            limiter = new AppGcraRateLimiter();
+        }
+        names = new String[keys];
+        for(int i = 0; i < keys; i++){
+            names[i] = "client" + i + "/api/entity";
+        }
+    }
+
+    @Benchmark
+    public boolean acquire( Caller caller ){
+        boolean[] allowed = new boolean[1];
+        caller.next = (caller.next + 1) % keys;
+        limiter.acquire(names[caller.next], LIMIT, PERIOD_MS, result -> allowed[0] = result.isAllowed());
+        return allowed[0];
+    }
+
+
+    @State(Scope.Thread)
+    public static class Caller {
+        private int next = 0;
+    }
+
+}
@@ -0,0 +1,141 @@
+package eu.kuffel.vxapp.utils;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.model.Filters;
+import eu.kuffel.vxapp.models.AppEntity;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.impl.codec.json.JsonObjectCodec;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping of models to and from BSON, with their AppDBOCodec and with the JsonObject path of the vertx mongo client
+ * (getJSON and the JsonObjectCodec on writes, the JsonObjectCodec and setJSON on reads), for 1, 100 and 10000 documents.
+ * The filter benchmarks compare passing a Bson filter to the driver with the former round-trip through json text
+ * and a JsonObject.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppDBOCodecBenchmark {
+
+    private static final JsonObjectCodec JSON_CODEC = new JsonObjectCodec(new JsonObject());
+
+    @Param({"1", "100", "10000"})
+    public int documents;
+
+    private List<AppEntity> entities;
+    private List<BsonDocument> encoded;
+    private Codec<AppEntity> codec;
+    private Bson filter;
+
+
+    @Setup
+    public void setup(){
+        entities = new ArrayList<>(documents);
+        List<String> ids = new ArrayList<>(documents);
+        for(int i = 0; i < documents; i++){
+            AppEntity entity = new AppEntity();
+            entity.setId(new ObjectId().toHexString());
+            entity.setType("article");
+            entity.setTitle("Keyset pagination " + i);
+            entity.setBody("Pages are selected with a range filter on the sort values of the last document.");
+            entity.setTags(Arrays.asList("mongodb", "vertx", "pagination"));
+            entity.setNested(new JsonObject().put("views", i).put("source", "import"));
+            entity.setAuthor("5878ba1c4d0e1a2b3c4d5e70");
+            entity.setData(new byte[256]);
+            entity.setVersion(3);
+            entity.setCreated(Instant.now());
+            entity.setUpdated(Instant.now());
+            entities.add(entity);
+            ids.add(entity.getId());
+        }
+        codec = entities.get(0).getCodec();
+        encoded = encodeCodec();
+        filter = Filters.and(Filters.eq("type", "article"), Filters.gte("version", 1), Filters.in("_id", ids));
+    }
+
+    @Benchmark
+    public List<BsonDocument> encodeCodec(){
+        List<BsonDocument> result = new ArrayList<>(entities.size());
+        for(AppEntity entity : entities){
+            BsonDocument document = new BsonDocument();
+            codec.encode(new BsonDocumentWriter(document), entity, EncoderContext.builder().build());
+            result.add(document);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public List<BsonDocument> encodeJson(){
+        List<BsonDocument> result = new ArrayList<>(entities.size());
+        for(AppEntity entity : entities){
+            BsonDocument document = new BsonDocument();
+            JSON_CODEC.encode(new BsonDocumentWriter(document), entity.getJSON(), EncoderContext.builder().build());
+            result.add(document);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public List<AppEntity> decodeCodec(){
+        List<AppEntity> models = new ArrayList<>(encoded.size());
+        for(BsonDocument document : encoded){
+            models.add(codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build()));
+        }
+        return models;
+    }
+
+    @Benchmark
+    public List<AppEntity> decodeJson(){
+        List<AppEntity> models = new ArrayList<>(encoded.size());
+        for(BsonDocument document : encoded){
+            JsonObject json = JSON_CODEC.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+            models.add(new AppEntity().setJSON(json, false));
+        }
+        return models;
+    }
+
+    @Benchmark
+    public BsonDocument filterBson(){
+        return filter.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+    }
+
+    @Benchmark
+    public BsonDocument filterJson(){
+        JsonObject query = new JsonObject(filter.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()).toJson());
+        BsonDocument document = new BsonDocument();
+        JSON_CODEC.encode(new BsonDocumentWriter(document), query, EncoderContext.builder().build());
+        return document;
+    }
+
+}
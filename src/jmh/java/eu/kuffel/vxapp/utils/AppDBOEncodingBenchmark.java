@@ -0,0 +1,91 @@
+package eu.kuffel.vxapp.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import eu.kuffel.vxapp.models.AppEntity;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of a cached model to a response buffer, with writeJSON and with getJSON().encode(),
+ * and decoding of a cached buffer into a JsonObject, from a String and directly from the bytes.
+ * Run with -prof gc to compare the allocated bytes per operation.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppDBOEncodingBenchmark {
+
+    private AppEntity entity;
+    private Buffer encoded;
+
+
+    @Setup
+    public void setup(){
+        entity = new AppEntity();
+        entity.setId("5878ba1c4d0e1a2b3c4d5e6f");
+        entity.setType("article");
+        entity.setTitle("Keyset pagination");
+        entity.setBody("Pages are selected with a range filter on the sort values of the last document.");
+        entity.setTags(Arrays.asList("mongodb", "vertx", "pagination"));
+        entity.setNested(new JsonObject().put("views", 1024).put("source", "import"));
+        entity.setAuthor("5878ba1c4d0e1a2b3c4d5e70");
+        entity.setData(new byte[256]);
+        entity.setVersion(3);
+        entity.setCreated(Instant.now());
+        entity.setUpdated(Instant.now());
+        encoded = entity.getEncoded();
+    }
+
+    @Benchmark
+    public Buffer encodeWriteJson() throws IOException {
+        ByteBuf bytes = Unpooled.buffer();
+        try(JsonGenerator generator = Json.mapper.getFactory().createGenerator(new ByteBufOutputStream(bytes))){
+            entity.writeJSON(generator);
+        }
+        return Buffer.buffer(bytes);
+    }
+
+    @Benchmark
+    public Buffer encodeGetJson(){
+        return Buffer.buffer(entity.getJSON().encode());
+    }
+
+    @Benchmark
+    public JsonObject decodeString(){
+        return new JsonObject(encoded.toString());
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public JsonObject decodeBytes() throws IOException {
+        return new JsonObject(Json.mapper.readValue(new ByteBufInputStream(encoded.getByteBuf()), Map.class));
+    }
+
+}
@@ -4,7 +4,12 @@ import com.mongodb.client.gridfs.model.GridFSFile;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import eu.kuffel.vxapp.utils.AppRandom;
+import eu.kuffel.vxapp.utils.MongoAsyncClient;
 import eu.kuffel.vxapp.utils.MongoGridFSClient;
+import eu.kuffel.vxapp.models.AppClient;
+import eu.kuffel.vxapp.models.AppEntity;
+import eu.kuffel.vxapp.models.AppUser;
+import eu.kuffel.vxapp.utils.AppDBO;
 import eu.kuffel.vxapp.verticles.AppWebserver;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.DeploymentOptions;
@@ -26,10 +31,13 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.*;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -77,6 +85,11 @@ public class Application {
      */
     public static MongoClient database;
 
+    /**
+     * Reference to the async mongo db driver, for models mapped with codecs and Bson filters.
+     */
+    public static MongoAsyncClient mongo;
+
     /**
      * Reference to the an active mongo db connection.
      */
@@ -123,6 +136,7 @@ public class Application {
 
         // Create mongo db connection
         database = MongoClient.createShared(vertx, config.getJsonObject("mongodb", new JsonObject()));
+        mongo = MongoAsyncClient.create(vertx, config.getJsonObject("mongodb", new JsonObject()));
         database.insert("startup_check_collection", new JsonObject(), (AsyncResult<String> event) -> {
             if(event.succeeded()){
                 System.out.println("Connection to Mongo db server successful.");
@@ -253,18 +267,37 @@ public class Application {
 
 
 
-        // Start webserver verticle.....
-        DeploymentOptions webserverOptions = new DeploymentOptions();
-        webserverOptions.setInstances(config.getJsonObject("webserver").getInteger("instances"));
-        webserverOptions.setConfig(config);
-        vertx.deployVerticle(AppWebserver.class.getCanonicalName(), webserverOptions, (AsyncResult<String> event) -> {
-            if(event.succeeded()){
-                System.out.println("Webserver deployed successfully and listening on "+config.getJsonObject("webserver").getInteger("port", null));
-            }else{
-                System.err.println(event.cause().getMessage());
-                event.cause().printStackTrace();
+        // Create missing indexes of all models, then start webserver verticle.....
+        // Signup and profile updates rely on the unique indexes, without them the webserver is not started.
+        List<AppDBO<?>> models = Arrays.asList(new AppClient(), new AppUser(), new AppEntity());
+        AppDBO.reconcileIndexes(models, (JsonObject indexReport) -> {
+            boolean unique = true;
+            for(String collection : indexReport.fieldNames()){
+                JsonObject report = indexReport.getJsonObject(collection);
+                if(!report.getJsonArray("missing").isEmpty() || !report.getJsonArray("extra").isEmpty() || !report.getJsonArray("conflicts").isEmpty() || !report.getBoolean("created")){
+                    System.out.println("Indexes of "+collection+": "+report.encode());
+                }
+                if(!report.getBoolean("unique")){
+                    System.err.println("Unique indexes of "+collection+" are not in place, drop the conflicting indexes or remove duplicates: "+report.encode());
+                    unique = false;
+                }
+            }
+            if(!unique){
                 vertx.close();
+                return;
             }
+            DeploymentOptions webserverOptions = new DeploymentOptions();
+            webserverOptions.setInstances(config.getJsonObject("webserver").getInteger("instances"));
+            webserverOptions.setConfig(config);
+            vertx.deployVerticle(AppWebserver.class.getCanonicalName(), webserverOptions, (AsyncResult<String> event) -> {
+                if(event.succeeded()){
+                    System.out.println("Webserver deployed successfully and listening on "+config.getJsonObject("webserver").getInteger("port", null));
+                }else{
+                    System.err.println(event.cause().getMessage());
+                    event.cause().printStackTrace();
+                    vertx.close();
+                }
+            });
         });
 
 
@@ -289,6 +322,13 @@ public class Application {
         application.put("version", VERSION);
 
         JsonObject filesystem = new JsonObject();
+        JsonObject fileCache = new JsonObject();
+        fileCache.put("enabled", true);
+        fileCache.put("directory", new File(System.getProperty("java.io.tmpdir"), "vxapp-filecache").getPath());
+        fileCache.put("maxbytes", 1024L*1024*1024); // 1 GB
+        fileCache.put("maxfilesize", 100L*1024*1024); // 100 MB
+        fileCache.put("redis", false); // publish invalidations to other nodes
+        filesystem.put("filecache", fileCache);
 
         JsonObject webserver = new JsonObject();
         webserver.put("instances", 4);
@@ -298,6 +338,77 @@ public class Application {
         webserver.put("logging", false);
         webserver.put("postlimit", 1024*1024*10); // 10 MB
 
+        JsonObject metrics = new JsonObject();
+        metrics.putNull("adminkey"); // x-admin-key for GET /api/metrics, disabled if not set
+        webserver.put("metrics", metrics);
+
+        JsonObject clientCache = new JsonObject();
+        clientCache.put("size", 10000);
+        clientCache.put("ttl", 300000); // 5 minutes
+        clientCache.put("userttl", 10000); // clients with a userid, raise it if redis is enabled
+        clientCache.put("redis", false); // publish invalidations to other nodes
+        clientCache.put("flushinterval", 5000);
+        webserver.put("clientcache", clientCache);
+
+        JsonObject userCache = new JsonObject();
+        userCache.put("size", 10000);
+        userCache.put("ttl", 10000); // raise it if redis is enabled
+        userCache.put("lastactiveinterval", 60000);
+        userCache.put("redis", false); // publish invalidations to other nodes
+        webserver.put("usercache", userCache);
+
+        JsonObject hashing = new JsonObject();
+        hashing.put("poolsize", 4);
+        hashing.put("queuelimit", 64);
+        webserver.put("hashing", hashing);
+
+        JsonObject countCache = new JsonObject();
+        countCache.put("size", 1000);
+        countCache.put("ttl", 60000); // 1 minute
+        countCache.put("redis", false); // publish changes to other nodes, totals are per node otherwise
+        webserver.put("countcache", countCache);
+
+        JsonObject dboCache = new JsonObject();
+        dboCache.put("size", 10000);
+        dboCache.put("ttl", 60000); // 1 minute
+        dboCache.put("redis", false);
+        dboCache.put("redisttl", 300000); // 5 minutes
+        webserver.put("dbocache", dboCache);
+
+        JsonObject coalescing = new JsonObject();
+        coalescing.put("enabled", true);
+        coalescing.put("shared", false); // coalesce across verticle instances
+        webserver.put("coalescing", coalescing);
+
+        JsonObject bulk = new JsonObject();
+        bulk.put("batchsize", 500);
+        bulk.put("maxoperations", 10000);
+        bulk.put("deletechunksize", 1000);
+        bulk.put("maxids", 1000);
+        webserver.put("bulk", bulk);
+
+        JsonObject files = new JsonObject();
+        files.put("maxsize", 1024L*1024*1024); // 1 GB
+        files.put("uploadttl", 24*3600*1000L); // 1 day
+        files.put("uploadcleanupinterval", 3600*1000L); // 1 hour
+        webserver.put("files", files);
+
+        JsonObject clientTokens = new JsonObject();
+        clientTokens.put("enabled", false);
+        clientTokens.put("ttl", 7*24*3600*1000L); // 7 days
+        clientTokens.put("revocationsync", 10000);
+        webserver.put("clienttokens", clientTokens);
+
+        JsonObject rateLimit = new JsonObject();
+        rateLimit.put("engine", "redis"); // redis, gcra, fixedwindow or slidinglog
+        rateLimit.put("fallback", "gcra");
+        rateLimit.put("limit", 120);
+        rateLimit.put("period", 60000); // 1 minute
+        rateLimit.put("redistimeout", 50);
+        rateLimit.put("routes", new JsonObject().put("/api/user/login", new JsonObject().put("limit", 10).put("period", 60000)));
+        rateLimit.put("clients", new JsonObject());
+        webserver.put("ratelimit", rateLimit);
+
 
         JsonObject customHeaders = new JsonObject();
         customHeaders.put("X-Powered-By", "vxApp");
@@ -322,6 +433,8 @@ public class Application {
         JsonObject gridfsConfig = new JsonObject();
         gridfsConfig.put("db_name", "vxapp_fs_db");
         gridfsConfig.put("bucket_name", "files");
+        gridfsConfig.put("chunksize", 255*1024);
+        gridfsConfig.put("deduplicate", true);
         gridfsConfig.put("host", "127.0.0.1");
         gridfsConfig.put("port", 27017);
 
@@ -1,6 +1,8 @@
 package eu.kuffel.vxapp.handlers;
 
 import eu.kuffel.vxapp.models.AppClient;
+import eu.kuffel.vxapp.utils.AppClientCache;
+import eu.kuffel.vxapp.utils.AppClientToken;
 import eu.kuffel.vxapp.utils.AppJsonMessages;
 import io.vertx.core.Handler;
 import io.vertx.core.http.HttpMethod;
@@ -8,11 +10,10 @@ import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.RoutingContext;
 
-import java.time.Instant;
-
 /**
- * This handler checks if a valid x-api-client-key header exists.
- * It loads the client from the mongo database and increments the call counter.
+ * This handler checks if a valid x-api-client-key header (or a signed x-api-client-token header) exists.
+ * It loads the client from the client cache (or the mongo database on a miss) and increments the call counter.
+ * Counter changes are written back periodically by the AppClientCache.
  * If the provided client-key is invalid it send an error message to the client.
  *
  * @author akuffel
@@ -36,22 +37,31 @@ public class AppClientKeyHandler implements Handler<RoutingContext> {
         HttpServerRequest request = routingContext.request();
         HttpServerResponse response = routingContext.response();
         String clientKey = request.getHeader(AppClient.HTTP_HEADER_NAME);
-        if(request.method().equals(HttpMethod.GET) && request.path().equalsIgnoreCase("/api/client") && clientKey == null){
+        String clientToken = request.getHeader(AppClient.HTTP_TOKEN_HEADER_NAME);
+        if(request.method().equals(HttpMethod.GET) && request.path().equalsIgnoreCase("/api/client") && clientKey == null && clientToken == null){
             // The URL to obtain an API Client key, this is ok, proceed.
             routingContext.next();
         }else{
-            // Check clientkey
-            if(clientKey != null){
-                AppClient c = new AppClient();
-                c.findOneByFieldValue("key", clientKey, loadedClient -> {
+            if(clientToken != null && AppClientToken.isEnabled()){
+                // Signed token, verified in memory without a database lookup
+                AppClientToken token = AppClientToken.verify(clientToken);
+                if(token != null){
+                    AppClientCache clientCache = AppClientCache.getInstance();
+                    AppClient tokenClient = clientCache.fromToken(token);
+                    clientCache.touch(tokenClient);
+                    routingContext.put("client", tokenClient);
+                    routingContext.next();
+                }else{
+                    AppJsonMessages.sendMessage(routingContext, AppJsonMessages.INVALID_CLIENT_KEY);
+                }
+            }else if(clientKey != null){
+                // Check clientkey
+                AppClientCache clientCache = AppClientCache.getInstance();
+                clientCache.find(clientKey, loadedClient -> {
                     if(loadedClient != null){
-                        //response.end(loadedClient.getJSON().encode());
-                        loadedClient.setCalls( loadedClient.getCalls() + 1 );
-                        loadedClient.setLastactive(Instant.now());
-                        loadedClient.save((updatedClient) -> {
-                            routingContext.put("client", updatedClient);
-                            routingContext.next();
-                        });
+                        clientCache.touch(loadedClient);
+                        routingContext.put("client", loadedClient);
+                        routingContext.next();
                     }else{
                         AppJsonMessages.sendMessage(routingContext, AppJsonMessages.INVALID_CLIENT_KEY);
                     }
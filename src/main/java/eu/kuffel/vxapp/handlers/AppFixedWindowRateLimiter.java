@@ -0,0 +1,54 @@
+package eu.kuffel.vxapp.handlers;
+
+import io.vertx.core.Handler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process fixed window rate limiter.
+ * Counts requests per key in windows of one period, state is kept in memory only.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppFixedWindowRateLimiter implements AppRateLimiter {
+
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    @Override
+    public void acquire(String key, int limit, long period, Handler<Result> callback) {
+        long now = System.currentTimeMillis();
+        Window window = windows.computeIfAbsent(key, k -> new Window(now, period));
+        int count;
+        long end;
+        synchronized (window){
+            if(now >= window.end){
+                window.end = now + period;
+                window.count = 0;
+            }
+            count = ++window.count;
+            end = window.end;
+        }
+        callback.handle(new Result(count <= limit, limit, limit - count, end - now));
+    }
+
+    @Override
+    public void cleanup() {
+        long now = System.currentTimeMillis();
+        windows.values().removeIf(window -> window.end <= now);
+    }
+
+
+    private static class Window {
+
+        private long end;
+        private int count;
+
+        private Window( long start, long period ){
+            this.end = start + period;
+            this.count = 0;
+        }
+    }
+
+}
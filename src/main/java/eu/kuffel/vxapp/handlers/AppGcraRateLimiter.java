@@ -0,0 +1,56 @@
+package eu.kuffel.vxapp.handlers;
+
+import io.vertx.core.Handler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process rate limiter based on the generic cell rate algorithm (GCRA).
+ * Each key only stores its theoretical arrival time (TAT) in an AtomicLong, updated with a CAS loop,
+ * so requests of different verticles never block each other. A key allows bursts of up to limit
+ * requests and then one request per period/limit.
+ * Keys whose TAT is in the past are equivalent to unknown keys and are removed by cleanup.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppGcraRateLimiter implements AppRateLimiter {
+
+    private final ConcurrentMap<String, AtomicLong> states = new ConcurrentHashMap<>(1024);
+
+    @Override
+    public void acquire(String key, int limit, long period, Handler<Result> callback) {
+        long periodNs = period * 1000000L;
+        long interval = Math.max(1, periodNs / Math.max(1, limit));
+        AtomicLong tat = states.get(key);
+        if(tat == null){
+            tat = states.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+        }
+        while(true){
+            long now = System.nanoTime();
+            long current = tat.get();
+            long start = current - now < 0 ? now : current;
+            long next = start + interval;
+            long delay = next - now;
+            if(delay > periodNs){
+                callback.handle(new Result(false, limit, 0, (current - now) / 1000000L));
+                return;
+            }
+            if(tat.compareAndSet(current, next)){
+                int remaining = (int)((periodNs - delay) / interval);
+                callback.handle(new Result(true, limit, remaining, delay / 1000000L));
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        long now = System.nanoTime();
+        // A request racing with the removal is counted on the removed entry and is lost, which only errs towards allowing.
+        states.values().removeIf(tat -> tat.get() - now <= 0);
+    }
+
+}
@@ -2,18 +2,24 @@ package eu.kuffel.vxapp.handlers;
 
 import eu.kuffel.vxapp.models.AppClient;
 import eu.kuffel.vxapp.utils.AppJsonMessages;
+import eu.kuffel.vxapp.utils.AppMetrics;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 
-import java.time.Duration;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.time.temporal.TemporalUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This handler limits the request rates of known clients.
  * If a client exceeds the limits we send a http 429 error and end the request.
+ * Limits are read from the webserver ratelimit config, a route limit applies to all paths starting
+ * with the configured prefix and has its own counter, a client limit replaces the default limit of a client.
+ * The engine is selected by the engine setting: redis (default, shared by all nodes, with a local fallback engine),
+ * gcra, fixedwindow or slidinglog (in-process, shared by all verticles of this node). No database writes are involved.
  * Implements io.vertx.core.Handler and can be used on any router.
  *
  * @author akuffel
@@ -25,18 +31,75 @@ public class AppRateLimitHandler implements Handler<RoutingContext> {
     private static final String RATE_LIMIT_REMAINING_HEADER = "X-Rate-Limit-Remaining";
     private static final String RATE_LIMIT_RESET_HEADER = "X-Rate-Limit-Reset";
 
+    public static final String ENGINE_REDIS = "redis";
+    public static final String ENGINE_GCRA = "gcra";
+    public static final String ENGINE_FIXED_WINDOW = "fixedwindow";
+    public static final String ENGINE_SLIDING_LOG = "slidinglog";
 
-    private static final int RATE_LIMIT = 120; // Max Requests per period
-    private static final int RATE_LIMIT_RESET_PERIOD = 60; // Seconds
+    private static final int DEFAULT_RATE_LIMIT = 120; // Max Requests per period
+    private static final long DEFAULT_RATE_LIMIT_PERIOD_MS = 60000;
+    private static final long DEFAULT_REDIS_TIMEOUT_MS = 50;
+    private static final long CLEANUP_INTERVAL_MS = 60000;
 
 
     private static AppRateLimitHandler instance;
 
-    private AppRateLimitHandler(){}
+    private final AppRateLimiter limiter;
+    private final Limit defaultLimit;
+    private final List<Limit> routeLimits = new ArrayList<>();
+    private final JsonObject clientLimits;
 
-    public static AppRateLimitHandler create(){
+    private final AtomicLong allowed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+
+    private AppRateLimitHandler( Vertx vertx, JsonObject config ){
+        this.defaultLimit = new Limit(null, config.getInteger("limit", DEFAULT_RATE_LIMIT), config.getLong("period", DEFAULT_RATE_LIMIT_PERIOD_MS));
+        JsonObject routes = config.getJsonObject("routes", new JsonObject());
+        for(String route : routes.fieldNames()){
+            JsonObject routeConfig = routes.getJsonObject(route);
+            routeLimits.add(new Limit(route, routeConfig.getInteger("limit", defaultLimit.limit), routeConfig.getLong("period", defaultLimit.period)));
+        }
+        // Longest prefix first
+        routeLimits.sort((a, b) -> b.route.length() - a.route.length());
+        this.clientLimits = config.getJsonObject("clients", new JsonObject());
+        String engine = config.getString("engine", ENGINE_REDIS);
+        if(ENGINE_REDIS.equalsIgnoreCase(engine)){
+            AppRateLimiter fallback = createLocalLimiter(config.getString("fallback", ENGINE_GCRA));
+            this.limiter = new AppRedisRateLimiter(vertx, config.getLong("redistimeout", DEFAULT_REDIS_TIMEOUT_MS), fallback);
+        }else{
+            this.limiter = createLocalLimiter(engine);
+        }
+    }
+
+    private static AppRateLimiter createLocalLimiter( String engine ){
+        if(ENGINE_FIXED_WINDOW.equalsIgnoreCase(engine)){
+            return new AppFixedWindowRateLimiter();
+        }
+        if(ENGINE_SLIDING_LOG.equalsIgnoreCase(engine)){
+            return new AppSlidingLogRateLimiter();
+        }
+        if(!ENGINE_GCRA.equalsIgnoreCase(engine)){
+            System.err.println("Unknown rate limit engine '"+engine+"', using "+ENGINE_GCRA+".");
+        }
+        return new AppGcraRateLimiter();
+    }
+
+    /**
+     * Create the shared handler instance, subsequent calls return the existing instance.
+     * @param vertx Vertx instance
+     * @param config JsonObject with engine, fallback, limit, period (ms), redistimeout (ms), routes and clients
+     * @return AppRateLimitHandler
+     */
+    public static synchronized AppRateLimitHandler create( Vertx vertx, JsonObject config ){
         if(instance == null){
-            instance = new AppRateLimitHandler();
+            if(config == null){
+                config = new JsonObject();
+            }
+            AppRateLimitHandler handler = new AppRateLimitHandler(vertx, config);
+            vertx.setPeriodic(CLEANUP_INTERVAL_MS, timer -> handler.limiter.cleanup());
+            AppMetrics.register("ratelimit", handler::getMetrics);
+            instance = handler;
         }
         return instance;
     }
@@ -48,35 +111,63 @@ public class AppRateLimitHandler implements Handler<RoutingContext> {
             routingContext.next();
         }
         if(client != null){
-
-            int lastReset = (int)Duration.between(client.getCallsreset(), Instant.now()).get(ChronoUnit.SECONDS);
-            int remainingCalls = RATE_LIMIT-client.getCalls();
-            if(remainingCalls < 0){
-                remainingCalls = 0;
-            }
-            int nextReset = RATE_LIMIT_RESET_PERIOD - lastReset;
-            if(nextReset < 0){
-                nextReset = 0;
-            }
-            routingContext.response().headers().add(RATE_LIMIT_HEADER, String.valueOf(RATE_LIMIT));
-            routingContext.response().headers().add(RATE_LIMIT_REMAINING_HEADER, String.valueOf(remainingCalls));
-            routingContext.response().headers().add(RATE_LIMIT_RESET_HEADER, String.valueOf(nextReset));
-
-            if(lastReset > RATE_LIMIT_RESET_PERIOD){
-                client.setCalls(0);
-                client.setCallsreset(Instant.now());
-                client.save(clientReset->{
+            String path = routingContext.request().path();
+            Limit limit = getLimit(client, path);
+            String key = limit.route == null ? client.getId() : client.getId() + ":" + limit.route;
+            limiter.acquire(key, limit.limit, limit.period, result -> {
+                routingContext.response().headers().add(RATE_LIMIT_HEADER, String.valueOf(result.getLimit()));
+                routingContext.response().headers().add(RATE_LIMIT_REMAINING_HEADER, String.valueOf(result.getRemaining()));
+                routingContext.response().headers().add(RATE_LIMIT_RESET_HEADER, String.valueOf((result.getReset() + 999) / 1000));
+                if(result.isAllowed()){
+                    allowed.incrementAndGet();
                     routingContext.next();
-                });
-            } else{
-                if(client.getCalls() > RATE_LIMIT){
-                    AppJsonMessages.sendMessage(routingContext, AppJsonMessages.RATE_LIMIT_EXCEEDED);
                 }else{
-                    routingContext.next();
+                    rejected.incrementAndGet();
+                    AppJsonMessages.sendMessage(routingContext, AppJsonMessages.RATE_LIMIT_EXCEEDED);
                 }
+            });
+        }
+    }
+
+    private Limit getLimit( AppClient client, String path ){
+        for(Limit routeLimit : routeLimits){
+            if(path.startsWith(routeLimit.route)){
+                return routeLimit;
             }
+        }
+        JsonObject clientConfig = clientLimits.getJsonObject(client.getId());
+        if(clientConfig != null){
+            return new Limit(null, clientConfig.getInteger("limit", defaultLimit.limit), clientConfig.getLong("period", defaultLimit.period));
+        }
+        return defaultLimit;
+    }
+
+    /**
+     * @return JsonObject with allowed, rejected and fallback counters.
+     */
+    public JsonObject getMetrics(){
+        JsonObject metrics = new JsonObject();
+        metrics.put("engine", limiter.getClass().getSimpleName());
+        metrics.put("allowed", allowed.get());
+        metrics.put("rejected", rejected.get());
+        if(limiter instanceof AppRedisRateLimiter){
+            metrics.put("fallbacks", ((AppRedisRateLimiter) limiter).getFallbacks());
+        }
+        return metrics;
+    }
+
+
+    private static class Limit {
+
+        private final String route;
+        private final int limit;
+        private final long period;
 
+        private Limit( String route, int limit, long period ){
+            this.route = route;
+            this.limit = limit;
+            this.period = period;
         }
     }
 
-}
\ No newline at end of file
+}
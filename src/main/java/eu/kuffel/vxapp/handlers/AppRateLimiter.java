@@ -0,0 +1,66 @@
+package eu.kuffel.vxapp.handlers;
+
+import io.vertx.core.Handler;
+
+/**
+ * Rate limit engine used by the AppRateLimitHandler.
+ * Implementations count requests per key and decide if another request is allowed.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public interface AppRateLimiter {
+
+    /**
+     * Count a request for the given key and check it against the limit.
+     * @param key Bucket key, e.g. client id and route
+     * @param limit Max requests per period
+     * @param period Period in milliseconds
+     * @param callback Handler with the decision, called on the current context.
+     */
+    void acquire( String key, int limit, long period, Handler<Result> callback );
+
+    /**
+     * Release state of idle keys, called periodically by the AppRateLimitHandler.
+     */
+    default void cleanup(){}
+
+
+    /**
+     * Decision of a rate limiter for a single request.
+     */
+    class Result {
+
+        private final boolean allowed;
+        private final int limit;
+        private final int remaining;
+        private final long reset;
+
+        public Result( boolean allowed, int limit, int remaining, long reset ){
+            this.allowed = allowed;
+            this.limit = limit;
+            this.remaining = remaining < 0 ? 0 : remaining;
+            this.reset = reset < 0 ? 0 : reset;
+        }
+
+        public boolean isAllowed() {
+            return allowed;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getRemaining() {
+            return remaining;
+        }
+
+        /**
+         * @return Milliseconds until the limit is reset.
+         */
+        public long getReset() {
+            return reset;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package eu.kuffel.vxapp.handlers;
+
+import eu.kuffel.vxapp.Application;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributed fixed window rate limiter based on the shared Redis cache.
+ * Counter and expiry are updated atomically by a small Lua script, so every request costs one Redis call.
+ * If Redis does not answer within the timeout, the request is counted by a local fallback limiter
+ * and Redis is skipped for a short backoff period.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppRedisRateLimiter implements AppRateLimiter {
+
+    private static final String KEY_PREFIX = "ratelimit:";
+    private static final long BACKOFF_MS = 1000;
+
+    // Returns { count, pttl } of the current window.
+    private static final String SCRIPT =
+            "local count = redis.call('INCR', KEYS[1]) " +
+            "local ttl = redis.call('PTTL', KEYS[1]) " +
+            "if count == 1 or ttl < 0 then redis.call('PEXPIRE', KEYS[1], ARGV[1]) ttl = tonumber(ARGV[1]) end " +
+            "return { count, ttl }";
+
+    private final Vertx vertx;
+    private final long timeout;
+    private final AppRateLimiter fallback;
+
+    private volatile long backoffUntil = 0;
+    private final AtomicLong fallbacks = new AtomicLong();
+
+
+    /**
+     * @param vertx Vertx instance for the timeout timers
+     * @param timeout Max time in milliseconds to wait for Redis
+     * @param fallback Local limiter used while Redis is slow or unavailable
+     */
+    public AppRedisRateLimiter( Vertx vertx, long timeout, AppRateLimiter fallback ){
+        this.vertx = vertx;
+        this.timeout = timeout;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void acquire(String key, int limit, long period, Handler<Result> callback) {
+        if(Application.cache == null || System.currentTimeMillis() < backoffUntil){
+            fallbacks.incrementAndGet();
+            fallback.acquire(key, limit, period, callback);
+            return;
+        }
+        // The Redis client runs on its own context, results are handed back to the context of the request.
+        Context context = vertx.getOrCreateContext();
+        AtomicBoolean done = new AtomicBoolean(false);
+        long timer = vertx.setTimer(timeout, handler -> {
+            if(done.compareAndSet(false, true)){
+                backoffUntil = System.currentTimeMillis() + BACKOFF_MS;
+                runOnContext(context, v -> {
+                    fallbacks.incrementAndGet();
+                    fallback.acquire(key, limit, period, callback);
+                });
+            }
+        });
+        Application.cache.eval(SCRIPT, Collections.singletonList(KEY_PREFIX + key), Arrays.asList(String.valueOf(period)), evalResult -> {
+            if(!done.compareAndSet(false, true)){
+                return;
+            }
+            vertx.cancelTimer(timer);
+            if(evalResult.failed()){
+                backoffUntil = System.currentTimeMillis() + BACKOFF_MS;
+            }
+            runOnContext(context, v -> {
+                if(evalResult.succeeded()){
+                    JsonArray window = evalResult.result();
+                    long count = window.getLong(0);
+                    long ttl = window.getLong(1);
+                    callback.handle(new Result(count <= limit, limit, (int)(limit - count), ttl));
+                }else{
+                    fallbacks.incrementAndGet();
+                    fallback.acquire(key, limit, period, callback);
+                }
+            });
+        });
+    }
+
+    private static void runOnContext( Context context, Handler<Void> action ){
+        if(context == Vertx.currentContext()){
+            action.handle(null);
+        }else{
+            context.runOnContext(action);
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        fallback.cleanup();
+    }
+
+    /**
+     * @return Number of requests counted by the local fallback limiter.
+     */
+    public long getFallbacks(){
+        return fallbacks.get();
+    }
+
+}
@@ -0,0 +1,65 @@
+package eu.kuffel.vxapp.handlers;
+
+import io.vertx.core.Handler;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process sliding log rate limiter.
+ * Stores the timestamps of the allowed requests of the last period per key,
+ * which is exact but needs memory proportional to the limit.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppSlidingLogRateLimiter implements AppRateLimiter {
+
+    private final Map<String, Log> logs = new ConcurrentHashMap<>();
+
+    @Override
+    public void acquire(String key, int limit, long period, Handler<Result> callback) {
+        long now = System.currentTimeMillis();
+        Log log = logs.computeIfAbsent(key, k -> new Log());
+        boolean allowed;
+        int remaining;
+        long reset;
+        synchronized (log){
+            log.expire(now - period);
+            allowed = log.times.size() < limit;
+            if(allowed){
+                log.times.addLast(now);
+            }
+            log.period = period;
+            remaining = limit - log.times.size();
+            reset = log.times.isEmpty() ? 0 : log.times.peekFirst() + period - now;
+        }
+        callback.handle(new Result(allowed, limit, remaining, reset));
+    }
+
+    @Override
+    public void cleanup() {
+        long now = System.currentTimeMillis();
+        logs.values().removeIf(log -> {
+            synchronized (log){
+                log.expire(now - log.period);
+                return log.times.isEmpty();
+            }
+        });
+    }
+
+
+    private static class Log {
+
+        private final ArrayDeque<Long> times = new ArrayDeque<>();
+        private long period;
+
+        private void expire( long before ){
+            while(!times.isEmpty() && times.peekFirst() <= before){
+                times.pollFirst();
+            }
+        }
+    }
+
+}
@@ -2,13 +2,13 @@ package eu.kuffel.vxapp.handlers;
 
 import eu.kuffel.vxapp.models.AppClient;
 import eu.kuffel.vxapp.models.AppUser;
+import eu.kuffel.vxapp.utils.AppUserCache;
 import io.vertx.core.Handler;
 import io.vertx.ext.web.RoutingContext;
 
-import java.time.Instant;
-
 /**
  * This handler checks if the clients userid is set and loads the user object into the current RoutingContext.
+ * Users are served from the AppUserCache, the last activity is only written once per interval.
  *
  * @author akuffel
  * @version 1.0.0
@@ -31,13 +31,12 @@ public class AppUserHandler implements Handler<RoutingContext> {
     public void handle(RoutingContext routingContext) {
         AppClient client = (AppClient) routingContext.data().get("client");
         if(client != null){
-            AppUser.findById(client.getUserId(), clientUser -> {
+            AppUserCache userCache = AppUserCache.getInstance();
+            userCache.find(client.getUserId(), clientUser -> {
                 if(clientUser != null){
-                    clientUser.setLastactive(Instant.now());
-                    clientUser.save(userUpdated -> {
-                        routingContext.data().put("user",clientUser);
-                        routingContext.next();
-                    });
+                    userCache.touch(clientUser);
+                    routingContext.data().put("user",clientUser);
+                    routingContext.next();
                 }else{
                     routingContext.data().remove("user");
                     routingContext.next();
@@ -1,21 +1,34 @@
 package eu.kuffel.vxapp.models;
 
+import eu.kuffel.vxapp.utils.AppBsonMapping;
 import eu.kuffel.vxapp.utils.AppDBO;
+import eu.kuffel.vxapp.utils.AppDBOCodec;
 import eu.kuffel.vxapp.utils.AppRandom;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import java.time.Instant;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
 import java.util.Objects;
 
 /**
  *
  * @author akuffel
  */
-public class AppClient extends AppDBO<AppClient> {
+public class AppClient extends AppDBO<AppClient> implements AppBsonMapping {
+
+    private static final AppDBOCodec<AppClient> CODEC = new AppDBOCodec<>(AppClient.class,
+            () -> new AppClient().setKey(null).setCallsreset(null).setCreated(null).setLastactive(null));
 
     private static final int KEY_LENGTH = 64;
     private static final String KEY_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
 
     public static final String HTTP_HEADER_NAME = "x-api-client-key";
+    public static final String HTTP_TOKEN_HEADER_NAME = "x-api-client-token";
 
     private String id;
     private String key;
@@ -41,6 +54,14 @@ public class AppClient extends AppDBO<AppClient> {
         return "client";
     }
 
+    @Override
+    public JsonArray getIndexes() {
+        JsonArray indexes = new JsonArray();
+        indexes.add(new JsonObject().put("key", new JsonObject().put("key", 1)).put("name", "key_1").put("unique", true));
+        indexes.add(new JsonObject().put("key", new JsonObject().put("lastactive", 1)).put("name", "lastactive_1"));
+        return indexes;
+    }
+
     @Override
     public String getId() {
         return this.id;
@@ -81,6 +102,34 @@ public class AppClient extends AppDBO<AppClient> {
         return this;
     }
 
+    @Override
+    public Codec<AppClient> getCodec() {
+        return CODEC;
+    }
+
+    @Override
+    public void writeBson(BsonWriter writer, EncoderContext encoderContext) {
+        AppDBOCodec.writeString(writer, "key", this.key);
+        AppDBOCodec.writeString(writer, "userid", this.userid);
+        writer.writeInt32("calls", this.calls);
+        AppDBOCodec.writeInstant(writer, "callsreset", this.callsreset);
+        AppDBOCodec.writeInstant(writer, "created", this.created);
+        AppDBOCodec.writeInstant(writer, "lastactive", this.lastactive);
+    }
+
+    @Override
+    public boolean readBsonField(String name, BsonReader reader, DecoderContext decoderContext) {
+        switch (name){
+            case "key": this.key = AppDBOCodec.readString(reader); return true;
+            case "userid": this.userid = AppDBOCodec.readString(reader); return true;
+            case "calls": this.calls = AppDBOCodec.readInteger(reader, 0); return true;
+            case "callsreset": this.callsreset = AppDBOCodec.readInstant(reader); return true;
+            case "created": this.created = AppDBOCodec.readInstant(reader); return true;
+            case "lastactive": this.lastactive = AppDBOCodec.readInstant(reader); return true;
+            default: return false;
+        }
+    }
+
     @Override
     public AppClient createFromJson(JsonObject json) {
         AppClient n = new AppClient();
@@ -106,6 +155,16 @@ public class AppClient extends AppDBO<AppClient> {
         return this;
     }
 
+    /**
+     * Set the userid and persist only this field, call counters are left untouched.
+     * @param userid Userid or null to logout
+     * @param callback Handler with True if the client was updated, may be null.
+     */
+    public void updateUserId( String userid, Handler<Boolean> callback ){
+        this.userid = userid;
+        this.update(new JsonObject().put("$set", new JsonObject().put("userid", userid)), callback);
+    }
+
     public int getCalls() {
         return calls;
     }
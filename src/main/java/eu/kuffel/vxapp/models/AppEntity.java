@@ -1,19 +1,32 @@
 package eu.kuffel.vxapp.models;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import eu.kuffel.vxapp.utils.AppBsonMapping;
 import eu.kuffel.vxapp.utils.AppDBO;
+import eu.kuffel.vxapp.utils.AppDBOCodec;
+import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
 
 /**
  * Created by adam on 08.01.17.
  */
-public class AppEntity extends AppDBO<AppEntity> {
+public class AppEntity extends AppDBO<AppEntity> implements AppBsonMapping {
+
+private static final AppDBOCodec<AppEntity> CODEC = new AppDBOCodec<>(AppEntity.class, AppEntity::new);
 
 private String id;
 private String type;
@@ -38,6 +51,19 @@ public String getCollectionName() {
         return "entity";
         }
 
+@Override
+public JsonArray getIndexes() {
+        JsonArray indexes = new JsonArray();
+        indexes.add(new JsonObject().put("key", new JsonObject().put("created", 1)).put("name", "created_1"));
+        indexes.add(new JsonObject().put("key", new JsonObject().put("updated", 1)).put("name", "updated_1"));
+        return indexes;
+        }
+
+@Override
+public boolean isCached() {
+        return true;
+        }
+
 @Override
 public String getId() {
         return this.id;
@@ -45,6 +71,7 @@ public String getId() {
 
 @Override
 public AppEntity setId(String id) {
+        invalidateEncoded();
         this.id = id;
         return this;
         }
@@ -74,10 +101,61 @@ public JsonObject getJSON() {
         return ret;
         }
 
+@Override
+public void writeJSON(JsonGenerator generator) throws IOException {
+        // Same fields and order as getJSON, without building a JsonObject.
+        generator.writeStartObject();
+        if (this.id != null) {
+        generator.writeStringField("_id", this.id);
+        }
+        writeStringField(generator, "type", this.type);
+        writeStringField(generator, "title", this.title);
+        writeStringField(generator, "body", this.body);
+        generator.writeArrayFieldStart("tags");
+        if (this.tags != null) {
+        for(String t : tags){
+        if (t != null) {
+        generator.writeString(t);
+        }else{
+        generator.writeNull();
+        }
+        }
+        }
+        generator.writeEndArray();
+        generator.writeFieldName("nested");
+        if (this.nested != null) {
+        // Serialized into the same generator, a nested encode() would not get the recycled buffers of this thread.
+        Json.mapper.writeValue(generator, this.nested);
+        }else{
+        generator.writeNull();
+        }
+        writeStringField(generator, "author", this.author);
+        if (this.data != null) {
+        generator.writeBinaryField("data", this.data);
+        }else{
+        generator.writeNullField("data");
+        }
+        generator.writeNumberField("version", this.version);
+        generator.writeBooleanField("validated", this.validated);
+        writeStringField(generator, "created", this.created != null ? this.created.toString() : null);
+        writeStringField(generator, "updated", this.updated != null ? this.updated.toString() : null);
+        writeStringField(generator, "deleted", this.deleted != null ? this.deleted.toString() : null);
+        generator.writeEndObject();
+        }
+
+private static void writeStringField(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null) {
+        generator.writeStringField(name, value);
+        }else{
+        generator.writeNullField(name);
+        }
+        }
+
 @Override
 public AppEntity setJSON(JsonObject json, boolean patch) {
         // TODO: Patch JSON
         if (json != null) {
+        invalidateEncoded();
 
         this.id = json.getString("_id", null);
 
@@ -118,8 +196,11 @@ public AppEntity setJSON(JsonObject json, boolean patch) {
         if(json.containsKey("updated")){
         this.updated = json.getInstant("updated",null);
         }
-        if(json.containsKey("created")){
-        this.created = json.getInstant("created",null);
+        if(json.containsKey("author")){
+        this.author = json.getString("author",null);
+        }
+        if(json.containsKey("deleted")){
+        this.deleted = json.getInstant("deleted",null);
         }
         }else{
         this.type = json.getString("type", null);
@@ -145,6 +226,47 @@ public AppEntity setJSON(JsonObject json, boolean patch) {
         return this;
         }
 
+@Override
+public Codec<AppEntity> getCodec() {
+        return CODEC;
+        }
+
+@Override
+public void writeBson(BsonWriter writer, EncoderContext encoderContext) {
+        AppDBOCodec.writeString(writer, "type", this.type);
+        AppDBOCodec.writeString(writer, "title", this.title);
+        AppDBOCodec.writeString(writer, "body", this.body);
+        AppDBOCodec.writeStringList(writer, "tags", this.tags);
+        AppDBOCodec.writeJsonObject(writer, "nested", this.nested, encoderContext);
+        AppDBOCodec.writeString(writer, "author", this.author);
+        AppDBOCodec.writeBinary(writer, "data", this.data);
+        writer.writeInt32("version", this.version);
+        writer.writeBoolean("validated", this.validated);
+        AppDBOCodec.writeInstant(writer, "created", this.created);
+        AppDBOCodec.writeInstant(writer, "updated", this.updated);
+        AppDBOCodec.writeInstant(writer, "deleted", this.deleted);
+        }
+
+@Override
+public boolean readBsonField(String name, BsonReader reader, DecoderContext decoderContext) {
+        invalidateEncoded();
+        switch (name){
+        case "type": this.type = AppDBOCodec.readString(reader); return true;
+        case "title": this.title = AppDBOCodec.readString(reader); return true;
+        case "body": this.body = AppDBOCodec.readString(reader); return true;
+        case "tags": this.tags = AppDBOCodec.readStringList(reader); return true;
+        case "nested": this.nested = AppDBOCodec.readJsonObject(reader, decoderContext); return true;
+        case "author": this.author = AppDBOCodec.readString(reader); return true;
+        case "data": this.data = AppDBOCodec.readBinary(reader); return true;
+        case "version": this.version = AppDBOCodec.readInteger(reader, 0); return true;
+        case "validated": this.validated = AppDBOCodec.readBoolean(reader, false); return true;
+        case "created": this.created = AppDBOCodec.readInstant(reader); return true;
+        case "updated": this.updated = AppDBOCodec.readInstant(reader); return true;
+        case "deleted": this.deleted = AppDBOCodec.readInstant(reader); return true;
+        default: return false;
+        }
+        }
+
 @Override
 public AppEntity createFromJson(JsonObject json) {
         AppEntity n = new AppEntity();
@@ -154,7 +276,7 @@ public AppEntity createFromJson(JsonObject json) {
 
 @Override
 public String toString() {
-        return this.getJSON().encode();
+        return this.getEncoded().toString();
         }
 
 
@@ -201,6 +323,7 @@ public String getType() {
         }
 
 public void setType(String type) {
+        invalidateEncoded();
         this.type = type;
         }
 
@@ -209,6 +332,7 @@ public String getTitle() {
         }
 
 public void setTitle(String title) {
+        invalidateEncoded();
         this.title = title;
         }
 
@@ -217,23 +341,32 @@ public String getBody() {
         }
 
 public void setBody(String body) {
+        invalidateEncoded();
         this.body = body;
         }
 
+/**
+ * @return Unmodifiable view of the tags, use setTags to change them so the encoded json is invalidated.
+ */
 public List<String> getTags() {
-        return tags;
+        return tags != null ? Collections.unmodifiableList(tags) : null;
         }
 
 public void setTags(List<String> tags) {
-        this.tags = tags;
+        invalidateEncoded();
+        this.tags = tags != null ? new ArrayList<>(tags) : null;
         }
 
+/**
+ * @return Copy of the nested object, use setNested to change it so the encoded json is invalidated.
+ */
 public JsonObject getNested() {
-        return nested;
+        return nested != null ? nested.copy() : null;
         }
 
 public void setNested(JsonObject nested) {
-        this.nested = nested;
+        invalidateEncoded();
+        this.nested = nested != null ? nested.copy() : null;
         }
 
 public String getAuthor() {
@@ -241,15 +374,20 @@ public String getAuthor() {
         }
 
 public void setAuthor(String author) {
+        invalidateEncoded();
         this.author = author;
         }
 
+/**
+ * @return Copy of the data, use setData to change it so the encoded json is invalidated.
+ */
 public byte[] getData() {
-        return data;
+        return data != null ? data.clone() : null;
         }
 
 public void setData(byte[] data) {
-        this.data = data;
+        invalidateEncoded();
+        this.data = data != null ? data.clone() : null;
         }
 
 public int getVersion() {
@@ -257,6 +395,7 @@ public int getVersion() {
         }
 
 public void setVersion(int version) {
+        invalidateEncoded();
         this.version = version;
         }
 
@@ -265,6 +404,7 @@ public boolean isValidated() {
         }
 
 public void setValidated(boolean validated) {
+        invalidateEncoded();
         this.validated = validated;
         }
 
@@ -273,6 +413,7 @@ public Instant getCreated() {
         }
 
 public void setCreated(Instant created) {
+        invalidateEncoded();
         this.created = created;
         }
 
@@ -281,6 +422,7 @@ public Instant getUpdated() {
         }
 
 public void setUpdated(Instant updated) {
+        invalidateEncoded();
         this.updated = updated;
         }
 
@@ -289,6 +431,7 @@ public Instant getDeleted() {
         }
 
 public void setDeleted(Instant deleted) {
+        invalidateEncoded();
         this.deleted = deleted;
         }
 
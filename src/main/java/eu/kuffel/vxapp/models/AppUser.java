@@ -1,27 +1,44 @@
 package eu.kuffel.vxapp.models;
 
+import eu.kuffel.vxapp.utils.AppBsonMapping;
 import eu.kuffel.vxapp.utils.AppDBO;
+import eu.kuffel.vxapp.utils.AppDBOCodec;
 import eu.kuffel.vxapp.utils.AppHashing;
+import eu.kuffel.vxapp.utils.AppHashingService;
 import eu.kuffel.vxapp.utils.AppRandom;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.auth.AuthProvider;
 import io.vertx.ext.auth.User;
 
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Objects;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
 
 /**
  *
  * @author akuffel
  */
-public class AppUser extends AppDBO<AppUser> {
+public class AppUser extends AppDBO<AppUser> implements AppBsonMapping {
 
     private static final int PASSWORD_ITERATIONS = 1000;
     private static final int PASSWORD_KEY_LENGTH = 4096;
 
+    private static final AppDBOCodec<AppUser> CODEC = new AppDBOCodec<>(AppUser.class,
+            () -> new AppUser().setVerificationcode(null).setCreated(null));
+
+    public static final String INDEX_USERNAME = "username_1";
+    public static final String INDEX_EMAILADDRESS = "emailaddress_1";
+
 
     private String id;
     private String username;
@@ -79,6 +96,14 @@ public class AppUser extends AppDBO<AppUser> {
     }
 
 
+    @Override
+    public JsonArray getIndexes() {
+        JsonArray indexes = new JsonArray();
+        indexes.add(new JsonObject().put("key", new JsonObject().put("username", 1)).put("name", INDEX_USERNAME).put("unique", true));
+        indexes.add(new JsonObject().put("key", new JsonObject().put("emailaddress", 1)).put("name", INDEX_EMAILADDRESS).put("unique", true));
+        return indexes;
+    }
+
     @Override
     public AppUser setJSON(JsonObject json, boolean patch) {
         if(json != null){
@@ -98,6 +123,44 @@ public class AppUser extends AppDBO<AppUser> {
         return this;
     }
 
+    @Override
+    public Codec<AppUser> getCodec() {
+        return CODEC;
+    }
+
+    @Override
+    public void writeBson(BsonWriter writer, EncoderContext encoderContext) {
+        AppDBOCodec.writeString(writer, "username", this.username);
+        AppDBOCodec.writeString(writer, "emailaddress", this.emailaddress);
+        AppDBOCodec.writeBinary(writer, "password", this.password);
+        AppDBOCodec.writeString(writer, "language", this.language);
+        AppDBOCodec.writeString(writer, "timezone", this.timezone);
+        AppDBOCodec.writeString(writer, "verificationcode", this.verificationcode);
+        AppDBOCodec.writeString(writer, "resetcode", this.resetcode);
+        writer.writeBoolean("verified", this.verified);
+        writer.writeBoolean("active", this.active);
+        AppDBOCodec.writeInstant(writer, "created", this.created);
+        AppDBOCodec.writeInstant(writer, "lastactive", this.lastactive);
+    }
+
+    @Override
+    public boolean readBsonField(String name, BsonReader reader, DecoderContext decoderContext) {
+        switch (name){
+            case "username": this.username = AppDBOCodec.readString(reader); return true;
+            case "emailaddress": this.emailaddress = AppDBOCodec.readString(reader); return true;
+            case "password": this.password = AppDBOCodec.readBinary(reader); return true;
+            case "language": this.language = AppDBOCodec.readString(reader); return true;
+            case "timezone": this.timezone = AppDBOCodec.readString(reader); return true;
+            case "verificationcode": this.verificationcode = AppDBOCodec.readString(reader); return true;
+            case "resetcode": this.resetcode = AppDBOCodec.readString(reader); return true;
+            case "verified": this.verified = AppDBOCodec.readBoolean(reader, false); return true;
+            case "active": this.active = AppDBOCodec.readBoolean(reader, false); return true;
+            case "created": this.created = AppDBOCodec.readInstant(reader); return true;
+            case "lastactive": this.lastactive = AppDBOCodec.readInstant(reader); return true;
+            default: return false;
+        }
+    }
+
     @Override
     public AppUser createFromJson(JsonObject json) {
         return new AppUser().setJSON(json,false);
@@ -121,54 +184,45 @@ public class AppUser extends AppDBO<AppUser> {
         return this;
     }
 
-    public AppUser setPassword( String password ){
+    /**
+     * Hash the password on the AppHashingService pool and set it.
+     * @param password New password
+     * @param callback Handler with this user, fails if the hashing pool is saturated.
+     */
+    public void setPassword( String password, Handler<AsyncResult<AppUser>> callback ){
         Objects.requireNonNull(this.created);
         Objects.requireNonNull(password);
+        Objects.requireNonNull(callback);
         String salt = AppHashing.getHashSHA512(String.valueOf(this.created.getEpochSecond()));
-        int iterations = PASSWORD_ITERATIONS;
-        int keyLength = PASSWORD_KEY_LENGTH;
-        this.password = AppHashing.getHashPassword(password.toCharArray(), salt.getBytes(), iterations, keyLength);
-        /*
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream( );
-            bos.write(AppHashing.getHashPassword(password.toCharArray(), salt.getBytes(), iterations, keyLength));
-            bos.write(ByteBuffer.allocate(4).putInt(iterations).array());
-            bos.write(ByteBuffer.allocate(4).putInt(keyLength).array());
-            this.password = bos.toByteArray();
-        } catch (IOException ex) {
-            // This should never happen, we have to exit the application.....
-            ex.printStackTrace();
-            System.exit(1);
-        }
-        */
-        return this;
-
-    }
-
-    public boolean checkPassword( String password ){
-        if(password != null){
-            /*
-            int max = this.password.length -1;
-            String salt = AppHashing.getHashSHA512(String.valueOf(this.created.getEpochSecond()));
-            byte[] passwordPart = Arrays.copyOfRange(this.password, 0, max - 8);
-            //byte[] iterationsPart = Arrays.copyOfRange(this.password, max - 8, max - 4 );
-            //byte[] keyLengthPart = Arrays.copyOfRange(this.password, max - 4, max);
-            int iterations = ByteBuffer.wrap( this.password, passwordPart.length, 4 ).getInt();
-            int keyLength = ByteBuffer.wrap( this.password, passwordPart.length + 4, 4 ).getInt();
-            System.out.println(this.password);
-            System.out.println(passwordPart);
-            System.out.println(iterations);
-            System.out.println(keyLength);
-            byte[] checkPassword = AppHashing.getHashPassword(password.toCharArray(), salt.getBytes(), iterations, keyLength);
-            */
-            String salt = AppHashing.getHashSHA512(String.valueOf(this.created.getEpochSecond()));
-            int iterations = PASSWORD_ITERATIONS;
-            int keyLength = PASSWORD_KEY_LENGTH;
-            byte[] checkPassword = AppHashing.getHashPassword(password.toCharArray(), salt.getBytes(), iterations, keyLength);
-            return Arrays.equals(this.password, checkPassword);
-        }else{
-            return false;
+        AppHashingService.getHashPassword(password.toCharArray(), salt.getBytes(), PASSWORD_ITERATIONS, PASSWORD_KEY_LENGTH, hashResult -> {
+            if(hashResult.succeeded()){
+                this.password = hashResult.result();
+                callback.handle(Future.succeededFuture(this));
+            }else{
+                callback.handle(Future.failedFuture(hashResult.cause()));
+            }
+        });
+    }
+
+    /**
+     * Hash the given password on the AppHashingService pool and compare it with the stored hash.
+     * @param password Password to check
+     * @param callback Handler with True if the password matches, fails if the hashing pool is saturated.
+     */
+    public void checkPassword( String password, Handler<AsyncResult<Boolean>> callback ){
+        Objects.requireNonNull(callback);
+        if(password == null || this.password == null){
+            callback.handle(Future.succeededFuture(false));
+            return;
         }
+        String salt = AppHashing.getHashSHA512(String.valueOf(this.created.getEpochSecond()));
+        AppHashingService.getHashPassword(password.toCharArray(), salt.getBytes(), PASSWORD_ITERATIONS, PASSWORD_KEY_LENGTH, hashResult -> {
+            if(hashResult.succeeded()){
+                callback.handle(Future.succeededFuture(MessageDigest.isEqual(this.password, hashResult.result())));
+            }else{
+                callback.handle(Future.failedFuture(hashResult.cause()));
+            }
+        });
     }
 
     public String getLanguage() {
@@ -243,6 +297,14 @@ public class AppUser extends AppDBO<AppUser> {
         return this;
     }
 
+    /**
+     * Persist only the last activity of this user.
+     * @param callback Handler with True if the user was updated, may be null.
+     */
+    public void updateLastactive( Handler<Boolean> callback ){
+        this.update(new JsonObject().put("$set", new JsonObject().put("lastactive", this.lastactive)), callback);
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
@@ -335,52 +397,48 @@ public class AppUser extends AppDBO<AppUser> {
         }
     }
 
-    public static void authenticate( JsonObject authJson, Handler<AppUser> callback ){
-        Objects.nonNull(authJson);
-        Objects.nonNull(callback);
+    /**
+     * Find a user by username and/or emailaddress and check the password.
+     * If both are given, they have to belong to the same user.
+     * @param authJson JsonObject with username and/or emailaddress and password
+     * @param callback Handler with the authenticated user or null if the credentials are invalid,
+     *                 fails if the hashing pool is saturated.
+     */
+    public static void authenticate( JsonObject authJson, Handler<AsyncResult<AppUser>> callback ){
+        Objects.requireNonNull(authJson);
+        Objects.requireNonNull(callback);
         String username = authJson.getString("username",null);
         String emailaddress = authJson.getString("emailaddress",null);
         String password = authJson.getString("password",null);
-        if(username == null && emailaddress == null){
-            callback.handle(null);
+        if((username == null && emailaddress == null) || password == null){
+            callback.handle(Future.succeededFuture(null));
+            return;
         }
-        if(password == null){
-            callback.handle(null);
-        }
-        if(username != null && emailaddress == null){
-            findByUsername(username, foundUser -> {
-                if(foundUser != null && foundUser.checkPassword(password)){
-                    callback.handle(foundUser);
+        Handler<AppUser> checkUser = foundUser -> {
+            if(foundUser == null){
+                callback.handle(Future.succeededFuture(null));
+                return;
+            }
+            foundUser.checkPassword(password, checkResult -> {
+                if(checkResult.failed()){
+                    callback.handle(Future.failedFuture(checkResult.cause()));
                 }else{
-                    callback.handle(null);
+                    callback.handle(Future.succeededFuture(checkResult.result() ? foundUser : null));
                 }
             });
-        }
-        if(username == null && emailaddress != null){
-            findByEmailaddress(emailaddress, foundUser -> {
-                if(foundUser != null && foundUser.checkPassword(password)){
-                    callback.handle(foundUser);
-                }else{
-                    callback.handle(null);
-                }
-            });
-        }
-        if(username != null && emailaddress != null){
+        };
+        if(emailaddress == null){
+            findByUsername(username, checkUser);
+        }else if(username == null){
+            findByEmailaddress(emailaddress, checkUser);
+        }else{
             findByEmailaddress(emailaddress, foundUserEmail -> {
                 if(foundUserEmail != null){
                     findByUsername(username, foundUserName -> {
-                        if(foundUserEmail.equals(foundUserName)){
-                            if(foundUserName.checkPassword(password)){
-                                callback.handle(foundUserName);
-                            }else{
-                                callback.handle(null);
-                            }
-                        }else{
-                            callback.handle(null);
-                        }
+                        checkUser.handle(foundUserEmail.equals(foundUserName) ? foundUserName : null);
                     });
                 }else{
-                    callback.handle(null);
+                    checkUser.handle(null);
                 }
             });
         }
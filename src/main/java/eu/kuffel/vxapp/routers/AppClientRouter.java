@@ -2,9 +2,10 @@ package eu.kuffel.vxapp.routers;
 
 import com.mongodb.client.model.Filters;
 import eu.kuffel.vxapp.models.AppClient;
+import eu.kuffel.vxapp.utils.AppClientCache;
+import eu.kuffel.vxapp.utils.AppClientToken;
 import eu.kuffel.vxapp.utils.AppJsonMessages;
 import io.vertx.core.Vertx;
-import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
@@ -28,27 +29,28 @@ public class AppClientRouter {
         router = Router.router(vertx);
 
         router.get("/client").handler( rc -> {
-            HttpServerRequest request = rc.request();
             HttpServerResponse response = rc.response();
-            String clientKey = request.getHeader(AppClient.HTTP_HEADER_NAME);
-            if(clientKey == null){
+            AppClient client = (AppClient) rc.data().get("client");
+            if(client == null){
                 AppClient freshClient = new AppClient();
                 freshClient.save((savedClient) -> {
                     if(savedClient != null){
-                        response.setStatusCode(201).end(savedClient.getJSON("_id").encode());
+                        JsonObject clientJSON = savedClient.getJSON("_id");
+                        if(AppClientToken.isEnabled()){
+                            clientJSON.put("token", AppClientToken.create(savedClient.getId(), null));
+                        }
+                        response.setStatusCode(201).end(clientJSON.encode());
                     }else{
                         AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVER_ERROR);
                     }
                 });
             }else{
-                AppClient loadClient = new AppClient();
-                loadClient.findOneByFieldValue("key", clientKey, (loadedClient) -> {
-                    if(loadedClient != null){
-                        response.setStatusCode(200).end(loadedClient.getJSON("_id").encode());
-                    }else{
-                        AppJsonMessages.sendMessage(rc, AppJsonMessages.INVALID_CLIENT_KEY);
-                    }
-                });
+                // Known client (key or token), tokens are refreshed on every call.
+                JsonObject clientJSON = client.getKey() != null ? client.getJSON("_id") : client.getJSON("_id", "key");
+                if(AppClientToken.isEnabled()){
+                    clientJSON.put("token", AppClientToken.create(client.getId(), client.getUserId()));
+                }
+                response.setStatusCode(200).end(clientJSON.encode());
             }
         });
 
@@ -65,20 +67,13 @@ public class AppClientRouter {
         */
 
         router.delete("/client").handler(rc -> {
-            HttpServerRequest request = rc.request();
-            HttpServerResponse response = rc.response();
-            String clientKey = request.getHeader(AppClient.HTTP_HEADER_NAME);
-            if(clientKey != null){
-                AppClient c = new AppClient();
-                c.findOneByFieldValue("key", clientKey, (foundClient) -> {
-                    if(foundClient != null){
-                        foundClient.delete((Boolean deleteEvent) -> {
-                            if(deleteEvent.booleanValue()){
-                                AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_DELETED);
-                            }else{
-                                AppJsonMessages.sendMessage(rc, AppJsonMessages.INVALID_CLIENT_KEY);
-                            }
-                        });
+            AppClient client = (AppClient) rc.data().get("client");
+            if(client != null){
+                client.delete((Boolean deleteEvent) -> {
+                    AppClientCache.getInstance().invalidate(client.getKey());
+                    AppClientToken.revoke(client.getId());
+                    if(deleteEvent.booleanValue()){
+                        AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_DELETED);
                     }else{
                         AppJsonMessages.sendMessage(rc, AppJsonMessages.INVALID_CLIENT_KEY);
                     }
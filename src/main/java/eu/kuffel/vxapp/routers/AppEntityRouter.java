@@ -1,17 +1,40 @@
 package eu.kuffel.vxapp.routers;
 
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
 import eu.kuffel.vxapp.models.AppEntity;
 import eu.kuffel.vxapp.utils.AppCommons;
+import eu.kuffel.vxapp.utils.AppCountCache;
+import eu.kuffel.vxapp.utils.AppDBOCache;
+import eu.kuffel.vxapp.utils.AppDBOReadStream;
 import eu.kuffel.vxapp.utils.AppJsonMessages;
+import eu.kuffel.vxapp.utils.AppPageCursor;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.mongo.FindOptions;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by adam on 08.01.17.
@@ -19,15 +42,47 @@ import java.util.ArrayList;
 public class AppEntityRouter {
 
     private static final int DEFAULT_LIMIT = 100;
+    private static final int STREAM_BATCH_SIZE = 100;
+    private static final int DEFAULT_BULK_BATCH_SIZE = 500;
+    private static final int DEFAULT_BULK_MAX_OPERATIONS = 10000;
+    private static final int DEFAULT_DELETE_CHUNK_SIZE = 1000;
+    private static final int DEFAULT_MAX_IDS = 1000;
+
+    private static final String BULK_INSERT = "insert";
+    private static final String BULK_UPDATE = "update";
+    private static final String BULK_DELETE = "delete";
+    private static final String BULK_OK = "ok";
+    private static final String BULK_FAILED = "failed";
+    private static final String BULK_SKIPPED = "skipped";
 
     private static Router router;
 
     public static Router router(Vertx vertx) {
+        return router(vertx, new JsonObject());
+    }
+
+    /**
+     * Create the entity router.
+     * @param vertx Vertx instance
+     * @param bulkConfig JsonObject with optional batchsize and maxoperations of bulk requests,
+     *                   deletechunksize of multi-id deletes and maxids of multi-id gets
+     * @return Router
+     */
+    public static Router router(Vertx vertx, JsonObject bulkConfig) {
         router = Router.router(vertx);
+        int bulkBatchSize = Math.max(1, bulkConfig.getInteger("batchsize", DEFAULT_BULK_BATCH_SIZE));
+        int bulkMaxOperations = bulkConfig.getInteger("maxoperations", DEFAULT_BULK_MAX_OPERATIONS);
+        int deleteChunkSize = Math.max(1, bulkConfig.getInteger("deletechunksize", DEFAULT_DELETE_CHUNK_SIZE));
+        int maxIds = bulkConfig.getInteger("maxids", DEFAULT_MAX_IDS);
 
 
         router.get("/entities").handler( rc -> {
 
+            if(rc.request().params().get("ids") != null){
+                sendEntitiesByIds(rc, getIds(rc.request().params().get("ids")), maxIds);
+                return;
+            }
+
             AppEntity q = new AppEntity();
 
             FindOptions findOptions = new FindOptions();
@@ -53,8 +108,8 @@ public class AppEntityRouter {
             findOptions.setSkip(limit * page);
 
             String sort = rc.request().params().get("sort");
+            JsonObject sortOptions = new JsonObject();
             if(sort != null){
-                JsonObject sortOptions = new JsonObject();
                 String[] fields = sort.split(",");
                 for(String f : fields){
                     String fieldName = f;
@@ -69,26 +124,115 @@ public class AppEntityRouter {
                     }
                     sortOptions.put(fieldName.trim(),fieldDirection);
                 }
-                findOptions.setSort(sortOptions);
+            }
+            if(!q.isSortIndexed(sortOptions)){
+                JsonArray errors = new JsonArray().add(new JsonObject().put("sort", "Sorting is only supported on indexed fields."));
+                AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+                return;
+            }
+            // Sort by _id last, so the order is stable and can be continued with a cursor.
+            JsonObject uniqueSort = AppPageCursor.getUniqueSort(sortOptions);
+            findOptions.setSort(uniqueSort);
+
+            // Keyset pagination, the cursor replaces page and skip.
+            Bson filter = null;
+            String cursorParam = rc.request().params().get("cursor");
+            boolean cursorMode = cursorParam != null;
+            if(cursorMode){
+                AppPageCursor cursor = AppPageCursor.decode(cursorParam, uniqueSort);
+                if(cursor == null){
+                    JsonArray errors = new JsonArray().add(new JsonObject().put("cursor", "Invalid cursor or sort changed."));
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+                    return;
+                }
+                filter = cursor.getFilter();
+                findOptions.setSkip(0);
             }
 
-            JsonObject query = new JsonObject();
-            q.findWithOptions(query, findOptions, list ->{
-                q.count(query, countResult -> {
-                    JsonObject results = new JsonObject();
-                    results.put("total", countResult);
-                    if(findOptions.getLimit() <= 0){
-                        results.put("page", 0);
+            // The envelope is written in parts and every entity as soon as it is read from the cursor,
+            // so the response never holds more than one batch in memory.
+            // Only the requested fields are sent by mongo, sort fields are still needed for the next cursor.
+            JsonObject projection = getProjection(rc);
+            if(projection == null){
+                return;
+            }
+            if(!projection.isEmpty()){
+                JsonObject fetchFields = projection.copy();
+                boolean inclusive = rc.request().params().get("fields") != null;
+                for(String sortField : uniqueSort.fieldNames()){
+                    if(inclusive){
+                        fetchFields.put(sortField, 1);
                     }else{
-                        results.put("page", (int)(findOptions.getSkip() / findOptions.getLimit()));
+                        fetchFields.remove(sortField);
                     }
-                    results.put("limit", findOptions.getLimit());
-                    JsonArray data = new JsonArray();
-                    for( AppEntity e : list ){
-                        data.add(e.getJSON());
+                }
+                findOptions.setFields(fetchFields);
+            }
+
+            // The total is counted concurrently to the find, cursor pages are not counted by default.
+            JsonObject query = new JsonObject();
+            String totalParam = rc.request().params().get("total");
+            boolean countTotal = totalParam != null ? !"false".equalsIgnoreCase(totalParam) : !cursorMode;
+            boolean estimated = countTotal && query.isEmpty() && "true".equalsIgnoreCase(rc.request().params().get("estimated"));
+            Future<Long> countFuture = Future.future();
+            if(!countTotal){
+                countFuture.complete(null);
+            }else if(estimated){
+                q.countEstimated(countFuture::complete);
+            }else if(AppCountCache.getInstance() != null){
+                AppCountCache.getInstance().count(q.getCollectionName(), query, loaded -> q.count(query, loaded), countFuture::complete);
+            }else{
+                q.count(query, countFuture::complete);
+            }
+
+            JsonObject header = new JsonObject();
+            if(!cursorMode){
+                header.put("page", (int)(findOptions.getSkip() / findOptions.getLimit()));
+            }
+            header.put("limit", findOptions.getLimit());
+            String headerJSON = header.encode();
+
+            HttpServerResponse response = rc.response();
+            AppDBOReadStream<?, AppEntity> stream = q.findStream(filter, findOptions, STREAM_BATCH_SIZE);
+            response.closeHandler(closed -> stream.close());
+            response.write(headerJSON.substring(0, headerJSON.length() - 1) + ",\"data\":[");
+            int[] count = { 0 };
+            AppEntity[] last = { null };
+            // The status and the first entities are already sent, so a failing cursor is reported in the trailer.
+            // The page is incomplete and has no next cursor, clients have to check for the error field.
+            stream.exceptionHandler(error -> {
+                System.err.println(error.getMessage());
+                if(!response.closed()){
+                    JsonObject trailer = new JsonObject();
+                    trailer.put("error", AppJsonMessages.getMessage(AppJsonMessages.SERVER_ERROR, null));
+                    response.end("]," + trailer.encode().substring(1));
+                }
+            });
+            stream.handler(entity -> {
+                Buffer item = Buffer.buffer();
+                if(count[0] > 0){
+                    item.appendString(",");
+                }
+                count[0]++;
+                last[0] = entity;
+                item.appendBuffer(getEncoded(entity, projection));
+                response.write(item);
+                if(response.writeQueueFull()){
+                    stream.pause();
+                    response.drainHandler(drained -> stream.resume());
+                }
+            });
+            stream.endHandler(end -> {
+                JsonObject trailer = new JsonObject();
+                trailer.put("next", count[0] == findOptions.getLimit() ? AppPageCursor.encode(uniqueSort, last[0].getJSON()) : null);
+                countFuture.setHandler(countResult -> {
+                    if(countResult.result() != null){
+                        trailer.put("total", countResult.result());
+                        if(estimated){
+                            trailer.put("estimated", true);
+                        }
                     }
-                    results.put("data", data);
-                    rc.response().write(results.encode()).end();
+                    response.end("]," + trailer.encode().substring(1));
                 });
             });
         }); // END GET /entities
@@ -98,9 +242,16 @@ public class AppEntityRouter {
         router.get("/entities/:id").handler(rc -> {
             AppEntity q = new AppEntity();
             String id = rc.request().params().get("id");
-            q.findOne(id, found -> {
+            JsonObject projection = getProjection(rc);
+            if(projection == null){
+                return;
+            }
+            q.findOne(id, projection.isEmpty() ? null : projection, found -> {
                 if(found != null){
-                    rc.response().write(found.getJSON().encode()).end();
+                    if(projection.isEmpty()){
+                        rc.response().putHeader("ETag", getETag(found));
+                    }
+                    rc.response().write(getEncoded(found, projection)).end();
                 }else{
                     AppJsonMessages.sendMessage(rc, AppJsonMessages.NOT_FOUND);
                 }
@@ -113,29 +264,37 @@ public class AppEntityRouter {
             AppEntity q = new AppEntity();
             JsonObject data = AppCommons.parseJsonRequest(rc, new String[]{ "id" });
             if(data != null){
-                JsonArray ids = data.getJsonArray("id");
-                if(ids != null && ids.size() > 0){
-                    ArrayList<Bson> idFilters = new ArrayList<>();
-                    for(int i = 0; i < ids.size(); i++){
-                        idFilters.add( Filters.eq("_id", ids.getString(i)));
-                    }
-                    Bson deleteFilter = Filters.or(idFilters);
-                    q.remove(deleteFilter, deletedItems -> {
-                        //System.out.println(deletedItems);
-                        AppJsonMessages.sendMessage(rc,AppJsonMessages.RESSOURCE_DELETED);
+                List<String> ids = getIds(data.getValue("id"));
+                if(ids.size() > 0){
+                    removeByIds(q, ids, 0, deleteChunkSize, 0L, deletedItems -> {
+                        entitiesChanged(q, -deletedItems);
+                        AppJsonMessages.sendMessage(rc,AppJsonMessages.RESSOURCE_DELETED, new JsonObject().put("deleted", deletedItems));
                     });
+                }else{
+                    JsonArray errors = new JsonArray().add(new JsonObject().put("id", "Must be an array of ids."));
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
                 }
             }
         }); // END DELETE /entities
 
 
 
+        router.post("/entities/_mget").handler(rc -> {
+            JsonObject data = AppCommons.parseJsonRequest(rc, new String[]{ "ids" });
+            if(data != null){
+                sendEntitiesByIds(rc, getIds(data.getValue("ids")), maxIds);
+            }
+        }); // END POST /entities/_mget
+
+
+
         router.delete("/entities/:id").handler(rc -> {
             AppEntity q = new AppEntity();
             String id = rc.request().params().get("id");
             q.findOne(id, found -> {
                 if(found != null){
                     found.delete(deleted -> {
+                        entitiesChanged(found, Boolean.TRUE.equals(deleted) ? -1 : 0);
                         AppJsonMessages.sendMessage(rc,AppJsonMessages.RESSOURCE_DELETED);
                     });
                 }else{
@@ -145,6 +304,67 @@ public class AppEntityRouter {
         }); // END DELETE /entities/:id
 
 
+        router.post("/entities/_bulk").handler(rc -> {
+            JsonArray operations = parseBulkRequest(rc, bulkMaxOperations);
+            if(operations == null){
+                return;
+            }
+            boolean ordered = !"false".equalsIgnoreCase(rc.request().params().get("ordered"));
+            AppEntity q = new AppEntity();
+            int size = operations.size();
+            JsonObject[] results = new JsonObject[size];
+            List<WriteModel<AppEntity>> models = new ArrayList<>(size);
+            List<Integer> indexes = new ArrayList<>(size);
+            JsonArray[] itemErrors = new JsonArray[size];
+            int[] pending = { size };
+            Handler<Void> validated = v -> {
+                // An ordered bulk stops at the first invalid operation, like mongo does on write errors.
+                boolean stopped = false;
+                for(int i = 0; i < size; i++){
+                    if(stopped){
+                        results[i].put("status", BULK_SKIPPED);
+                    }else if(itemErrors[i].size() > 0){
+                        results[i].put("status", BULK_FAILED).put("errors", itemErrors[i]);
+                        stopped = ordered;
+                    }else{
+                        models.add(createBulkModel(operations.getJsonObject(i), results[i]));
+                        indexes.add(i);
+                    }
+                }
+                JsonObject summary = new JsonObject().put("ordered", ordered).put("inserted", 0).put("matched", 0).put("modified", 0).put("deleted", 0);
+                executeBulk(q, models, indexes, 0, bulkBatchSize, ordered, results, summary, done -> {
+                    entitiesChanged(q, summary.getInteger("inserted") - summary.getInteger("deleted"));
+                    for(JsonObject result : results){
+                        if(!BULK_INSERT.equals(result.getString("op"))){
+                            q.invalidateCached(result.getString("_id"));
+                        }
+                    }
+                    JsonArray resultsJSON = new JsonArray();
+                    for(JsonObject result : results){
+                        resultsJSON.add(result);
+                    }
+                    rc.response().setStatusCode(200).end(summary.put("results", resultsJSON).encode());
+                });
+            };
+            if(size == 0){
+                validated.handle(null);
+                return;
+            }
+            for(int i = 0; i < size; i++){
+                int index = i;
+                results[index] = new JsonObject().put("index", index);
+                itemErrors[index] = new JsonArray();
+                validateBulkOperation(operations.getValue(index), results[index], itemErrors[index], errors -> {
+                    pending[0]--;
+                    if(pending[0] == 0){
+                        validated.handle(null);
+                    }
+                });
+            }
+        }); // END POST /entities/_bulk
+
+
+
         router.post("/entities").handler(rc -> {
             JsonObject data = AppCommons.parseJsonRequest(rc);
             if(data != null){
@@ -153,7 +373,8 @@ public class AppEntityRouter {
                 e.validate( errors -> {
                     if(errors.size() == 0){
                         e.save( saved -> {
-                            rc.response().write(saved.getJSON().encode()).end();
+                            entitiesChanged(e, saved != null ? 1 : 0);
+                            rc.response().write(saved.getEncoded()).end();
                         });
                     }else{
                         rc.response().write(errors.encode()).end();
@@ -168,29 +389,452 @@ public class AppEntityRouter {
             AppEntity q = new AppEntity();
             String id = rc.request().params().get("id");
             JsonObject data = AppCommons.parseJsonRequest(rc);
-            q.findOne(id, found -> {
-                if(found != null){
-                    found.setJSON(data,true);
-                    found.setId(id);
-                    found.validate( errors -> {
-                        if(errors.size() == 0){
-                            found.save( saved -> {
-                                rc.response().write(saved.getJSON().encode()).end();
-                            });
-                        }else{
-                            rc.response().write(errors.encode()).end();
+            if(data != null){
+                // The patch is applied in a single atomic update, If-Match guards it with the version of the entity.
+                String ifMatch = rc.request().getHeader("If-Match");
+                Integer expectedVersion = ifMatch == null || "*".equals(ifMatch.trim()) ? null : parseETag(ifMatch);
+                if(ifMatch != null && !"*".equals(ifMatch.trim()) && expectedVersion == null){
+                    JsonArray errors = new JsonArray().add(new JsonObject().put("If-Match", "Must be the ETag of the entity."));
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+                    return;
+                }
+                AppEntity patch = new AppEntity();
+                patch.setJSON(data,true);
+                patch.validate( errors -> {
+                    if(errors.size() == 0){
+                        Bson filter = Filters.eq("_id", id);
+                        if(expectedVersion != null){
+                            filter = Filters.and(filter, Filters.eq("version", expectedVersion));
                         }
-                    });
+                        q.findOneAndUpdate(filter, createPatchUpdate(data), updateResult -> {
+                            AppEntity updated = updateResult.succeeded() ? updateResult.result() : null;
+                            if(updated != null){
+                                entitiesChanged(updated, 0);
+                                rc.response().putHeader("ETag", getETag(updated));
+                                rc.response().write(updated.getEncoded()).end();
+                            }else if(updateResult.failed()){
+                                System.err.println(updateResult.cause().getMessage());
+                                AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVER_ERROR);
+                            }else if(expectedVersion == null){
+                                AppJsonMessages.sendMessage(rc, AppJsonMessages.NOT_FOUND);
+                            }else{
+                                // Nothing matched, tell a missing entity apart from a changed version.
+                                q.findOne(id, new JsonObject().put("_id", 1), found -> {
+                                    AppJsonMessages.sendMessage(rc, found != null ? AppJsonMessages.PRECONDITION_FAILED : AppJsonMessages.NOT_FOUND);
+                                });
+                            }
+                        });
+                    }else{
+                        rc.response().write(errors.encode()).end();
+                    }
+                });
+            }
+        }); // END PATCH /entities/:id
+
+
+
+
+        return router;
+    }
+
+
+    /**
+     * Get the encoded json of an entity, the encoded representation is reused if all fields are requested.
+     * @param entity AppEntity
+     * @param projection JsonObject with a mongo projection, empty for all fields.
+     * @return Buffer with the encoded json
+     */
+    private static Buffer getEncoded( AppEntity entity, JsonObject projection ){
+        if(projection.isEmpty()){
+            return entity.getEncoded();
+        }
+        return Buffer.buffer(entity.getProjectedJSON(projection).encode());
+    }
+
+    /**
+     * Get the distinct ids of a json array or a comma separated string, the order is kept.
+     * @param value JsonArray or String
+     * @return List with ids, empty if the value is invalid.
+     */
+    private static List<String> getIds( Object value ){
+        LinkedHashSet<String> ids = new LinkedHashSet<>();
+        if(value instanceof JsonArray){
+            for(Object id : (JsonArray) value){
+                if(id instanceof String && !((String) id).isEmpty()){
+                    ids.add((String) id);
+                }
+            }
+        }else if(value instanceof String){
+            for(String id : ((String) value).split(",")){
+                if(!id.trim().isEmpty()){
+                    ids.add(id.trim());
+                }
+            }
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Delete entities with an $in query per chunk of ids, chunks are deleted one after another.
+     * @param q Any AppEntity
+     * @param ids Ids to delete
+     * @param offset Index of the first id of this chunk
+     * @param chunkSize Ids per chunk
+     * @param deleted Number of entities deleted by the previous chunks
+     * @param done Handler with the number of deleted entities.
+     */
+    private static void removeByIds( AppEntity q, List<String> ids, int offset, int chunkSize, long deleted, Handler<Long> done ){
+        if(offset >= ids.size()){
+            done.handle(deleted);
+            return;
+        }
+        int end = Math.min(offset + chunkSize, ids.size());
+        q.remove(Filters.in("_id", ids.subList(offset, end)), deletedItems -> {
+            removeByIds(q, ids, end, chunkSize, deleted + (deletedItems != null ? deletedItems : 0), done);
+        });
+    }
+
+    /**
+     * Answer a multi-id get with a single $in query and a result per id, in the order of the requested ids.
+     * Supports the same ?fields= and ?exclude= parameters as the other entity endpoints.
+     * @param rc RoutingContext
+     * @param ids Requested ids
+     * @param maxIds Maximum number of ids per request
+     */
+    private static void sendEntitiesByIds( RoutingContext rc, List<String> ids, int maxIds ){
+        if(ids.isEmpty() || (maxIds > 0 && ids.size() > maxIds)){
+            JsonArray errors = new JsonArray().add(new JsonObject().put("ids", "Must contain between 1 and " + maxIds + " ids."));
+            AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+            return;
+        }
+        JsonObject projection = getProjection(rc);
+        if(projection == null){
+            return;
+        }
+        FindOptions findOptions = new FindOptions();
+        if(!projection.isEmpty()){
+            findOptions.setFields(projection);
+        }
+        AppEntity q = new AppEntity();
+        // Cached entities are served first, only the misses are fetched.
+        Map<String, Buffer> found = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        AppDBOCache cache = AppDBOCache.getInstance();
+        for(String id : ids){
+            Buffer cached = cache != null && projection.isEmpty() ? cache.getLocal(q.getCollectionName(), id) : null;
+            if(cached != null){
+                found.put(id, cached);
+            }else{
+                misses.add(id);
+            }
+        }
+        // The encoded entities are copied into the response as they are, without decoding them again.
+        Handler<List<AppEntity>> send = foundEntities -> {
+            for(AppEntity entity : foundEntities){
+                found.put(entity.getId(), getEncoded(entity, projection));
+            }
+            Buffer response = Buffer.buffer("{\"results\":[");
+            for(int i = 0; i < ids.size(); i++){
+                Buffer entityJSON = found.get(ids.get(i));
+                if(i > 0){
+                    response.appendString(",");
+                }
+                response.appendString("{\"_id\":").appendString(Json.encode(ids.get(i)));
+                response.appendString(",\"found\":").appendString(String.valueOf(entityJSON != null));
+                if(entityJSON != null){
+                    response.appendString(",\"data\":").appendBuffer(entityJSON);
+                }
+                response.appendString("}");
+            }
+            rc.response().setStatusCode(200).end(response.appendString("]}"));
+        };
+        if(misses.isEmpty()){
+            send.handle(new ArrayList<>());
+        }else{
+            q.findWithOptions(Filters.in("_id", misses), findOptions, send);
+        }
+    }
+
+    /**
+     * Translate a patch into update operators. Known fields are set, fields with a null value are unset
+     * and the version is incremented, so concurrent patches can be detected with If-Match.
+     * @param data JsonObject with the patch
+     * @return Bson update
+     */
+    static Bson createPatchUpdate( JsonObject data ){
+        AppEntity e = new AppEntity();
+        e.setJSON(data, true);
+        JsonObject model = e.getJSON();
+        JsonObject set = new JsonObject();
+        JsonObject unset = new JsonObject();
+        for(String field : data.fieldNames()){
+            if("_id".equals(field) || "version".equals(field) || !model.containsKey(field)){
+                continue;
+            }
+            if(data.getValue(field) == null){
+                unset.put(field, "");
+            }else{
+                set.put(field, model.getValue(field));
+            }
+        }
+        JsonObject update = new JsonObject().put("$inc", new JsonObject().put("version", 1));
+        if(!set.isEmpty()){
+            update.put("$set", set);
+        }
+        if(!unset.isEmpty()){
+            update.put("$unset", unset);
+        }
+        return AppCommons.convertJsonToBson(update);
+    }
+
+    /**
+     * Get the ETag of an entity, which is its version.
+     * @param entity AppEntity
+     * @return String quoted version
+     */
+    private static String getETag( AppEntity entity ){
+        return "\"" + entity.getVersion() + "\"";
+    }
+
+    /**
+     * Parse the version of an ETag, weak ETags are accepted.
+     * @param etag ETag, e.g. "3" or W/"3"
+     * @return Integer version or null if the ETag is invalid.
+     */
+    private static Integer parseETag( String etag ){
+        String value = etag.trim();
+        if(value.startsWith("W/")){
+            value = value.substring(2);
+        }
+        if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")){
+            value = value.substring(1, value.length() - 1);
+        }
+        try {
+            return Integer.parseInt(value);
+        }catch(NumberFormatException ex){
+            return null;
+        }
+    }
+
+    /**
+     * Parse the body of a bulk request, either a json array or newline delimited json with one operation per line.
+     * Invalid bodies are answered with an error.
+     * @param rc RoutingContext
+     * @param maxOperations Maximum number of operations per request
+     * @return JsonArray with operations or null if an error was sent.
+     */
+    private static JsonArray parseBulkRequest( RoutingContext rc, int maxOperations ){
+        String body = rc.getBodyAsString();
+        JsonArray operations = new JsonArray();
+        JsonArray errors = new JsonArray();
+        if(body != null && body.trim().startsWith("[")){
+            try {
+                operations = new JsonArray(body);
+            }catch(DecodeException decodeEx){
+                errors.add(new JsonObject().put("data", decodeEx.getMessage()));
+            }
+        }else if(body != null){
+            String[] lines = body.split("\n");
+            for(int i = 0; i < lines.length; i++){
+                if(lines[i].trim().isEmpty()){
+                    continue;
+                }
+                try {
+                    operations.add(new JsonObject(lines[i]));
+                }catch(DecodeException decodeEx){
+                    errors.add(new JsonObject().put("line " + (i + 1), decodeEx.getMessage()));
+                }
+            }
+        }
+        if(errors.size() > 0){
+            AppJsonMessages.sendMessage(rc, AppJsonMessages.INVALID_JSON, new JsonObject().put("errors", errors));
+            return null;
+        }
+        if(operations.size() == 0){
+            errors.add(new JsonObject().put("operations", "required"));
+        }else if(maxOperations > 0 && operations.size() > maxOperations){
+            errors.add(new JsonObject().put("operations", "At most " + maxOperations + " operations per request."));
+        }
+        if(errors.size() > 0){
+            AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+            return null;
+        }
+        return operations;
+    }
+
+    /**
+     * Check a single bulk operation, e.g. {"op":"insert","data":{...}}, {"op":"update","_id":"...","data":{...}}
+     * or {"op":"delete","_id":"..."}. The data of inserts and updates is checked with AppEntity.validate.
+     * @param value Operation from the request
+     * @param result JsonObject with the result of this operation, the type of the operation is added.
+     * @param errors JsonArray to add the errors to
+     * @param callback Handler called with the errors when the operation is checked.
+     */
+    private static void validateBulkOperation( Object value, JsonObject result, JsonArray errors, Handler<JsonArray> callback ){
+        if(!(value instanceof JsonObject)){
+            errors.add(new JsonObject().put("operation", "Must be a json object."));
+            callback.handle(errors);
+            return;
+        }
+        JsonObject operation = (JsonObject) value;
+        Object op = operation.getValue("op");
+        Object id = operation.getValue("_id");
+        Object data = operation.getValue("data");
+        result.put("op", op instanceof String ? (String) op : null);
+        if(id instanceof String){
+            result.put("_id", (String) id);
+        }
+        if(!BULK_INSERT.equals(op) && !BULK_UPDATE.equals(op) && !BULK_DELETE.equals(op)){
+            errors.add(new JsonObject().put("op", "Must be one of " + BULK_INSERT + ", " + BULK_UPDATE + ", " + BULK_DELETE + "."));
+        }
+        if((BULK_UPDATE.equals(op) || BULK_DELETE.equals(op)) && !(id instanceof String)){
+            errors.add(new JsonObject().put("_id", "required"));
+        }
+        if((BULK_INSERT.equals(op) || BULK_UPDATE.equals(op)) && !(data instanceof JsonObject)){
+            errors.add(new JsonObject().put("data", "required"));
+        }
+        if(errors.size() > 0 || BULK_DELETE.equals(op)){
+            callback.handle(errors);
+            return;
+        }
+        AppEntity e = new AppEntity();
+        e.setJSON((JsonObject) data, BULK_UPDATE.equals(op));
+        e.validate(validationErrors -> {
+            errors.addAll(validationErrors);
+            callback.handle(errors);
+        });
+    }
+
+    /**
+     * Create the write model of a valid bulk operation. Inserts get their id assigned here, so it can be reported.
+     * Updates are applied like patches, so the document does not have to be read first.
+     * @param operation Valid operation
+     * @param result JsonObject with the result of this operation
+     * @return WriteModel
+     */
+    private static WriteModel<AppEntity> createBulkModel( JsonObject operation, JsonObject result ){
+        String op = operation.getString("op");
+        String id = operation.getString("_id", null);
+        JsonObject data = operation.getJsonObject("data");
+        if(BULK_INSERT.equals(op)){
+            AppEntity e = new AppEntity();
+            e.setJSON(data, false);
+            if(e.getId() == null){
+                e.setId(new ObjectId().toHexString());
+            }
+            result.put("_id", e.getId());
+            return new InsertOneModel<>(e);
+        }
+        if(BULK_UPDATE.equals(op)){
+            return new UpdateOneModel<>(Filters.eq("_id", id), createPatchUpdate(data));
+        }
+        return new DeleteOneModel<>(Filters.eq("_id", id));
+    }
+
+    /**
+     * Execute the write models batch by batch and record the result of every operation.
+     * @param q Any AppEntity
+     * @param models Write models of all valid operations
+     * @param indexes Index of each write model in the request
+     * @param offset Index of the first write model of this batch
+     * @param batchSize Write models per batch
+     * @param ordered Stop at the first failed operation
+     * @param results Results of all operations
+     * @param summary JsonObject with the counts of all batches
+     * @param done Handler called when all batches are executed.
+     */
+    private static void executeBulk( AppEntity q, List<WriteModel<AppEntity>> models, List<Integer> indexes, int offset, int batchSize,
+                                     boolean ordered, JsonObject[] results, JsonObject summary, Handler<Void> done ){
+        if(offset >= models.size()){
+            done.handle(null);
+            return;
+        }
+        int end = Math.min(offset + batchSize, models.size());
+        q.bulkWrite(models.subList(offset, end), ordered, bulkResult -> {
+            BulkWriteResult writeResult = null;
+            int failedFrom = end;
+            Map<Integer, JsonObject> writeErrors = new HashMap<>();
+            if(bulkResult.succeeded()){
+                writeResult = bulkResult.result();
+            }else if(bulkResult.cause() instanceof MongoBulkWriteException){
+                MongoBulkWriteException bulkException = (MongoBulkWriteException) bulkResult.cause();
+                writeResult = bulkException.getWriteResult();
+                for(BulkWriteError writeError : bulkException.getWriteErrors()){
+                    writeErrors.put(offset + writeError.getIndex(), new JsonObject().put("code", writeError.getCode()).put("message", writeError.getMessage()));
+                    failedFrom = Math.min(failedFrom, offset + writeError.getIndex());
+                }
+            }else{
+                failedFrom = offset;
+                for(int i = offset; i < end; i++){
+                    writeErrors.put(i, new JsonObject().put("message", bulkResult.cause().getMessage()));
+                }
+            }
+            if(writeResult != null){
+                summary.put("inserted", summary.getInteger("inserted") + writeResult.getInsertedCount());
+                summary.put("matched", summary.getInteger("matched") + writeResult.getMatchedCount());
+                summary.put("modified", summary.getInteger("modified") + (writeResult.isModifiedCountAvailable() ? writeResult.getModifiedCount() : 0));
+                summary.put("deleted", summary.getInteger("deleted") + writeResult.getDeletedCount());
+            }
+            for(int i = offset; i < end; i++){
+                JsonObject result = results[indexes.get(i)];
+                if(writeErrors.containsKey(i)){
+                    result.put("status", BULK_FAILED).put("errors", new JsonArray().add(writeErrors.get(i)));
+                }else if(ordered && i > failedFrom){
+                    result.put("status", BULK_SKIPPED);
                 }else{
-                    AppJsonMessages.sendMessage(rc, AppJsonMessages.NOT_FOUND);
+                    result.put("status", BULK_OK);
                 }
-            });
+            }
+            if(ordered && !writeErrors.isEmpty()){
+                for(int i = end; i < models.size(); i++){
+                    results[indexes.get(i)].put("status", BULK_SKIPPED);
+                }
+                done.handle(null);
+            }else{
+                executeBulk(q, models, indexes, end, batchSize, ordered, results, summary, done);
+            }
         });
+    }
 
 
+    /**
+     * Parse the ?fields= or ?exclude= parameter into a mongo projection, an invalid combination is answered with an error.
+     * @param rc RoutingContext
+     * @return JsonObject with the projection, empty for all fields or null if an error was sent.
+     */
+    private static JsonObject getProjection( RoutingContext rc ){
+        String fields = rc.request().params().get("fields");
+        String exclude = rc.request().params().get("exclude");
+        JsonObject projection = new JsonObject();
+        if(fields != null && exclude != null){
+            JsonArray errors = new JsonArray().add(new JsonObject().put("fields", "Use either fields or exclude."));
+            AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+            return null;
+        }
+        String list = fields != null ? fields : exclude;
+        if(list != null){
+            for(String field : list.split(",")){
+                String fieldName = field.trim();
+                if(fieldName.isEmpty() || fieldName.startsWith("$")){
+                    continue;
+                }
+                projection.put(fieldName, fields != null ? 1 : 0);
+            }
+        }
+        return projection;
+    }
 
 
-        return router;
+    /**
+     * Keep the cached totals up to date after entities were created, deleted or patched.
+     * @param entity Any AppEntity
+     * @param delta Number of created (positive) or deleted (negative) entities, 0 for updates.
+     */
+    private static void entitiesChanged( AppEntity entity, long delta ){
+        AppCountCache countCache = AppCountCache.getInstance();
+        if(countCache != null){
+            countCache.changed(entity.getCollectionName(), delta);
+        }
     }
 
 
@@ -0,0 +1,466 @@
+package eu.kuffel.vxapp.routers;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import eu.kuffel.vxapp.Application;
+import eu.kuffel.vxapp.models.AppClient;
+import eu.kuffel.vxapp.models.AppUser;
+import eu.kuffel.vxapp.utils.AppFileCache;
+import eu.kuffel.vxapp.utils.AppJsonMessages;
+import eu.kuffel.vxapp.utils.MongoGridFSClient;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Upload and download of gridfs files.
+ * Uploads are streamed from the request into gridfs, their routes must not be handled by the BodyHandler.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppFileRouter {
+
+    private static final long DEFAULT_MAX_SIZE = 1024L*1024*1024; // 1 GB
+    private static final long DEFAULT_UPLOAD_TTL_MS = 24*3600*1000L; // 1 day
+    private static final long DEFAULT_UPLOAD_CLEANUP_INTERVAL_MS = 3600*1000L; // 1 hour
+
+    private static final String FILES_PATH = "/api/files";
+    private static final String UPLOADS_PATH = FILES_PATH + "/uploads/";
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final String HASH_HEADER = "X-Content-SHA256";
+    private static final String OFFSET_HEADER = "Upload-Offset";
+
+    private static Router router;
+    private static boolean uploadCleanupStarted = false;
+
+    public static Router router(Vertx vertx) {
+        return router(vertx, new JsonObject());
+    }
+
+    /**
+     * Create the file router.
+     * @param vertx Vertx instance
+     * @param filesConfig JsonObject with optional maxsize (bytes, 0 for no limit) of uploads,
+     *                    uploadttl (ms) and uploadcleanupinterval (ms) of resumable upload sessions
+     * @return Router
+     */
+    public static Router router(Vertx vertx, JsonObject filesConfig) {
+        router = Router.router(vertx);
+        long maxSize = filesConfig.getLong("maxsize", DEFAULT_MAX_SIZE);
+        long uploadTtl = filesConfig.getLong("uploadttl", DEFAULT_UPLOAD_TTL_MS);
+        long uploadCleanupInterval = filesConfig.getLong("uploadcleanupinterval", DEFAULT_UPLOAD_CLEANUP_INTERVAL_MS);
+
+        // Raw request body, e.g. POST /api/files?filename=report.pdf with Content-Type application/pdf
+        router.post("/files").handler(rc -> {
+            HttpServerRequest request = rc.request();
+            String filename = request.getParam("filename");
+            if(filename == null || filename.trim().isEmpty()){
+                request.resume();
+                JsonArray errors = new JsonArray().add(new JsonObject().put("filename", "Must not be empty."));
+                AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+                return;
+            }
+            long contentLength = getContentLength(request);
+            if(maxSize > 0 && contentLength > maxSize){
+                request.resume();
+                AppJsonMessages.sendMessage(rc, AppJsonMessages.PAYLOAD_TOO_LARGE, new JsonObject().put("maxsize", maxSize));
+                return;
+            }
+            // Optional hash of the content, duplicates of stored files are then only hashed and not written.
+            String expectedHash = request.getHeader(HASH_HEADER);
+            if(expectedHash != null){
+                expectedHash = expectedHash.trim().toLowerCase();
+                if(!expectedHash.matches("[0-9a-f]{64}")){
+                    request.resume();
+                    JsonArray errors = new JsonArray().add(new JsonObject().put(HASH_HEADER, "Must be the hex SHA-256 hash of the content."));
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+                    return;
+                }
+            }
+            JsonObject metadata = new JsonObject();
+            metadata.put("contentType", request.getHeader("Content-Type") != null ? request.getHeader("Content-Type") : DEFAULT_CONTENT_TYPE);
+            AppUser user = (AppUser) rc.data().get("user");
+            if(user != null){
+                metadata.put("user", user.getId());
+            }
+            Application.gridfs.uploadStream(filename, metadata, request, maxSize, expectedHash, uploaded -> {
+                if(uploaded.succeeded()){
+                    sendStoredFile(rc, uploaded.result());
+                }else if(uploaded.cause() instanceof MongoGridFSClient.SizeLimitExceededException){
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.PAYLOAD_TOO_LARGE, new JsonObject().put("maxsize", maxSize));
+                }else if(uploaded.cause() instanceof MongoGridFSClient.HashMismatchException){
+                    JsonArray errors = new JsonArray().add(new JsonObject().put(HASH_HEADER, "Does not match the content."));
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+                }else if(!rc.response().closed()){
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVER_ERROR);
+                }
+            });
+        });
+
+        // Resumable uploads: create a session, PUT the content from the received bytes on, finalize it.
+        // POST /api/files/uploads?filename=video.mp4&length=2147483648&contentType=video/mp4
+        router.post("/files/uploads").handler(rc -> {
+            HttpServerRequest request = rc.request();
+            String filename = request.getParam("filename");
+            Long length = null;
+            JsonArray errors = new JsonArray();
+            if(filename == null || filename.trim().isEmpty()){
+                errors.add(new JsonObject().put("filename", "Must not be empty."));
+            }
+            if(request.getParam("length") != null){
+                length = parseLong(request.getParam("length"));
+                if(length == null || length < 0){
+                    errors.add(new JsonObject().put("length", "Must be a positive number of bytes."));
+                }
+            }
+            if(!errors.isEmpty()){
+                AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+                return;
+            }
+            if(maxSize > 0 && length != null && length > maxSize){
+                AppJsonMessages.sendMessage(rc, AppJsonMessages.PAYLOAD_TOO_LARGE, new JsonObject().put("maxsize", maxSize));
+                return;
+            }
+            JsonObject metadata = new JsonObject();
+            metadata.put("contentType", request.getParam("contentType") != null ? request.getParam("contentType") : DEFAULT_CONTENT_TYPE);
+            AppUser user = (AppUser) rc.data().get("user");
+            if(user != null){
+                metadata.put("user", user.getId());
+            }
+            Application.gridfs.createUpload(filename, metadata, length, getOwner(rc), created -> {
+                if(created.succeeded()){
+                    rc.response().setStatusCode(201).end(created.result().encode());
+                }else{
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVER_ERROR);
+                }
+            });
+        });
+
+        // Sessions of other users or clients are not found.
+        router.get("/files/uploads/:id").handler(rc -> {
+            Application.gridfs.getUpload(rc.request().getParam("id"), getOwner(rc), found -> {
+                if(found.succeeded() && found.result() != null){
+                    rc.response().end(found.result().encode());
+                }else{
+                    AppJsonMessages.sendMessage(rc, found.succeeded() ? AppJsonMessages.NOT_FOUND : AppJsonMessages.SERVER_ERROR);
+                }
+            });
+        });
+
+        // Raw request body, the offset (Upload-Offset header or offset parameter) must be the received bytes of the session.
+        router.put("/files/uploads/:id").handler(rc -> {
+            HttpServerRequest request = rc.request();
+            String offsetParam = request.getHeader(OFFSET_HEADER) != null ? request.getHeader(OFFSET_HEADER) : request.getParam("offset");
+            Long offset = offsetParam != null ? parseLong(offsetParam) : null;
+            if(offset == null || offset < 0){
+                request.resume();
+                JsonArray errors = new JsonArray().add(new JsonObject().put(OFFSET_HEADER, "Must be the received bytes of the upload."));
+                AppJsonMessages.sendMessage(rc, AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors", errors));
+                return;
+            }
+            Application.gridfs.writeUpload(request.getParam("id"), getOwner(rc), offset, request, maxSize, written -> {
+                if(written.succeeded()){
+                    if(written.result() != null){
+                        rc.response().putHeader(OFFSET_HEADER, String.valueOf(written.result().getLong("received"))).end(written.result().encode());
+                    }else{
+                        AppJsonMessages.sendMessage(rc, AppJsonMessages.NOT_FOUND);
+                    }
+                }else{
+                    sendUploadFailure(rc, written.cause(), maxSize);
+                }
+            });
+        });
+
+        router.post("/files/uploads/:id/finalize").handler(rc -> {
+            Application.gridfs.finalizeUpload(rc.request().getParam("id"), getOwner(rc), finalized -> {
+                if(finalized.succeeded()){
+                    if(finalized.result() != null){
+                        sendStoredFile(rc, finalized.result());
+                    }else{
+                        AppJsonMessages.sendMessage(rc, AppJsonMessages.NOT_FOUND);
+                    }
+                }else{
+                    sendUploadFailure(rc, finalized.cause(), maxSize);
+                }
+            });
+        });
+
+        router.delete("/files/uploads/:id").handler(rc -> {
+            Application.gridfs.deleteUpload(rc.request().getParam("id"), getOwner(rc), deleted -> {
+                if(deleted.succeeded() && deleted.result()){
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.RESSOURCE_DELETED);
+                }else{
+                    AppJsonMessages.sendMessage(rc, deleted.succeeded() ? AppJsonMessages.NOT_FOUND : AppJsonMessages.SERVER_ERROR);
+                }
+            });
+        });
+
+        startUploadCleanup(vertx, uploadTtl, uploadCleanupInterval);
+
+        // Supports single byte ranges (Range, If-Range) and conditional requests (If-None-Match)
+        router.get("/files/:id").handler(rc -> {
+            String id = rc.request().getParam("id");
+            if(id == null || !ObjectId.isValid(id)){
+                AppJsonMessages.sendMessage(rc, AppJsonMessages.NOT_FOUND);
+                return;
+            }
+            Application.gridfs.getFile(new ObjectId(id), file -> {
+                if(file == null){
+                    AppJsonMessages.sendMessage(rc, AppJsonMessages.NOT_FOUND);
+                    return;
+                }
+                sendFile(rc.request(), rc.response(), file);
+            });
+        });
+
+        return router;
+    }
+
+    /**
+     * Cleanup abandoned upload sessions in the specified interval, the timer is started once for all router instances.
+     */
+    private static synchronized void startUploadCleanup( Vertx vertx, long uploadTtl, long uploadCleanupInterval ){
+        if(uploadCleanupStarted){
+            return;
+        }
+        uploadCleanupStarted = true;
+        vertx.setPeriodic(uploadCleanupInterval, handler -> {
+            Application.gridfs.deleteExpiredUploads(uploadTtl);
+        });
+    }
+
+    /**
+     * Answer a completed upload, deduplicated uploads have their own filename and metadata and share the stored content.
+     * @param rc RoutingContext
+     * @param file JsonObject with _id, sha256, length, deduplicated, filename and metadata
+     */
+    private static void sendStoredFile( RoutingContext rc, JsonObject file ){
+        rc.response().setStatusCode(201).end(file.encode());
+    }
+
+    private static void sendUploadFailure( RoutingContext rc, Throwable cause, long maxSize ){
+        if(cause instanceof MongoGridFSClient.UploadConflictException){
+            long received = ((MongoGridFSClient.UploadConflictException) cause).getReceived();
+            AppJsonMessages.sendMessage(rc, AppJsonMessages.CONFLICT, new JsonObject().put("received", received));
+        }else if(cause instanceof MongoGridFSClient.SizeLimitExceededException){
+            AppJsonMessages.sendMessage(rc, AppJsonMessages.PAYLOAD_TOO_LARGE, new JsonObject().put("maxsize", maxSize));
+        }else if(!rc.response().closed()){
+            AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Send a gridfs file or the requested range of it, from the file cache or streamed from gridfs.
+     * @param request HttpServerRequest with the conditional and range headers
+     * @param response HttpServerResponse
+     * @param file GridFSFile
+     */
+    private static void sendFile( HttpServerRequest request, HttpServerResponse response, GridFSFile file ){
+        long length = file.getLength();
+        String etag = getETag(file);
+        response.putHeader("ETag", etag);
+        response.putHeader("Accept-Ranges", "bytes");
+        if(matchesETag(request.getHeader("If-None-Match"), etag)){
+            response.setStatusCode(304).end();
+            return;
+        }
+        response.putHeader("Content-Type", getContentType(file));
+        response.setChunked(false);
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if(range != null && (ifRange == null || ifRange.trim().equals(etag))){
+            long[] bounds = parseRange(range, length);
+            if(bounds == null){
+                response.putHeader("Content-Range", "bytes */" + length);
+                response.putHeader("Content-Length", "0");
+                response.setStatusCode(416).end();
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            response.setStatusCode(206);
+            response.putHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+        response.putHeader("Content-Length", String.valueOf(end - start + 1));
+        if(length == 0){
+            response.end();
+            return;
+        }
+        AppFileCache fileCache = AppFileCache.getInstance();
+        String cachedPath = fileCache != null ? fileCache.get(file.getObjectId().toHexString()) : null;
+        if(cachedPath != null){
+            long rangeStart = start;
+            long rangeEnd = end;
+            response.sendFile(cachedPath, start, end - start + 1, sent -> {
+                // The cached file can be evicted in the meantime.
+                if(sent.failed() && !response.headWritten()){
+                    streamFile(response, file, rangeStart, rangeEnd);
+                }
+            });
+            return;
+        }
+        streamFile(response, file, start, end);
+        // Range requests of players and download managers would read the whole file again for every part,
+        // so the cache is only filled by complete downloads.
+        if(fileCache != null && response.getStatusCode() == 200){
+            fileCache.fill(file);
+        }
+    }
+
+    /**
+     * Stream a range of a file from gridfs to the response.
+     * @param response HttpServerResponse with all headers set
+     * @param file GridFSFile
+     * @param start First byte (inclusive)
+     * @param end Last byte (inclusive)
+     */
+    private static void streamFile( HttpServerResponse response, GridFSFile file, long start, long end ){
+        MongoGridFSClient.StreamDownload download = Application.gridfs.downloadStream(file, start, end, response, downloaded -> {
+            if(downloaded.succeeded()){
+                response.end();
+            }else if(!response.closed()){
+                // The headers are already sent, the client detects the short response.
+                response.close();
+            }
+        });
+        response.closeHandler(v -> download.cancel());
+    }
+
+    /**
+     * Parse a single byte range, e.g. bytes=0-499, bytes=500- or bytes=-500.
+     * @param range Value of the Range header
+     * @param length File length
+     * @return First and last byte (inclusive) or null if the range is invalid or not satisfiable.
+     */
+    static long[] parseRange( String range, long length ){
+        range = range.trim();
+        if(!range.startsWith("bytes=") || range.indexOf(',') >= 0){
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if(dash < 0){
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if(first.isEmpty()){
+                long suffix = Long.parseLong(last);
+                if(suffix <= 0){
+                    return null;
+                }
+                start = Math.max(length - suffix, 0);
+                end = length - 1;
+            }else{
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            }
+            if(start < 0 || start > end || start >= length){
+                return null;
+            }
+            return new long[]{start, end};
+        }catch (NumberFormatException e){
+            return null;
+        }
+    }
+
+    /**
+     * Get the ETag of a file, the md5 of the content or the id if gridfs has no md5.
+     * @param file GridFSFile
+     * @return Quoted ETag
+     */
+    private static String getETag( GridFSFile file ){
+        String md5 = file.getMD5();
+        return "\"" + (md5 != null ? md5 : file.getObjectId().toHexString()) + "\"";
+    }
+
+    static boolean matchesETag( String ifNoneMatch, String etag ){
+        if(ifNoneMatch == null){
+            return false;
+        }
+        for(String candidate : ifNoneMatch.split(",")){
+            candidate = candidate.trim();
+            if(candidate.startsWith("W/")){
+                candidate = candidate.substring(2);
+            }
+            if(candidate.equals("*") || candidate.equals(etag)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getContentType( GridFSFile file ){
+        Document metadata = file.getMetadata();
+        String contentType = metadata != null ? metadata.getString("contentType") : null;
+        return contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
+    }
+
+    /**
+     * Check if the request is a streamed upload, which must not be read by the BodyHandler.
+     * @param request HttpServerRequest
+     * @return true if the request body is streamed by this router.
+     */
+    public static boolean isStreamingUpload( HttpServerRequest request ){
+        String path = request.path() != null ? request.path() : "";
+        return (request.method() == HttpMethod.POST && FILES_PATH.equals(path))
+                || (request.method() == HttpMethod.PUT && path.startsWith(UPLOADS_PATH));
+    }
+
+    /**
+     * Check if the request body or the response is streamed by this router, these requests can take longer than the request timeout.
+     * @param request HttpServerRequest
+     * @return true if the request is a streamed upload, a download or finalizes an upload.
+     */
+    public static boolean isStreaming( HttpServerRequest request ){
+        String path = request.path() != null ? request.path() : "";
+        return isStreamingUpload(request)
+                || (request.method() == HttpMethod.GET && path.startsWith(FILES_PATH + "/"))
+                || (request.method() == HttpMethod.POST && path.startsWith(UPLOADS_PATH) && path.endsWith("/finalize"));
+    }
+
+    /**
+     * Get the owner of resumable uploads, the user if one is logged in, otherwise the client.
+     * @param rc RoutingContext
+     * @return String
+     */
+    private static String getOwner( RoutingContext rc ){
+        AppUser user = (AppUser) rc.data().get("user");
+        if(user != null){
+            return "user:" + user.getId();
+        }
+        AppClient client = (AppClient) rc.data().get("client");
+        return "client:" + (client != null ? client.getId() : null);
+    }
+
+    private static Long parseLong( String value ){
+        try {
+            return Long.parseLong(value.trim());
+        }catch (NumberFormatException e){
+            return null;
+        }
+    }
+
+    private static long getContentLength( HttpServerRequest request ){
+        try {
+            String contentLength = request.getHeader("Content-Length");
+            return contentLength != null ? Long.parseLong(contentLength) : -1;
+        }catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+}
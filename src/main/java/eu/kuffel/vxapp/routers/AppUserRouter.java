@@ -2,14 +2,20 @@ package eu.kuffel.vxapp.routers;
 
 import eu.kuffel.vxapp.models.AppClient;
 import eu.kuffel.vxapp.models.AppUser;
+import eu.kuffel.vxapp.utils.AppClientCache;
+import eu.kuffel.vxapp.utils.AppClientToken;
 import eu.kuffel.vxapp.utils.AppCommons;
+import eu.kuffel.vxapp.utils.AppHashingService;
 import eu.kuffel.vxapp.utils.AppJsonMessages;
-import io.vertx.core.CompositeFuture;
+import eu.kuffel.vxapp.utils.AppUserCache;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 import org.apache.commons.validator.routines.EmailValidator;
 
 import java.time.Instant;
@@ -49,84 +55,72 @@ public class AppUserRouter {
                 if(user != null){
 
                     String username = null;
-                    boolean changeUsername = false;
                     String emailaddress = null;
-                    boolean changeEmailaddress = false;
 
                     if(data.containsKey("username")){
                         username = data.getString("username",null);
-                        if(username != null && username.length() > USERNAME_MIN_LENGTH ){
-                            changeUsername = true;
-                        }else{
+                        if(username == null || username.length() <= USERNAME_MIN_LENGTH ){
                             errors.add(new JsonObject().put("username", "Must be at least "+USERNAME_MIN_LENGTH+" characters long."));
                         }
                     }
 
                     if(data.containsKey("emailaddress")){
                         emailaddress = data.getString("emailaddress",null);
-                        if(EmailValidator.getInstance().isValid(emailaddress)){
-                            changeEmailaddress = true;
-                        }else{
+                        if(!EmailValidator.getInstance().isValid(emailaddress)){
                             errors.add(new JsonObject().put("emailaddress","Invalid emailaddress"));
                         }
                     }
 
+                    String changePassword = null;
                     if(data.containsKey("password")){
-                        String changePassword = data.getString("password",null);
-                        if(changePassword.length() < PASSWORD_MIN_LENGTH){
+                        changePassword = data.getString("password",null);
+                        if(changePassword == null || changePassword.length() < PASSWORD_MIN_LENGTH){
                             errors.add(new JsonObject().put("password", "Must be at least "+PASSWORD_MIN_LENGTH+" characters long."));
-                        }else{
-                            user.setPassword(changePassword);
+                            changePassword = null;
                         }
                     }
-                    if(data.containsKey("language")){
-                        String changeLanguage = data.getString("language",null);
-                        user.setLanguage(changeLanguage);
-                    }
-                    if(data.containsKey("timezone")){
-                        String changeTimezone = data.getString("timezone",null);
-                        user.setTimezone(changeTimezone);
-                    }
-
 
-
-                    Future<AppUser> checkUsernameFuture = Future.future();
-                    Future<AppUser> checkEmailFuture = Future.future();
-                    AppUser.findByUsername(username, userByName -> {
-                        checkUsernameFuture.complete(userByName);
-                    });
-                    AppUser.findByEmailaddress(emailaddress, userByMail -> {
-                        checkEmailFuture.complete(userByMail);
-                    });
-                    CompositeFuture.all(checkUsernameFuture,checkEmailFuture).setHandler(ar ->{
-
-                        boolean usernameTaken = checkUsernameFuture.result() != null;
-                        boolean emailaddressTaken = checkEmailFuture.result() != null;
-
-                        if(data.containsKey("username")){
-                            if(usernameTaken){
-                                errors.add(new JsonObject().put("username", "Username already in use."));
-                            }else{
-                                user.setUsername(data.getString("username",null));
-                            }
+                    if(errors.size() == 0){
+                        // The cached user is shared, the changes are applied to a copy and cached once they are saved.
+                        AppUser changed = user.createFromJson(user.getJSON().copy());
+                        // Uniqueness of username and emailaddress is enforced by the unique indexes on save.
+                        if(username != null){
+                            changed.setUsername(username.toLowerCase());
                         }
-
-                        if(data.containsKey("emailaddress")){
-                            if(emailaddressTaken){
-                                errors.add(new JsonObject().put("emailaddress", "Emailaddress already in use."));
-                            }else{
-                                user.setEmailaddress(data.getString("emailaddress",null));
-                            }
+                        if(emailaddress != null){
+                            changed.setEmailaddress(emailaddress.toLowerCase());
+                        }
+                        if(data.containsKey("language")){
+                            changed.setLanguage(data.getString("language",null));
+                        }
+                        if(data.containsKey("timezone")){
+                            changed.setTimezone(data.getString("timezone",null));
                         }
-                        if(errors.size() == 0){
-                            user.save(doneHandler ->{
-                                JsonObject userJSON = user.getJSON("_id","password","verificationcode","resetcode");
-                                rc.response().setStatusCode(200).end(userJSON.encode());
+                        Handler<AsyncResult<AppUser>> saveUser = passwordResult -> {
+                            if(passwordResult.failed()){
+                                sendHashingError(rc, passwordResult.cause());
+                                return;
+                            }
+                            changed.saveWithResult(saveResult ->{
+                                if(saveResult.succeeded()){
+                                    AppUserCache.getInstance().invalidate(changed.getId());
+                                    JsonObject userJSON = changed.getJSON("_id","password","verificationcode","resetcode");
+                                    rc.response().setStatusCode(200).end(userJSON.encode());
+                                }else if(addDuplicateKeyError(errors, saveResult.cause())){
+                                    AppJsonMessages.sendMessage(rc, AppJsonMessages.PATCH_FAILED, new JsonObject().put("errors",errors));
+                                }else{
+                                    AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVER_ERROR);
+                                }
                             });
+                        };
+                        if(changePassword != null){
+                            changed.setPassword(changePassword, saveUser);
                         }else{
-                            AppJsonMessages.sendMessage(rc, AppJsonMessages.PATCH_FAILED, new JsonObject().put("errors",errors));
+                            saveUser.handle(Future.succeededFuture(changed));
                         }
-                    });
+                    }else{
+                        AppJsonMessages.sendMessage(rc, AppJsonMessages.PATCH_FAILED, new JsonObject().put("errors",errors));
+                    }
                 }else{
                     AppJsonMessages.sendMessage(rc,AppJsonMessages.ACCESS_DENIED);
                 }
@@ -142,17 +136,22 @@ public class AppUserRouter {
             JsonObject data = AppCommons.parseJsonRequest(rc, required);
             if(data != null && user != null){
                 if( user.getEmailaddress().equalsIgnoreCase(data.getString("emailaddress",null)) ){
-                    if(user.checkPassword(data.getString("password",null))){
-                        client.setUserId(null);
-                        client.save(clientSaved->{
-                            // TODO : Delete associated data in other collections.
-                            user.delete(userDeleted ->{
-                                AppJsonMessages.sendMessage(rc,AppJsonMessages.USER_DELETED);
+                    user.checkPassword(data.getString("password",null), checkResult -> {
+                        if(checkResult.failed()){
+                            sendHashingError(rc, checkResult.cause());
+                        }else if(checkResult.result()){
+                            client.updateUserId(null, clientSaved->{
+                                AppClientCache.getInstance().invalidate(client.getKey());
+                                // TODO : Delete associated data in other collections.
+                                user.delete(userDeleted ->{
+                                    AppUserCache.getInstance().invalidate(user.getId());
+                                    AppJsonMessages.sendMessage(rc,AppJsonMessages.USER_DELETED, renewClientToken(client));
+                                });
                             });
-                        });
-                    }else{
-                        AppJsonMessages.sendMessage(rc,AppJsonMessages.ACCESS_DENIED);
-                    }
+                        }else{
+                            AppJsonMessages.sendMessage(rc,AppJsonMessages.ACCESS_DENIED);
+                        }
+                    });
                 }else{
                     AppJsonMessages.sendMessage(rc,AppJsonMessages.ACCESS_DENIED);
                 }
@@ -184,35 +183,29 @@ public class AppUserRouter {
                     }
                 }
                 if(errors.size() == 0){
-                    AppUser.findByEmailaddress(emailaddress, emailaddressTaken -> {
-                        if(emailaddressTaken != null) {
-                            errors.add(new JsonObject().put("emailaddress", "Emailaddress already in use."));
+                    AppUser signupUser = new AppUser();
+                    if(username == null){
+                        signupUser.setUsername(emailaddress.toLowerCase());
+                    }else{
+                        signupUser.setUsername(username.toLowerCase());
+                    }
+                    signupUser.setEmailaddress(emailaddress.toLowerCase());
+                    signupUser.setActive(true);
+                    // TODO: signupUser.setLanguage()
+                    // TODO: signupUser.setTimezone()
+                    signupUser.setPassword(password, passwordResult -> {
+                        if(passwordResult.failed()){
+                            sendHashingError(rc, passwordResult.cause());
+                            return;
                         }
-                        AppUser.findByUsername(username, usernameTaken -> {
-                            if(usernameTaken != null){
-                                errors.add(new JsonObject().put("username", "Username already in use."));
-                            }
-                            if(errors.size() == 0){
-                                AppUser signupUser = new AppUser();
-                                if(username == null){
-                                    signupUser.setUsername(emailaddress.toLowerCase());
-                                }else{
-                                    signupUser.setUsername(username.toLowerCase());
-                                }
-                                signupUser.setEmailaddress(emailaddress.toLowerCase());
-                                signupUser.setPassword(password);
-                                signupUser.setActive(true);
-                                // TODO: signupUser.setLanguage()
-                                // TODO: signupUser.setTimezone()
-                                signupUser.save(savedUser ->{
-                                    if( savedUser!= null ){
-                                        AppJsonMessages.sendMessage(rc,AppJsonMessages.USER_CREATED);
-                                    }else{
-                                        AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVER_ERROR);
-                                    }
-                                });
-                            }else{
+                        // Uniqueness of username and emailaddress is enforced by the unique indexes.
+                        signupUser.saveWithResult(saveResult ->{
+                            if(saveResult.succeeded()){
+                                AppJsonMessages.sendMessage(rc,AppJsonMessages.USER_CREATED);
+                            }else if(addDuplicateKeyError(errors, saveResult.cause())){
                                 AppJsonMessages.sendMessage(rc,AppJsonMessages.CLIENT_ERROR, new JsonObject().put("errors",errors));
+                            }else{
+                                AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVER_ERROR);
                             }
                         });
                     });
@@ -228,15 +221,18 @@ public class AppUserRouter {
             String[] required = new String[]{ "password" };
             JsonObject data = AppCommons.parseJsonRequest(rc, required);
             if(data != null){
-                AppUser.authenticate(data,authenticatedUser -> {
-                    if(authenticatedUser != null){
+                AppUser.authenticate(data,authResult -> {
+                    AppUser authenticatedUser = authResult.succeeded() ? authResult.result() : null;
+                    if(authResult.failed()){
+                        sendHashingError(rc, authResult.cause());
+                    }else if(authenticatedUser != null){
                         AppClient client = (AppClient)rc.data().get("client");
-                        client.setUserId(authenticatedUser.getId());
-                        client.save( doneHandler -> {
+                        client.updateUserId(authenticatedUser.getId(), doneHandler -> {
+                            AppClientCache.getInstance().invalidate(client.getKey());
                             rc.data().put("user",authenticatedUser);
                             authenticatedUser.setLastactive(Instant.now());
-                            authenticatedUser.save( userUpdated -> {
-                                AppJsonMessages.sendMessage( rc,AppJsonMessages.USER_LOGGED_IN);
+                            authenticatedUser.updateLastactive( userUpdated -> {
+                                AppJsonMessages.sendMessage( rc,AppJsonMessages.USER_LOGGED_IN, renewClientToken(client));
                             });
                         });
                     }else{
@@ -250,9 +246,10 @@ public class AppUserRouter {
             AppClient client = (AppClient) rc.data().get("client");
             AppUser user = (AppUser) rc.data().get("user");
             if(client != null && user != null){
-                client.setUserId(null);
-                client.save(clientSaved ->{
-                    AppJsonMessages.sendMessage( rc,AppJsonMessages.USER_LOGGED_OUT);
+                client.updateUserId(null, clientSaved ->{
+                    AppClientCache.getInstance().invalidate(client.getKey());
+                    AppUserCache.getInstance().invalidate(user.getId());
+                    AppJsonMessages.sendMessage( rc,AppJsonMessages.USER_LOGGED_OUT, renewClientToken(client));
                 });
             }else{
                 AppJsonMessages.sendMessage(rc,AppJsonMessages.ACCESS_DENIED);
@@ -274,4 +271,53 @@ public class AppUserRouter {
     }
 
 
+    /**
+     * Add the "already in use" error of a violated unique index.
+     * @param errors JsonArray with errors
+     * @param cause Cause of a failed save
+     * @return True if the cause was a duplicate username or emailaddress.
+     */
+    private static boolean addDuplicateKeyError( JsonArray errors, Throwable cause ){
+        String index = AppUser.getDuplicateKeyIndex(cause);
+        if(AppUser.INDEX_USERNAME.equals(index)){
+            errors.add(new JsonObject().put("username", "Username already in use."));
+            return true;
+        }
+        if(AppUser.INDEX_EMAILADDRESS.equals(index)){
+            errors.add(new JsonObject().put("emailaddress", "Emailaddress already in use."));
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Answer a failed password hashing job, a saturated hashing pool results in a 503.
+     * @param rc RoutingContext
+     * @param cause Cause of the failed job
+     */
+    private static void sendHashingError( RoutingContext rc, Throwable cause ){
+        if(AppHashingService.isRejected(cause)){
+            rc.response().putHeader("Retry-After", "1");
+            AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVICE_UNAVAILABLE);
+        }else{
+            AppJsonMessages.sendMessage(rc, AppJsonMessages.SERVER_ERROR);
+        }
+    }
+
+
+    /**
+     * Revoke the current client tokens and issue a new one with the current userid.
+     * @param client AppClient
+     * @return JsonObject with the new token or null if token mode is disabled.
+     */
+    private static JsonObject renewClientToken( AppClient client ){
+        if(!AppClientToken.isEnabled()){
+            return null;
+        }
+        AppClientToken.revoke(client.getId());
+        return new JsonObject().put("token", AppClientToken.create(client.getId(), client.getUserId()));
+    }
+
+
 }
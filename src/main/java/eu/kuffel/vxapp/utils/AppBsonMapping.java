@@ -0,0 +1,33 @@
+package eu.kuffel.vxapp.utils;
+
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Direct BSON mapping of an AppDBO model, required by AppDBOCodec.
+ * Models without this mapping return no codec and use the JsonObject mapping.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public interface AppBsonMapping {
+
+    /**
+     * Write all fields except the _id.
+     * @param writer BsonWriter positioned inside the document
+     * @param encoderContext EncoderContext
+     */
+    void writeBson( BsonWriter writer, EncoderContext encoderContext );
+
+    /**
+     * Read a single field.
+     * @param name Field name
+     * @param reader BsonReader positioned at the value
+     * @param decoderContext DecoderContext
+     * @return True if the value was read, false to skip an unknown field.
+     */
+    boolean readBsonField( String name, BsonReader reader, DecoderContext decoderContext );
+
+}
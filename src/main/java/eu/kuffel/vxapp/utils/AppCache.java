@@ -0,0 +1,161 @@
+package eu.kuffel.vxapp.utils;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Simple size bounded in-memory cache with least recently used eviction and a time to live per entry.
+ * All methods are synchronized, so a single instance can be shared by multiple verticle instances.
+ *
+ * @author akuffel
+ * @param <K> Key type
+ * @param <V> Value type
+ * @version 1.0.0
+ */
+public class AppCache<K,V> {
+
+    private final int maxSize;
+    private final long ttl;
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+
+    /**
+     * Create a new cache.
+     * @param maxSize Max number of entries, the least recently used entry will be evicted if the cache is full.
+     * @param ttl Time to live in milliseconds, entries older than this are treated as missing. Use 0 to disable.
+     */
+    public AppCache( int maxSize, long ttl ){
+        this.maxSize = maxSize > 0 ? maxSize : 1;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Get a cached value.
+     * @param key Key
+     * @return Cached value or null if the key is unknown or expired.
+     */
+    public synchronized V get( K key ){
+        Objects.requireNonNull(key);
+        CacheEntry<V> entry = entries.get(key);
+        if(entry != null && isExpired(entry, System.currentTimeMillis())){
+            entries.remove(key);
+            evictions++;
+            entry = null;
+        }
+        if(entry == null){
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Add or replace a value, evicts the least recently used entry if the cache is full.
+     * @param key Key
+     * @param value Value, null values are not cached.
+     */
+    public synchronized void put( K key, V value ){
+        Objects.requireNonNull(key);
+        if(value == null){
+            entries.remove(key);
+            return;
+        }
+        entries.put(key, new CacheEntry<>(value, System.currentTimeMillis()));
+        while(entries.size() > maxSize){
+            Iterator<K> eldest = entries.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove a value from the cache.
+     * @param key Key
+     * @return The removed value or null.
+     */
+    public synchronized V remove( K key ){
+        Objects.requireNonNull(key);
+        CacheEntry<V> entry = entries.remove(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear(){
+        entries.clear();
+    }
+
+    /**
+     * Remove all expired entries, call this periodically to release memory of idle entries.
+     * @return Number of removed entries.
+     */
+    public synchronized int evictExpired(){
+        if(ttl <= 0){
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<Map.Entry<K, CacheEntry<V>>> it = entries.entrySet().iterator();
+        while(it.hasNext()){
+            if(isExpired(it.next().getValue(), now)){
+                it.remove();
+                removed++;
+            }
+        }
+        evictions += removed;
+        return removed;
+    }
+
+    /**
+     * Number of cached entries.
+     * @return size
+     */
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    /**
+     * Get hit, miss and eviction counters as json.
+     * @return JsonObject with cache metrics
+     */
+    public synchronized JsonObject getMetrics(){
+        JsonObject metrics = new JsonObject();
+        metrics.put("size", entries.size());
+        metrics.put("maxsize", maxSize);
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("evictions", evictions);
+        long lookups = hits + misses;
+        metrics.put("hitratio", lookups > 0 ? (double) hits / lookups : 0.0);
+        return metrics;
+    }
+
+    private boolean isExpired( CacheEntry<V> entry, long now ){
+        return ttl > 0 && now - entry.created > ttl;
+    }
+
+
+    private static class CacheEntry<V> {
+
+        private final V value;
+        private final long created;
+
+        private CacheEntry( V value, long created ){
+            this.value = value;
+            this.created = created;
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+package eu.kuffel.vxapp.utils;
+
+import eu.kuffel.vxapp.Application;
+import eu.kuffel.vxapp.models.AppClient;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.RedisOptions;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * In-memory cache for AppClient objects, keyed by the client key.
+ * The cache holds immutable snapshots, every request gets its own AppClient.
+ * Clients with a userid expire after a short time, unless invalidations are published on a Redis channel,
+ * so logins and logouts on other nodes are picked up. Clients authenticated with an AppClientToken are not
+ * cached, the token carries id and userid.
+ * Call counters and the last activity are not saved on every request, the changes are collected
+ * and written back periodically with one batched $inc/$set update command.
+ * One instance is shared by all webserver verticles.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppClientCache {
+
+    private static final int DEFAULT_SIZE = 10000;
+    private static final long DEFAULT_TTL_MS = 5*60*1000; // 5 minutes
+    private static final long DEFAULT_USER_TTL_MS = 10000;
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 5000;
+
+    private static final String CHANNEL = "client:invalidate";
+
+    private static AppClientCache instance;
+
+    private final AppCache<String, JsonObject> clients;
+    private final AppCache<String, JsonObject> userClients;
+    private final boolean redis;
+    private Map<String, PendingUpdate> pending = new HashMap<>();
+
+    private long flushes;
+    private long flushedUpdates;
+    private long flushErrors;
+
+
+    private AppClientCache( JsonObject config ){
+        this.clients = new AppCache<>(config.getInteger("size", DEFAULT_SIZE), config.getLong("ttl", DEFAULT_TTL_MS));
+        this.userClients = new AppCache<>(config.getInteger("size", DEFAULT_SIZE), config.getLong("userttl", DEFAULT_USER_TTL_MS));
+        this.redis = config.getBoolean("redis", false) && Application.cache != null;
+    }
+
+    /**
+     * Create the shared cache instance and start the periodic write-behind.
+     * Subsequent calls return the existing instance.
+     * @param vertx Vertx instance for the flush timer and the invalidation subscription
+     * @param config JsonObject with optional size, ttl (ms), userttl (ms, clients with a userid),
+     *               redis (boolean, publish invalidations) and flushinterval (ms)
+     * @return AppClientCache
+     */
+    public static synchronized AppClientCache create( Vertx vertx, JsonObject config ){
+        if(instance == null){
+            if(config == null){
+                config = new JsonObject();
+            }
+            instance = new AppClientCache(config);
+            long flushInterval = config.getLong("flushinterval", DEFAULT_FLUSH_INTERVAL_MS);
+            vertx.setPeriodic(flushInterval, handler -> {
+                instance.flush();
+                instance.clients.evictExpired();
+                instance.userClients.evictExpired();
+            });
+            if(instance.redis){
+                instance.subscribe(vertx);
+            }
+            AppMetrics.register("clientcache", instance::getMetrics);
+        }
+        return instance;
+    }
+
+    /**
+     * Get the shared cache instance.
+     * @return AppClientCache or null if create was not called yet.
+     */
+    public static AppClientCache getInstance(){
+        return instance;
+    }
+
+    /**
+     * Find a client by its key, the database is only queried if the client is not cached.
+     * @param key Client key
+     * @param callback Handler with a new client object or null if the key is unknown.
+     */
+    public void find( String key, Handler<AppClient> callback ){
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(callback);
+        JsonObject cached = clients.get(key);
+        if(cached == null){
+            cached = userClients.get(key);
+        }
+        if(cached != null){
+            callback.handle(new AppClient().setJSON(cached, false));
+            return;
+        }
+        new AppClient().findOneByFieldValue("key", key, loadedClient -> {
+            if(loadedClient != null){
+                JsonObject snapshot = loadedClient.getJSON();
+                if(loadedClient.getUserId() != null){
+                    userClients.put(key, snapshot);
+                }else{
+                    clients.put(key, snapshot);
+                }
+            }
+            callback.handle(loadedClient);
+        });
+    }
+
+    /**
+     * Get the client of a verified token without a database lookup.
+     * @param token Verified AppClientToken
+     * @return New AppClient with id and userid from the token
+     */
+    public AppClient fromToken( AppClientToken token ){
+        Objects.requireNonNull(token);
+        AppClient client = new AppClient();
+        client.setKey(null);
+        client.setId(token.getClientId());
+        client.setUserId(token.getUserId());
+        return client;
+    }
+
+    /**
+     * Count a call of this client and update the last activity.
+     * The change is applied to the client of the request immediately and persisted with the next flush.
+     * @param client AppClient
+     */
+    public synchronized void touch( AppClient client ){
+        Objects.requireNonNull(client);
+        Instant now = Instant.now();
+        client.setCalls(client.getCalls() + 1);
+        client.setLastactive(now);
+        PendingUpdate update = getPending(client);
+        update.calls++;
+        update.lastactive = now;
+    }
+
+    /**
+     * Remove a client from the caches of all nodes, e.g. after its userid was changed or it was deleted.
+     * @param key Client key
+     */
+    public void invalidate( String key ){
+        if(key == null){
+            return;
+        }
+        invalidateLocal(key);
+        if(redis){
+            Application.cache.publish(CHANNEL, key, published -> {});
+        }
+    }
+
+    /**
+     * Write all collected changes with one unordered update command.
+     */
+    public void flush(){
+        Map<String, PendingUpdate> updates;
+        synchronized (this){
+            if(pending.isEmpty()){
+                return;
+            }
+            updates = pending;
+            pending = new HashMap<>();
+        }
+        JsonArray statements = new JsonArray();
+        for(Map.Entry<String, PendingUpdate> u : updates.entrySet()){
+            statements.add(new JsonObject()
+                    .put("q", new JsonObject().put("_id", u.getKey()))
+                    .put("u", u.getValue().getUpdateJSON()));
+        }
+        JsonObject command = new JsonObject();
+        command.put("update", new AppClient().getCollectionName());
+        command.put("updates", statements);
+        command.put("ordered", false);
+        Application.database.runCommand("update", command, updateResult -> {
+            synchronized (this){
+                flushes++;
+                if(updateResult.succeeded()){
+                    flushedUpdates += statements.size();
+                }else{
+                    flushErrors++;
+                }
+            }
+            if(updateResult.failed()){
+                System.err.println(updateResult.cause().getMessage());
+            }
+        });
+    }
+
+    /**
+     * Get cache and write-behind metrics.
+     * @return JsonObject with metrics
+     */
+    public JsonObject getMetrics(){
+        JsonObject metrics = clients.getMetrics();
+        metrics.put("userclients", userClients.getMetrics());
+        synchronized (this){
+            metrics.put("pending", pending.size());
+            metrics.put("flushes", flushes);
+            metrics.put("flushedupdates", flushedUpdates);
+            metrics.put("flusherrors", flushErrors);
+        }
+        return metrics;
+    }
+
+    private void invalidateLocal( String key ){
+        clients.remove(key);
+        userClients.remove(key);
+    }
+
+    /**
+     * Listen for invalidations of other nodes, the subscription needs a connection of its own.
+     * @param vertx Vertx instance
+     */
+    private void subscribe( Vertx vertx ){
+        vertx.eventBus().<JsonObject>consumer("io.vertx.redis." + CHANNEL, message -> {
+            JsonObject value = message.body().getJsonObject("value");
+            String key = value != null ? value.getString("message") : null;
+            if(key != null){
+                invalidateLocal(key);
+            }
+        });
+        RedisClient subscriber = RedisClient.create(vertx, new RedisOptions(Application.config.getJsonObject("cache", new JsonObject())));
+        subscriber.subscribe(CHANNEL, subscribed -> {
+            if(subscribed.failed()){
+                System.err.println("Subscription of " + CHANNEL + " failed: " + subscribed.cause().getMessage());
+            }
+        });
+    }
+
+    private PendingUpdate getPending( AppClient client ){
+        PendingUpdate update = pending.get(client.getId());
+        if(update == null){
+            update = new PendingUpdate();
+            pending.put(client.getId(), update);
+        }
+        return update;
+    }
+
+
+    private static class PendingUpdate {
+
+        private int calls;
+        private Instant lastactive;
+
+        private JsonObject getUpdateJSON(){
+            JsonObject set = new JsonObject();
+            JsonObject update = new JsonObject();
+            if(calls > 0){
+                update.put("$inc", new JsonObject().put("calls", calls));
+            }
+            if(lastactive != null){
+                set.put("lastactive", lastactive);
+            }
+            if(set.size() > 0){
+                update.put("$set", set);
+            }
+            return update;
+        }
+    }
+
+}
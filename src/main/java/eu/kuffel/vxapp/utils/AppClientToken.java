@@ -0,0 +1,212 @@
+package eu.kuffel.vxapp.utils;
+
+import eu.kuffel.vxapp.Application;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless client token, signed with HMAC-SHA256 and the application secret.
+ * A token carries the client id, the user id and the issue time, so it can be verified without a database lookup.
+ * Revoked clients are kept in a small in-memory set which is synchronized periodically with the database.
+ *
+ * Format: base64url(json payload) + "." + base64url(signature)
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppClientToken {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String REVOCATION_COLLECTION = "clientrevocation";
+
+    private static final long DEFAULT_TTL_MS = 7*24*3600*1000L; // 7 days
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 10000;
+
+    private static volatile boolean enabled = false;
+    private static long ttl = DEFAULT_TTL_MS;
+    private static long syncInterval = DEFAULT_SYNC_INTERVAL_MS;
+    private static ThreadLocal<Mac> mac;
+
+    private static final Map<String, Long> revocations = new ConcurrentHashMap<>();
+    // Written by the find callback and read by the sync timer, which can run on different threads.
+    private static volatile long lastSync = 0;
+
+    private final String clientId;
+    private final String userId;
+    private final Instant issued;
+
+
+    private AppClientToken( String clientId, String userId, Instant issued ){
+        this.clientId = clientId;
+        this.userId = userId;
+        this.issued = issued;
+    }
+
+    /**
+     * Enable token mode and start the periodic revocation synchronization.
+     * Subsequent calls have no effect.
+     * @param vertx Vertx instance for the sync timer
+     * @param secret Application secret used to sign tokens, must be the same on all nodes.
+     * @param config JsonObject with enabled, ttl (ms) and revocationsync (ms)
+     */
+    public static synchronized void init( Vertx vertx, String secret, JsonObject config ){
+        if(enabled || config == null || !config.getBoolean("enabled", false)){
+            return;
+        }
+        Objects.requireNonNull(secret);
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac m = Mac.getInstance(ALGORITHM);
+                m.init(key);
+                return m;
+            } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        ttl = config.getLong("ttl", DEFAULT_TTL_MS);
+        syncInterval = config.getLong("revocationsync", DEFAULT_SYNC_INTERVAL_MS);
+        enabled = true;
+        syncRevocations();
+        vertx.setPeriodic(syncInterval, handler -> syncRevocations());
+    }
+
+    /**
+     * Check if token mode is enabled.
+     * @return True if tokens can be issued and verified.
+     */
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Issue a new signed token, it is issued after the last revocation of the client, even within the same millisecond.
+     * @param clientId Client id
+     * @param userId User id or null
+     * @return Token string
+     */
+    public static String create( String clientId, String userId ){
+        Objects.requireNonNull(clientId);
+        JsonObject payload = new JsonObject();
+        payload.put("cid", clientId);
+        if(userId != null){
+            payload.put("uid", userId);
+        }
+        long issuedAt = Instant.now().toEpochMilli();
+        Long revoked = revocations.get(clientId);
+        if(revoked != null && issuedAt <= revoked){
+            issuedAt = revoked + 1;
+        }
+        payload.put("iat", issuedAt);
+        String encodedPayload = Base64.getUrlEncoder().withoutPadding().encodeToString(payload.encode().getBytes(StandardCharsets.UTF_8));
+        return encodedPayload + "." + sign(encodedPayload);
+    }
+
+    /**
+     * Verify signature, expiry and revocation of a token.
+     * @param token Token string
+     * @return AppClientToken or null if the token is invalid, expired or revoked.
+     */
+    public static AppClientToken verify( String token ){
+        if(!enabled || token == null){
+            return null;
+        }
+        int separator = token.indexOf('.');
+        if(separator <= 0 || separator == token.length() - 1){
+            return null;
+        }
+        String encodedPayload = token.substring(0, separator);
+        byte[] signature = token.substring(separator + 1).getBytes(StandardCharsets.US_ASCII);
+        if(!MessageDigest.isEqual(signature, sign(encodedPayload).getBytes(StandardCharsets.US_ASCII))){
+            return null;
+        }
+        try {
+            JsonObject payload = new JsonObject(new String(Base64.getUrlDecoder().decode(encodedPayload), StandardCharsets.UTF_8));
+            String clientId = payload.getString("cid", null);
+            Long issuedAt = payload.getLong("iat", null);
+            if(clientId == null || issuedAt == null){
+                return null;
+            }
+            if(System.currentTimeMillis() - issuedAt > ttl){
+                return null;
+            }
+            Long revoked = revocations.get(clientId);
+            if(revoked != null && issuedAt <= revoked){
+                return null;
+            }
+            return new AppClientToken(clientId, payload.getString("uid", null), Instant.ofEpochMilli(issuedAt));
+        } catch (IllegalArgumentException | DecodeException | ClassCastException ex){
+            return null;
+        }
+    }
+
+    /**
+     * Revoke all tokens of this client issued until now.
+     * The revocation is active on this node immediately and on other nodes after their next sync.
+     * @param clientId Client id
+     */
+    public static void revoke( String clientId ){
+        if(!enabled || clientId == null){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        revocations.put(clientId, now);
+        JsonObject revocation = new JsonObject();
+        revocation.put("_id", clientId);
+        revocation.put("revoked", now);
+        Application.database.save(REVOCATION_COLLECTION, revocation, saveResult -> {
+            if(saveResult.failed()){
+                System.err.println(saveResult.cause().getMessage());
+            }
+        });
+    }
+
+    private static void syncRevocations(){
+        long now = System.currentTimeMillis();
+        long since = lastSync - syncInterval; // Overlap to tolerate clock skew between nodes.
+        JsonObject query = new JsonObject().put("revoked", new JsonObject().put("$gt", since));
+        Application.database.find(REVOCATION_COLLECTION, query, findResult -> {
+            if(findResult.succeeded()){
+                for(JsonObject r : findResult.result()){
+                    revocations.merge(r.getString("_id"), r.getLong("revoked"), Math::max);
+                }
+                lastSync = now;
+            }
+        });
+        // Tokens older than ttl are expired anyway, forget their revocations.
+        long expired = now - ttl;
+        revocations.values().removeIf(revoked -> revoked < expired);
+        Application.database.removeDocuments(REVOCATION_COLLECTION, new JsonObject().put("revoked", new JsonObject().put("$lt", expired)), removeResult -> {});
+    }
+
+    private static String sign( String encodedPayload ){
+        byte[] signature = mac.get().doFinal(encodedPayload.getBytes(StandardCharsets.US_ASCII));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public Instant getIssued() {
+        return issued;
+    }
+
+}
@@ -0,0 +1,208 @@
+package eu.kuffel.vxapp.utils;
+
+import eu.kuffel.vxapp.Application;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.RedisOptions;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache for document counts, keyed by the collection and the normalized query.
+ * Changes of a collection have to be reported, the unfiltered count is adjusted by the
+ * number of created or deleted documents and all filtered counts are dropped.
+ * Without Redis the counts are per node and changes on other nodes are only picked up after the ttl.
+ * With Redis every change is published and other nodes drop all cached counts of the collection.
+ * One instance is shared by all webserver verticles.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppCountCache {
+
+    private static final int DEFAULT_SIZE = 1000;
+    private static final long DEFAULT_TTL_MS = 60000;
+
+    private static final String CHANNEL = "countcache:invalidate";
+
+    private static AppCountCache instance;
+
+    private final AppCache<String, Long> counts;
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final boolean redis;
+    // Own invalidations come back over the subscription and are skipped by this prefix.
+    private final String node = AppRandom.getRandomStringAlphanumeric(16) + "/";
+
+
+    private AppCountCache( JsonObject config ){
+        this.counts = new AppCache<>(config.getInteger("size", DEFAULT_SIZE), config.getLong("ttl", DEFAULT_TTL_MS));
+        this.redis = config.getBoolean("redis", false) && Application.cache != null;
+    }
+
+    /**
+     * Create the shared cache instance, subsequent calls return the existing instance.
+     * @param vertx Vertx instance for the eviction timer
+     * @param config JsonObject with optional size, ttl (ms) and redis (boolean, publish changes)
+     * @return AppCountCache
+     */
+    public static synchronized AppCountCache create( Vertx vertx, JsonObject config ){
+        if(instance == null){
+            if(config == null){
+                config = new JsonObject();
+            }
+            AppCountCache cache = new AppCountCache(config);
+            vertx.setPeriodic(config.getLong("ttl", DEFAULT_TTL_MS), handler -> cache.counts.evictExpired());
+            AppMetrics.register("countcache", cache.counts::getMetrics);
+            if(cache.redis){
+                cache.subscribe(vertx);
+            }
+            instance = cache;
+        }
+        return instance;
+    }
+
+    /**
+     * Get the shared cache instance.
+     * @return AppCountCache or null if create was not called yet.
+     */
+    public static AppCountCache getInstance(){
+        return instance;
+    }
+
+    /**
+     * Get a cached count or load and cache it.
+     * @param collection Collection name
+     * @param query JsonObject with the query
+     * @param loader Called with a handler for the loaded count if the count is not cached
+     * @param callback Handler with the count
+     */
+    public void count( String collection, JsonObject query, Handler<Handler<Long>> loader, Handler<Long> callback ){
+        Objects.requireNonNull(loader);
+        Objects.requireNonNull(callback);
+        long generation = getGeneration(collection).get();
+        String key = getKey(collection, generation, query);
+        Long cached = counts.get(key);
+        if(cached != null){
+            callback.handle(cached);
+            return;
+        }
+        loader.handle(loaded -> {
+            // Do not cache a count that was loaded while the collection changed.
+            if(loaded != null && getGeneration(collection).get() == generation){
+                counts.put(key, loaded);
+            }
+            callback.handle(loaded);
+        });
+    }
+
+    /**
+     * Report a change of a collection to the caches of all nodes.
+     * @param collection Collection name
+     * @param delta Number of created (positive) or deleted (negative) documents, 0 for updates.
+     */
+    public void changed( String collection, long delta ){
+        AtomicLong generation = getGeneration(collection);
+        synchronized (generation){
+            String totalKey = getKey(collection, generation.get(), null);
+            Long total = counts.remove(totalKey);
+            long next = generation.incrementAndGet();
+            if(total != null){
+                counts.put(getKey(collection, next, null), Math.max(0, total + delta));
+            }
+        }
+        if(redis){
+            Application.cache.publish(CHANNEL, node + collection, published -> {});
+        }
+    }
+
+    /**
+     * Drop all counts of a collection that was changed on another node.
+     * The delta is not applied, the local total may have been loaded before or after the change.
+     * @param collection Collection name
+     */
+    private void changedRemote( String collection ){
+        AtomicLong generation = getGeneration(collection);
+        synchronized (generation){
+            counts.remove(getKey(collection, generation.get(), null));
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Listen for changes on other nodes, the subscription needs a connection of its own.
+     * @param vertx Vertx instance
+     */
+    private void subscribe( Vertx vertx ){
+        vertx.eventBus().<JsonObject>consumer("io.vertx.redis." + CHANNEL, message -> {
+            JsonObject value = message.body().getJsonObject("value");
+            String change = value != null ? value.getString("message") : null;
+            if(change != null && !change.startsWith(node) && change.indexOf('/') > 0){
+                changedRemote(change.substring(change.indexOf('/') + 1));
+            }
+        });
+        RedisClient subscriber = RedisClient.create(vertx, new RedisOptions(Application.config.getJsonObject("cache", new JsonObject())));
+        subscriber.subscribe(CHANNEL, subscribed -> {
+            if(subscribed.failed()){
+                System.err.println("Subscription of " + CHANNEL + " failed: " + subscribed.cause().getMessage());
+            }
+        });
+    }
+
+    private AtomicLong getGeneration( String collection ){
+        return generations.computeIfAbsent(collection, c -> new AtomicLong());
+    }
+
+    private static String getKey( String collection, long generation, JsonObject query ){
+        return collection + "/" + generation + "/" + normalize(query != null ? query : new JsonObject());
+    }
+
+    /**
+     * Encode a value with sorted object keys, so equal queries result in the same key.
+     * @param value JsonObject, JsonArray or a plain value
+     * @return String
+     */
+    static String normalize( Object value ){
+        if(value instanceof JsonObject){
+            TreeMap<String, Object> sorted = new TreeMap<>(((JsonObject) value).getMap());
+            StringBuilder builder = new StringBuilder("{");
+            for(Map.Entry<String, Object> entry : sorted.entrySet()){
+                if(builder.length() > 1){
+                    builder.append(",");
+                }
+                builder.append(Json.encode(entry.getKey())).append(":").append(normalize(wrap(entry.getValue())));
+            }
+            return builder.append("}").toString();
+        }
+        if(value instanceof JsonArray){
+            StringBuilder builder = new StringBuilder("[");
+            for(Object item : (JsonArray) value){
+                if(builder.length() > 1){
+                    builder.append(",");
+                }
+                builder.append(normalize(wrap(item)));
+            }
+            return builder.append("]").toString();
+        }
+        return Json.encode(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object wrap( Object value ){
+        if(value instanceof Map){
+            return new JsonObject((Map<String, Object>) value);
+        }
+        if(value instanceof java.util.List){
+            return new JsonArray((java.util.List) value);
+        }
+        return value;
+    }
+
+}
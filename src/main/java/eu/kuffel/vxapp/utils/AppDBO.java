@@ -1,16 +1,40 @@
 package eu.kuffel.vxapp.utils;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.MongoException;
+import com.mongodb.async.client.FindIterable;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.WriteModel;
 import eu.kuffel.vxapp.Application;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.mongo.FindOptions;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.codecs.Codec;
 import org.bson.conversions.Bson;
 
 /**
@@ -24,6 +48,11 @@ import org.bson.conversions.Bson;
  */
 public abstract class AppDBO<T> {
 
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+    private static final Pattern DUPLICATE_KEY_INDEX = Pattern.compile("index: (?:\\S+\\.\\$)?(\\S+)");
+
+    private Buffer encoded;
+
     /**
      * Get the mongo database collection name as string.
      * This name should be unique and will be used to create the collection.
@@ -70,6 +99,87 @@ public abstract class AppDBO<T> {
         return filtered;
     }
 
+    /**
+     * Get a json representation limited to the fields of a mongo projection.
+     * Fields that are not part of the projection are omitted instead of being null.
+     * @param fields JsonObject with a mongo projection, e.g. {"title":1} or {"data":0}, or null for all fields.
+     * @return JsonObject object as json object
+     */
+    public JsonObject getProjectedJSON( JsonObject fields ){
+        JsonObject full = this.getJSON();
+        if(fields == null || fields.isEmpty()){
+            return full;
+        }
+        boolean inclusive = false;
+        for(String field : fields.fieldNames()){
+            if(!"_id".equals(field) && isProjected(fields.getValue(field))){
+                inclusive = true;
+                break;
+            }
+        }
+        JsonObject projected = new JsonObject();
+        for(String field : full.fieldNames()){
+            boolean listed = fields.containsKey(field);
+            boolean keep;
+            if("_id".equals(field)){
+                keep = !listed || isProjected(fields.getValue(field));
+            }else{
+                keep = inclusive ? listed && isProjected(fields.getValue(field)) : !listed;
+            }
+            if(keep){
+                projected.put(field, full.getValue(field));
+            }
+        }
+        return projected;
+    }
+
+    private static boolean isProjected( Object value ){
+        if(value instanceof Boolean){
+            return (Boolean) value;
+        }
+        return !(value instanceof Number) || ((Number) value).intValue() != 0;
+    }
+
+    /**
+     * Write the json representation of this object to a Jackson generator.
+     * Override it to write the fields directly without building a JsonObject, the default serializes getJSON().
+     * @param generator JsonGenerator
+     * @throws IOException If the generator fails
+     */
+    public void writeJSON( JsonGenerator generator ) throws IOException {
+        Json.mapper.writeValue(generator, this.getJSON());
+    }
+
+    /**
+     * Get the encoded json representation of this object, e.g. to write it to a response.
+     * Cached classes keep the encoded json until they are changed, so their setters have to call invalidateEncoded.
+     * @return Buffer with the encoded json
+     */
+    public Buffer getEncoded(){
+        Buffer current = this.encoded;
+        if(current == null){
+            // Jackson flushes its recycled buffer straight into the bytes of the Buffer, without copies through a byte array.
+            ByteBuf bytes = Unpooled.buffer();
+            try(JsonGenerator generator = Json.mapper.getFactory().createGenerator(new ByteBufOutputStream(bytes))){
+                writeJSON(generator);
+            }catch(IOException ex){
+                throw new IllegalStateException("Failed to encode " + getClass().getSimpleName(), ex);
+            }
+            current = Buffer.buffer(bytes);
+            if(isCached()){
+                this.encoded = current;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Drop the encoded json representation, must be called whenever a field of a cached class is changed.
+     */
+    protected void invalidateEncoded(){
+        this.encoded = null;
+    }
+
     /**
      * Set all parameters from json on this instance.
      * @param json JsonObject with values to set.
@@ -86,6 +196,174 @@ public abstract class AppDBO<T> {
     public abstract T createFromJson( JsonObject json );
 
 
+    /**
+     * Override this method to map the model directly to and from BSON, see AppDBOCodec.
+     * An AppDBOCodec requires the model to implement AppBsonMapping.
+     * Models with a codec are read and removed with Bson filters without a conversion to json.
+     * @return Codec or null to use the JsonObject mapping.
+     */
+    public Codec<T> getCodec(){
+        return null;
+    }
+
+
+    /**
+     * Override this method to declare the indexes of the collection.
+     * Each entry is an index specification of the createIndexes command, e.g.
+     * { "key" : { "username" : 1 }, "name" : "username_1", "unique" : true }
+     * @return JsonArray with index specifications, empty by default.
+     */
+    public JsonArray getIndexes(){
+        return new JsonArray();
+    }
+
+    /**
+     * Enable the read-through AppDBOCache for findOne by id, e.g. for documents that are read more often than written.
+     * Changes through the methods of this class invalidate the cached document, other writes have to call invalidateCached.
+     * @return True if documents of this class are cached, defaults to false.
+     */
+    public boolean isCached(){
+        return false;
+    }
+
+    /**
+     * Remove a document of this class from the AppDBOCache, e.g. after a bulk write.
+     * @param id ObjectID as String
+     */
+    public void invalidateCached( String id ){
+        AppDBOCache cache = AppDBOCache.getInstance();
+        if(id != null && cache != null && isCached()){
+            cache.invalidate(getCollectionName(), id);
+        }
+    }
+
+    /**
+     * Check if a sort can be served by a declared index, so the database does not sort in memory.
+     * The sort fields have to be a prefix of the keys of one index, a trailing _id is ignored.
+     * @param sort Sort specification, e.g. { "created" : -1 }
+     * @return True if the sort is empty, only on _id or matches an index.
+     */
+    public boolean isSortIndexed( JsonObject sort ){
+        List<String> fields = new ArrayList<>();
+        if(sort != null){
+            fields.addAll(sort.fieldNames());
+        }
+        if(!fields.isEmpty() && "_id".equals(fields.get(fields.size() - 1))){
+            fields.remove(fields.size() - 1);
+        }
+        if(fields.isEmpty()){
+            return true;
+        }
+        JsonArray indexes = getIndexes();
+        for(int i = 0; i < indexes.size(); i++){
+            List<String> keys = new ArrayList<>(indexes.getJsonObject(i).getJsonObject("key").fieldNames());
+            if(keys.size() >= fields.size() && keys.subList(0, fields.size()).equals(fields)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compare the declared indexes with the existing indexes of the collection and create the missing ones.
+     * Undeclared indexes are only reported, never dropped.
+     * @param callback Handler with a report: collection, missing, extra and conflicting index names,
+     *                 created (True if all missing indexes were created) and
+     *                 unique (True if all declared unique indexes exist as declared).
+     */
+    public void reconcileIndexes( Handler<JsonObject> callback ){
+        Objects.requireNonNull(callback);
+        JsonObject command = new JsonObject().put("listIndexes", getCollectionName());
+        Application.database.runCommand("listIndexes", command, (listResult) -> {
+            JsonObject existing = new JsonObject();
+            if(listResult.succeeded()){
+                JsonArray batch = listResult.result().getJsonObject("cursor", new JsonObject()).getJsonArray("firstBatch", new JsonArray());
+                for(int i = 0; i < batch.size(); i++){
+                    JsonObject index = batch.getJsonObject(i);
+                    existing.put(index.getString("name"), index);
+                }
+            } // A missing collection has no indexes yet.
+            JsonArray declared = getIndexes();
+            JsonArray missing = new JsonArray();
+            JsonArray conflicts = new JsonArray();
+            JsonArray create = new JsonArray();
+            boolean unique = true;
+            for(int i = 0; i < declared.size(); i++){
+                JsonObject index = declared.getJsonObject(i);
+                JsonObject current = existing.getJsonObject(index.getString("name"));
+                if(current == null){
+                    missing.add(index.getString("name"));
+                    create.add(index);
+                }else if(!current.getJsonObject("key").equals(index.getJsonObject("key"))
+                        || current.getBoolean("unique", false) != index.getBoolean("unique", false)){
+                    conflicts.add(index.getString("name"));
+                    unique &= !index.getBoolean("unique", false);
+                }
+                existing.remove(index.getString("name"));
+            }
+            existing.remove("_id_");
+            JsonObject report = new JsonObject();
+            report.put("collection", getCollectionName());
+            report.put("missing", missing);
+            report.put("extra", new JsonArray(new ArrayList<>(existing.fieldNames())));
+            report.put("conflicts", conflicts);
+            if(create.isEmpty()){
+                callback.handle(report.put("created", true).put("unique", unique));
+                return;
+            }
+            boolean uniqueExisting = unique;
+            JsonObject createCommand = new JsonObject();
+            createCommand.put("createIndexes", getCollectionName());
+            createCommand.put("indexes", create);
+            Application.database.runCommand("createIndexes", createCommand, (createResult) -> {
+                if(createResult.failed()){
+                    report.put("error", createResult.cause().getMessage());
+                }
+                callback.handle(report.put("created", createResult.succeeded()).put("unique", uniqueExisting && createResult.succeeded()));
+            });
+        });
+    }
+
+    /**
+     * Reconcile the indexes of several collections concurrently.
+     * @param models One instance of every model
+     * @param callback Handler with the reports of all collections, keyed by collection name.
+     */
+    public static void reconcileIndexes( List<? extends AppDBO<?>> models, Handler<JsonObject> callback ){
+        Objects.requireNonNull(callback);
+        JsonObject reports = new JsonObject();
+        if(models.isEmpty()){
+            callback.handle(reports);
+            return;
+        }
+        for(AppDBO<?> model : models){
+            model.reconcileIndexes(report -> {
+                boolean complete;
+                synchronized (reports){ // Callbacks may run on different contexts.
+                    reports.put(model.getCollectionName(), report);
+                    complete = reports.size() == models.size();
+                }
+                if(complete){
+                    callback.handle(reports);
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the name of the violated unique index from a failed write.
+     * @param cause Cause of a failed insert, save or update
+     * @return Index name or null if the cause is not a duplicate key error.
+     */
+    public static String getDuplicateKeyIndex( Throwable cause ){
+        if(!(cause instanceof MongoException) || ((MongoException) cause).getCode() != DUPLICATE_KEY_ERROR){
+            return null;
+        }
+        Matcher matcher = DUPLICATE_KEY_INDEX.matcher(String.valueOf(cause.getMessage()));
+        return matcher.find() ? matcher.group(1) : "";
+    }
+
+
     /**
      * Override this method to apply custom validations.
      * To return errors add JsonObjects with the following format.
@@ -107,9 +385,27 @@ public abstract class AppDBO<T> {
     public void count( JsonObject query, Handler<Long> callback ){
         Objects.nonNull(query);
         Objects.nonNull(callback);
-        Application.database.count(getCollectionName(), query, (AsyncResult<Long> countResult) -> {
-            if(countResult.succeeded()){
-                callback.handle(countResult.result());
+        Handler<Handler<AsyncResult<Long>>> loader = loaded -> Application.database.count(getCollectionName(), query, loaded);
+        Handler<AsyncResult<Long>> counted = countResult -> callback.handle(countResult.succeeded() ? countResult.result() : 0L);
+        if(AppSingleFlight.isEnabled()){
+            AppSingleFlight.<Long>get("count").execute(getFlightKey(query != null ? query.encode() : null, null), loader, counted);
+        }else{
+            loader.handle(counted);
+        }
+    }
+
+    /**
+     * Estimate the number of saved objects from the collection metadata, without scanning any documents.
+     * The estimate can be off after unclean shutdowns or while documents are moved between shards.
+     * @param callback Callback handler
+     */
+    public void countEstimated( Handler<Long> callback ){
+        Objects.nonNull(callback);
+        JsonObject command = new JsonObject().put("collStats", getCollectionName());
+        Application.database.runCommand("collStats", command, (AsyncResult<JsonObject> statsResult) -> {
+            if(statsResult.succeeded()){
+                Number count = (Number) statsResult.result().getValue("count");
+                callback.handle(count != null ? count.longValue() : 0L);
             }else{
                 callback.handle(0L);
             }
@@ -155,6 +451,7 @@ public abstract class AppDBO<T> {
                 if(this.getId() == null){
                     this.setId(saveResult.result());
                 }
+                invalidateCached(this.getId());
                 if(callback != null){
                     callback.handle((T) this);
                 }
@@ -167,6 +464,102 @@ public abstract class AppDBO<T> {
         });
     }
 
+    /**
+     * Save this object to database and callback the specified handler with the result of the write,
+     * e.g. to handle unique index violations. If no id was set a new id will be assigned.
+     * @param callback Handler with the saved object or the cause of the failure.
+     */
+    @SuppressWarnings("unchecked")
+    public void saveWithResult( Handler<AsyncResult<T>> callback ){
+        Objects.requireNonNull(callback);
+        Application.database.save(getCollectionName(), this.getJSON(), (saveResult) -> {
+            if(saveResult.succeeded()){
+                if(this.getId() == null){
+                    this.setId(saveResult.result());
+                }
+                invalidateCached(this.getId());
+                callback.handle(Future.succeededFuture((T) this));
+            }else{
+                callback.handle(Future.failedFuture(saveResult.cause()));
+            }
+        });
+    }
+
+    /**
+     * Execute inserts, updates and deletes in a single round-trip, the models of this class are mapped with its codec.
+     * Failed operations of a batch are reported by a MongoBulkWriteException with the index of each failed operation.
+     * Cached documents are not invalidated, call invalidateCached for every updated or deleted id.
+     * @param operations Write models, e.g. InsertOneModel, UpdateOneModel and DeleteOneModel
+     * @param ordered Stop at the first failed operation
+     * @param callback Handler with the BulkWriteResult or the cause of the failure.
+     */
+    public void bulkWrite( List<? extends WriteModel<T>> operations, boolean ordered, Handler<AsyncResult<BulkWriteResult>> callback ){
+        Objects.requireNonNull(operations);
+        Objects.requireNonNull(callback);
+        Codec<T> codec = getCodec();
+        if(codec == null){
+            callback.handle(Future.failedFuture(new UnsupportedOperationException(getClass().getSimpleName() + " has no codec")));
+            return;
+        }
+        MongoAsyncClient mongo = Application.mongo;
+        mongo.getCollection(getCollectionName(), codec).bulkWrite(operations, new BulkWriteOptions().ordered(ordered), mongo.callback(callback));
+    }
+
+    /**
+     * Atomically update the first document that matches the filter and load the updated document in the same round-trip,
+     * e.g. to guard an update with a version field.
+     * @param filter BSON filter
+     * @param update BSON update with update operators ($set, $unset, $inc, ...)
+     * @param callback Handler with the updated document, null if nothing matches, or the cause of the failure.
+     */
+    public void findOneAndUpdate( Bson filter, Bson update, Handler<AsyncResult<T>> callback ){
+        Objects.requireNonNull(filter);
+        Objects.requireNonNull(update);
+        Objects.requireNonNull(callback);
+        Codec<T> codec = getCodec();
+        if(codec == null){
+            callback.handle(Future.failedFuture(new UnsupportedOperationException(getClass().getSimpleName() + " has no codec")));
+            return;
+        }
+        MongoAsyncClient mongo = Application.mongo;
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+        mongo.getCollection(getCollectionName(), codec).findOneAndUpdate(filter, update, options, mongo.callback(updateResult -> {
+            if(updateResult.succeeded() && updateResult.result() instanceof AppDBO){
+                invalidateCached(((AppDBO<?>) updateResult.result()).getId());
+            }
+            callback.handle(updateResult);
+        }));
+    }
+
+    /**
+     * Apply a partial update to the document with the id of this object, without rewriting the whole document.
+     * e.g.: new JsonObject().put("$set", new JsonObject().put("lastactive", Instant.now()));
+     * @param update JsonObject with update operators ($set, $unset, $inc, ...)
+     * @param callback Handler with True if a document was matched, may be null.
+     */
+    public void update( JsonObject update, Handler<Boolean> callback ){
+        Objects.requireNonNull(update);
+        if(this.getId() == null){
+            if(callback != null){
+                callback.handle(false);
+            }
+            return;
+        }
+        JsonObject query = new JsonObject();
+        query.put("_id", this.getId());
+        Application.database.updateCollection(getCollectionName(), query, update, (updateResult) -> {
+            invalidateCached(this.getId());
+            if(callback != null){
+                if(updateResult.succeeded()){
+                    callback.handle(updateResult.result().getDocMatched() > 0);
+                }else{
+                    System.out.println(updateResult.cause().getMessage());
+                    callback.handle(false);
+                }
+            }
+        });
+    }
+
     /**
      * Find all documents that match the specified query.
      * You can construct the query with the standard mongo filter functions.
@@ -178,6 +571,10 @@ public abstract class AppDBO<T> {
     public void find( Bson query, Handler<List<T>> callback ){
         Objects.nonNull(query);
         Objects.nonNull(callback);
+        if(getCodec() != null){
+            findWithCodec(query, null, callback);
+            return;
+        }
         JsonObject queryJson = null;
         if(query != null){
             BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, com.mongodb.MongoClient.getDefaultCodecRegistry());
@@ -214,24 +611,111 @@ public abstract class AppDBO<T> {
      * @param id ObjectID as String
      * @param callback Handler with found document as callback, or null if id doesnt exist.
      */
-    @SuppressWarnings("unchecked")
     public void findOne( String id, Handler<T> callback ){
+        findOne(id, null, callback);
+    }
+
+    /**
+     * Find the document with the specified id and load only the fields of a projection.
+     * Partially loaded objects must not be saved, unloaded fields would be overwritten.
+     * @param id ObjectID as String
+     * @param fields JsonObject with a mongo projection, e.g. {"title":1} or {"data":0}, or null for all fields.
+     * @param callback Handler with found document as callback, or null if id doesnt exist.
+     */
+    @SuppressWarnings("unchecked")
+    public void findOne( String id, JsonObject fields, Handler<T> callback ){
         Objects.nonNull(id);
         Objects.nonNull(callback);
-        JsonObject query = new JsonObject();
-        query.put("_id", id);
-        Application.database.findOne(getCollectionName(), query, null, (findOneResult) -> {
-            if(findOneResult.succeeded()){
-                if(findOneResult.result() != null){
-                    this.setJSON(findOneResult.result(),false);
+        if(fields == null && isCached() && AppDBOCache.getInstance() != null){
+            findOneEncoded(id, encoded -> {
+                JsonObject json = encoded != null ? decode(encoded) : null;
+                if(json != null){
+                    this.setJSON(json, false);
+                    this.encoded = isCached() ? encoded : null;
                     callback.handle((T) this);
                 }else{
                     callback.handle(null);
                 }
+            });
+            return;
+        }
+        findOneFromDatabase(id, fields, callback);
+    }
+
+    /**
+     * Parse encoded json directly from its bytes, without a String in between.
+     * @param encoded Buffer with an encoded json object
+     * @return JsonObject or null if the buffer is no json object.
+     */
+    @SuppressWarnings("unchecked")
+    private static JsonObject decode( Buffer encoded ){
+        try{
+            return new JsonObject(Json.mapper.readValue(new ByteBufInputStream(encoded.getByteBuf()), Map.class));
+        }catch(IOException ex){
+            return null;
+        }
+    }
+
+    /**
+     * Find the document with the specified id as encoded json, served from the AppDBOCache if this class is cached.
+     * @param id ObjectID as String
+     * @param callback Handler with the encoded document, or null if id doesnt exist.
+     */
+    public void findOneEncoded( String id, Handler<Buffer> callback ){
+        Objects.requireNonNull(callback);
+        Handler<Handler<Buffer>> loader = loaded -> findOneFromDatabase(id, null, found -> {
+            loaded.handle(found != null ? this.getEncoded() : null);
+        });
+        AppDBOCache cache = AppDBOCache.getInstance();
+        if(id != null && isCached() && cache != null){
+            cache.get(getCollectionName(), id, loader, callback);
+        }else{
+            loader.handle(callback);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void findOneFromDatabase( String id, JsonObject fields, Handler<T> callback ){
+        JsonObject query = new JsonObject();
+        query.put("_id", id);
+        Handler<Handler<AsyncResult<JsonObject>>> loader = loaded -> Application.database.findOne(getCollectionName(), query, fields, loaded);
+        Handler<AsyncResult<JsonObject>> found = findOneResult -> {
+            if(findOneResult.succeeded() && findOneResult.result() != null){
+                this.setJSON(findOneResult.result(),false);
+                callback.handle((T) this);
             }else{
                 callback.handle(null);
             }
-        });
+        };
+        if(AppSingleFlight.isEnabled()){
+            // Concurrent loads of the same document share one query, every joined caller gets a copy of the document.
+            String fieldsKey = fields != null ? fields.encode() : "";
+            AppSingleFlight.<JsonObject>get("findone").execute(getFlightKey(query.encode(), fieldsKey), loader, JsonObject::copy, found);
+        }else{
+            loader.handle(found);
+        }
+    }
+
+    /**
+     * Key of a coalesced read, the query is a json string or a BsonDocument, which are compared by value.
+     */
+    private List<Object> getFlightKey( Object query, String options ){
+        return Arrays.asList(getCollectionName(), query, options);
+    }
+
+    private static String getFlightKey( FindOptions options ){
+        return options != null ? options.toJson().encode() : null;
+    }
+
+    /**
+     * Copy the models of a coalesced result, so every caller can modify its own list and models.
+     */
+    private List<T> copyModels( List<T> models ){
+        List<T> copies = new ArrayList<>(models.size());
+        for(T model : models){
+            copies.add(createFromJson(((AppDBO<?>) model).getJSON().copy()));
+        }
+        return copies;
     }
 
     /**
@@ -296,12 +780,22 @@ public abstract class AppDBO<T> {
     public void findWithOptions( Bson query, FindOptions options, Handler<List<T>> callback ){
         Objects.nonNull(query);
         Objects.nonNull(callback);
-        JsonObject queryJson = null;
-        if(query != null){
-            BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, com.mongodb.MongoClient.getDefaultCodecRegistry());
-            queryJson = new JsonObject(bsonDocument.toJson());
+        Handler<Handler<List<T>>> loader = loaded -> {
+            if(getCodec() != null){
+                findWithCodec(query, options, loaded);
+            }else{
+                findWithOptionsFromDatabase(query != null ? new JsonObject(toBsonDocument(query).toJson()) : null, options, loaded);
+            }
+        };
+        if(AppSingleFlight.isEnabled()){
+            findCoalesced(query != null ? toBsonDocument(query) : null, options, loader, callback);
+        }else{
+            loader.handle(callback);
         }
-        findWithOptions(queryJson,options, callback);
+    }
+
+    private static BsonDocument toBsonDocument( Bson query ){
+        return query.toBsonDocument(BsonDocument.class, com.mongodb.MongoClient.getDefaultCodecRegistry());
     }
 
 
@@ -314,6 +808,26 @@ public abstract class AppDBO<T> {
     public void findWithOptions( JsonObject query, FindOptions options, Handler<List<T>> callback ){
         Objects.nonNull(query);
         Objects.nonNull(callback);
+        Handler<Handler<List<T>>> loader = loaded -> findWithOptionsFromDatabase(query, options, loaded);
+        if(AppSingleFlight.isEnabled()){
+            findCoalesced(query != null ? query.encode() : null, options, loader, callback);
+        }else{
+            loader.handle(callback);
+        }
+    }
+
+    /**
+     * Share the result of identical concurrent finds, every joined caller gets its own copy of the list and the models.
+     */
+    private void findCoalesced( Object query, FindOptions options, Handler<Handler<List<T>>> loader, Handler<List<T>> callback ){
+        AppSingleFlight.<List<T>>get("find").execute(getFlightKey(query, getFlightKey(options)), loaded -> {
+            loader.handle(found -> loaded.handle(Future.succeededFuture(found)));
+        }, this::copyModels, found -> {
+            callback.handle(found.succeeded() ? found.result() : new ArrayList<>());
+        });
+    }
+
+    private void findWithOptionsFromDatabase( JsonObject query, FindOptions options, Handler<List<T>> callback ){
         Application.database.findWithOptions(getCollectionName(), query, options, (findWithOptionsResult) -> {
             if(findWithOptionsResult.succeeded()){
                 List<T> retList = new ArrayList<>();
@@ -330,6 +844,69 @@ public abstract class AppDBO<T> {
     }
 
 
+    /**
+     * Find documents with the codec of this model, the filter is passed to the driver as it is.
+     * @param query BSON Query or null
+     * @param options FindOptions or null
+     * @param callback Handler with documents or an empty list if nothing matches.
+     */
+    private void findWithCodec( Bson query, FindOptions options, Handler<List<T>> callback ){
+        MongoAsyncClient mongo = Application.mongo;
+        FindIterable<T> iterable = mongo.getCollection(getCollectionName(), getCodec()).find(query == null ? new BsonDocument() : query);
+        applyOptions(iterable, options);
+        iterable.into(new ArrayList<T>(), mongo.callback(findResult -> {
+            if(findResult.succeeded()){
+                callback.handle(findResult.result());
+            }else{
+                System.out.println(findResult.cause().getMessage());
+                callback.handle(new ArrayList<>());
+            }
+        }));
+    }
+
+
+    /**
+     * Stream all documents that match the specified query, e.g. for exports or cleanups of large collections.
+     * Documents are fetched in batches and only when the stream is not paused, so memory usage is constant.
+     * The query starts when a handler is set on the stream.
+     * @param query BSON Query or null for all documents
+     * @param options FindOptions or null
+     * @param batchSize Documents per batch
+     * @return AppDBOReadStream
+     */
+    public AppDBOReadStream<?, T> findStream( Bson query, FindOptions options, int batchSize ){
+        MongoAsyncClient mongo = Application.mongo;
+        Bson filter = query == null ? new BsonDocument() : query;
+        Codec<T> codec = getCodec();
+        if(codec != null){
+            FindIterable<T> iterable = mongo.getCollection(getCollectionName(), codec).find(filter);
+            applyOptions(iterable, options);
+            return new AppDBOReadStream<>(Application.vertx, iterable, Function.identity(), batchSize);
+        }
+        FindIterable<JsonObject> iterable = mongo.getJsonCollection(getCollectionName()).find(filter);
+        applyOptions(iterable, options);
+        return new AppDBOReadStream<>(Application.vertx, iterable, this::createFromJson, batchSize);
+    }
+
+    private static void applyOptions( FindIterable<?> iterable, FindOptions options ){
+        if(options == null){
+            return;
+        }
+        if(options.getFields() != null && !options.getFields().isEmpty()){
+            iterable.projection(new Document(options.getFields().getMap()));
+        }
+        if(options.getSort() != null && !options.getSort().isEmpty()){
+            iterable.sort(new Document(options.getSort().getMap()));
+        }
+        if(options.getLimit() > 0){
+            iterable.limit(options.getLimit());
+        }
+        if(options.getSkip() > 0){
+            iterable.skip(options.getSkip());
+        }
+    }
+
+
     /**
      * Delete documents that match the specified query.
      * @param query BSON query
@@ -354,12 +931,47 @@ public abstract class AppDBO<T> {
      */
     public void remove( Bson query, Handler<Long> callback ){
         Objects.nonNull(query);
-        JsonObject queryJson = null;
-        if(query != null){
-            BsonDocument bsonDocument = query.toBsonDocument(BsonDocument.class, com.mongodb.MongoClient.getDefaultCodecRegistry());
-            queryJson = new JsonObject(bsonDocument.toJson());
+        MongoAsyncClient mongo = Application.mongo;
+        Bson filter = query == null ? new BsonDocument() : query;
+        if(isCached() && AppDBOCache.getInstance() != null){
+            removeCached(filter, callback);
+            return;
         }
-        remove(queryJson, callback);
+        mongo.getCollection(getCollectionName()).deleteMany(filter, mongo.callback(deleteResult -> {
+            if(callback != null){
+                if(deleteResult.succeeded()){
+                    callback.handle(deleteResult.result().getDeletedCount());
+                }else{
+                    callback.handle(null);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Delete documents of a cached class, the ids of the matching documents are loaded first to invalidate them.
+     * @param filter BSON query
+     * @param callback Handler with count of removed items or null on errors.
+     */
+    private void removeCached( Bson filter, Handler<Long> callback ){
+        MongoAsyncClient mongo = Application.mongo;
+        MongoCollection<Document> collection = mongo.getCollection(getCollectionName());
+        collection.find(filter).projection(new Document("_id", 1)).into(new ArrayList<Document>(), mongo.callback(idsResult -> {
+            if(idsResult.failed()){
+                if(callback != null){
+                    callback.handle(null);
+                }
+                return;
+            }
+            collection.deleteMany(filter, mongo.callback(deleteResult -> {
+                for(Document document : idsResult.result()){
+                    invalidateCached(String.valueOf(document.get("_id")));
+                }
+                if(callback != null){
+                    callback.handle(deleteResult.succeeded() ? deleteResult.result().getDeletedCount() : null);
+                }
+            }));
+        }));
     }
 
     /**
@@ -369,6 +981,10 @@ public abstract class AppDBO<T> {
      */
     public void remove( JsonObject query, Handler<Long> callback ){
         Objects.nonNull(query);
+        if(isCached() && AppDBOCache.getInstance() != null){
+            remove(AppCommons.convertJsonToBson(query), callback);
+            return;
+        }
         Application.database.removeDocuments(getCollectionName(),query, deleteResult -> {
             if(callback != null){
                 if(deleteResult.succeeded()){
@@ -398,6 +1014,7 @@ public abstract class AppDBO<T> {
         JsonObject query = new JsonObject();
         query.put("_id", id);
         Application.database.removeDocument(getCollectionName(), query, (deleteResult) -> {
+            invalidateCached(id);
             if(callback != null) {
                 if (deleteResult.succeeded()) {
                     callback.handle(deleteResult.result().getRemovedCount() > 0);
@@ -0,0 +1,234 @@
+package eu.kuffel.vxapp.utils;
+
+import eu.kuffel.vxapp.Application;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.RedisOptions;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache for AppDBO models, keyed by the collection and the id.
+ * Documents are cached as encoded json, so hits can be written to a response without a conversion.
+ * The local near-cache can be backed by the shared Redis cache, invalidations are
+ * published on a Redis channel and applied to the near-caches of all nodes.
+ * One instance is shared by all verticles.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppDBOCache {
+
+    private static final int DEFAULT_SIZE = 10000;
+    private static final long DEFAULT_TTL_MS = 60000;
+    private static final long DEFAULT_REDIS_TTL_MS = 5*60*1000; // 5 minutes
+
+    private static final String KEY_PREFIX = "dbo:";
+    private static final String CHANNEL = "dbo:invalidate";
+
+    private static AppDBOCache instance;
+
+    private final AppCache<String, Buffer> entries;
+    private final boolean redis;
+    private final long redisTtl;
+    private final Map<String, AtomicLong> invalidations = new ConcurrentHashMap<>();
+    private final Map<String, CollectionStats> stats = new ConcurrentHashMap<>();
+
+
+    private AppDBOCache( JsonObject config ){
+        this.entries = new AppCache<>(config.getInteger("size", DEFAULT_SIZE), config.getLong("ttl", DEFAULT_TTL_MS));
+        this.redis = config.getBoolean("redis", false) && Application.cache != null;
+        this.redisTtl = config.getLong("redisttl", DEFAULT_REDIS_TTL_MS);
+    }
+
+    /**
+     * Create the shared cache instance, subsequent calls return the existing instance.
+     * @param vertx Vertx instance for the eviction timer and the invalidation subscription
+     * @param config JsonObject with optional size, ttl (ms), redis (boolean) and redisttl (ms)
+     * @return AppDBOCache
+     */
+    public static synchronized AppDBOCache create( Vertx vertx, JsonObject config ){
+        if(instance == null){
+            if(config == null){
+                config = new JsonObject();
+            }
+            AppDBOCache cache = new AppDBOCache(config);
+            vertx.setPeriodic(config.getLong("ttl", DEFAULT_TTL_MS), handler -> cache.entries.evictExpired());
+            if(cache.redis){
+                cache.subscribe(vertx);
+            }
+            AppMetrics.register("dbocache", cache::getMetrics);
+            instance = cache;
+        }
+        return instance;
+    }
+
+    /**
+     * Get the shared cache instance.
+     * @return AppDBOCache or null if create was not called yet.
+     */
+    public static AppDBOCache getInstance(){
+        return instance;
+    }
+
+    /**
+     * Get an encoded document from the near-cache, from Redis or load and cache it.
+     * @param collection Collection name
+     * @param id Document id
+     * @param loader Called with a handler for the encoded document if it is not cached, null if it does not exist.
+     * @param callback Handler with the encoded document or null if it does not exist.
+     */
+    public void get( String collection, String id, Handler<Handler<Buffer>> loader, Handler<Buffer> callback ){
+        Objects.requireNonNull(loader);
+        Objects.requireNonNull(callback);
+        String key = getKey(collection, id);
+        CollectionStats collectionStats = getStats(collection);
+        Buffer cached = entries.get(key);
+        if(cached != null){
+            collectionStats.hits.incrementAndGet();
+            callback.handle(cached);
+            return;
+        }
+        // Loaded documents are not cached if the collection was changed in the meantime.
+        long invalidation = getInvalidations(collection).get();
+        Handler<Buffer> load = v -> loader.handle(loaded -> {
+            collectionStats.misses.incrementAndGet();
+            if(loaded != null && getInvalidations(collection).get() == invalidation){
+                entries.put(key, loaded);
+                if(redis){
+                    Application.cache.psetex(KEY_PREFIX + key, redisTtl, loaded.toString(), stored -> {});
+                }
+            }
+            callback.handle(loaded);
+        });
+        if(!redis){
+            load.handle(null);
+            return;
+        }
+        // The Redis client runs on its own context, the result is handed back to the context of the caller.
+        Context context = Vertx.currentContext();
+        Application.cache.get(KEY_PREFIX + key, redisResult -> runOnContext(context, v -> {
+            if(redisResult.succeeded() && redisResult.result() != null){
+                collectionStats.redisHits.incrementAndGet();
+                Buffer shared = Buffer.buffer(redisResult.result());
+                if(getInvalidations(collection).get() == invalidation){
+                    entries.put(key, shared);
+                }
+                callback.handle(shared);
+            }else{
+                load.handle(null);
+            }
+        }));
+    }
+
+    /**
+     * Get an encoded document from the near-cache only, e.g. to serve cached documents of a multi-get first.
+     * @param collection Collection name
+     * @param id Document id
+     * @return Buffer with the encoded document or null if it is not cached.
+     */
+    public Buffer getLocal( String collection, String id ){
+        Buffer cached = entries.get(getKey(collection, id));
+        if(cached != null){
+            getStats(collection).hits.incrementAndGet();
+        }
+        return cached;
+    }
+
+    /**
+     * Remove a document from the caches of all nodes, must be called after every change of the document.
+     * @param collection Collection name
+     * @param id Document id
+     */
+    public void invalidate( String collection, String id ){
+        String key = getKey(collection, id);
+        invalidateLocal(collection, key);
+        if(redis){
+            Application.cache.del(KEY_PREFIX + key, deleted -> {
+                Application.cache.publish(CHANNEL, key, published -> {});
+            });
+        }
+    }
+
+    /**
+     * Get hits, Redis hits, misses and the hit ratio per collection.
+     * @return JsonObject with one entry per collection.
+     */
+    public JsonObject getMetrics(){
+        JsonObject metrics = new JsonObject();
+        for(Map.Entry<String, CollectionStats> entry : stats.entrySet()){
+            metrics.put(entry.getKey(), entry.getValue().getJSON());
+        }
+        metrics.put("size", entries.size());
+        return metrics;
+    }
+
+    private static void runOnContext( Context context, Handler<Void> action ){
+        if(context == null || context == Vertx.currentContext()){
+            action.handle(null);
+        }else{
+            context.runOnContext(action);
+        }
+    }
+
+    private void invalidateLocal( String collection, String key ){
+        getInvalidations(collection).incrementAndGet();
+        entries.remove(key);
+    }
+
+    /**
+     * Listen for invalidations of other nodes, the subscription needs a connection of its own.
+     * @param vertx Vertx instance
+     */
+    private void subscribe( Vertx vertx ){
+        vertx.eventBus().<JsonObject>consumer("io.vertx.redis." + CHANNEL, message -> {
+            JsonObject value = message.body().getJsonObject("value");
+            String key = value != null ? value.getString("message") : null;
+            if(key != null && key.indexOf('/') > 0){
+                invalidateLocal(key.substring(0, key.indexOf('/')), key);
+            }
+        });
+        RedisClient subscriber = RedisClient.create(vertx, new RedisOptions(Application.config.getJsonObject("cache", new JsonObject())));
+        subscriber.subscribe(CHANNEL, subscribed -> {
+            if(subscribed.failed()){
+                System.err.println("Subscription of " + CHANNEL + " failed: " + subscribed.cause().getMessage());
+            }
+        });
+    }
+
+    private AtomicLong getInvalidations( String collection ){
+        return invalidations.computeIfAbsent(collection, c -> new AtomicLong());
+    }
+
+    private CollectionStats getStats( String collection ){
+        return stats.computeIfAbsent(collection, c -> new CollectionStats());
+    }
+
+    private static String getKey( String collection, String id ){
+        return collection + "/" + id;
+    }
+
+
+    private static class CollectionStats {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong redisHits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        private JsonObject getJSON(){
+            long total = hits.get() + redisHits.get() + misses.get();
+            return new JsonObject()
+                    .put("hits", hits.get())
+                    .put("redishits", redisHits.get())
+                    .put("misses", misses.get())
+                    .put("hitratio", total > 0 ? (double) (hits.get() + redisHits.get()) / total : 0.0);
+        }
+    }
+
+}
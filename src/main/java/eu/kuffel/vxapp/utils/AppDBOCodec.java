@@ -0,0 +1,229 @@
+package eu.kuffel.vxapp.utils;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.impl.codec.json.JsonObjectCodec;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+import org.bson.BsonReader;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+
+/**
+ * Codec for AppDBO models, maps a model directly to and from BSON without a JsonObject in between.
+ * The fields are written by the models writeBson and read by its readBsonField method, see AppBsonMapping.
+ * The helper methods store values the same way the vertx mongo client stores JsonObjects,
+ * e.g. ids and instants as strings and binary data as base64 strings, so both paths can read all documents.
+ *
+ * @author akuffel
+ * @param <T> AppDBO model
+ * @version 1.0.0
+ */
+public class AppDBOCodec<T extends AppDBO<T> & AppBsonMapping> implements CollectibleCodec<T> {
+
+    private static final JsonObjectCodec JSON_CODEC = new JsonObjectCodec(new JsonObject());
+
+    private final Class<T> type;
+    private final Supplier<T> factory;
+
+
+    /**
+     * @param type Model class
+     * @param factory Creates empty model instances for decoding, fields missing in a document keep the values of this instance.
+     */
+    public AppDBOCodec( Class<T> type, Supplier<T> factory ){
+        this.type = Objects.requireNonNull(type);
+        this.factory = Objects.requireNonNull(factory);
+    }
+
+    @Override
+    public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        if(value.getId() != null){
+            writer.writeString("_id", value.getId());
+        }
+        value.writeBson(writer, encoderContext);
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public T decode(BsonReader reader, DecoderContext decoderContext) {
+        T value = factory.get();
+        reader.readStartDocument();
+        while(reader.readBsonType() != BsonType.END_OF_DOCUMENT){
+            String name = reader.readName();
+            if("_id".equals(name)){
+                value.setId(readId(reader));
+            }else if(!value.readBsonField(name, reader, decoderContext)){
+                reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return value;
+    }
+
+    @Override
+    public Class<T> getEncoderClass() {
+        return type;
+    }
+
+    @Override
+    public T generateIdIfAbsentFromDocument(T document) {
+        if(document.getId() == null){
+            document.setId(new ObjectId().toHexString());
+        }
+        return document;
+    }
+
+    @Override
+    public boolean documentHasId(T document) {
+        return document.getId() != null;
+    }
+
+    @Override
+    public BsonValue getDocumentId(T document) {
+        if(document.getId() == null){
+            throw new IllegalStateException("The document does not contain an _id");
+        }
+        return new BsonString(document.getId());
+    }
+
+
+    public static void writeString( BsonWriter writer, String name, String value ){
+        if(value == null){
+            writer.writeNull(name);
+        }else{
+            writer.writeString(name, value);
+        }
+    }
+
+    public static void writeInstant( BsonWriter writer, String name, Instant value ){
+        writeString(writer, name, value == null ? null : value.toString());
+    }
+
+    public static void writeBinary( BsonWriter writer, String name, byte[] value ){
+        writeString(writer, name, value == null ? null : Base64.getEncoder().encodeToString(value));
+    }
+
+    public static void writeStringList( BsonWriter writer, String name, List<String> value ){
+        if(value == null){
+            writer.writeNull(name);
+            return;
+        }
+        writer.writeStartArray(name);
+        for(String s : value){
+            if(s == null){
+                writer.writeNull();
+            }else{
+                writer.writeString(s);
+            }
+        }
+        writer.writeEndArray();
+    }
+
+    public static void writeJsonObject( BsonWriter writer, String name, JsonObject value, EncoderContext encoderContext ){
+        if(value == null){
+            writer.writeNull(name);
+            return;
+        }
+        writer.writeName(name);
+        JSON_CODEC.encode(writer, value, encoderContext);
+    }
+
+    /**
+     * Read an id, ObjectIds are returned as hex string.
+     */
+    public static String readId( BsonReader reader ){
+        if(reader.getCurrentBsonType() == BsonType.OBJECT_ID){
+            return reader.readObjectId().toHexString();
+        }
+        return readString(reader);
+    }
+
+    public static String readString( BsonReader reader ){
+        if(reader.getCurrentBsonType() == BsonType.STRING){
+            return reader.readString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    public static Instant readInstant( BsonReader reader ){
+        switch (reader.getCurrentBsonType()){
+            case STRING:
+                return Instant.parse(reader.readString());
+            case DATE_TIME:
+                return Instant.ofEpochMilli(reader.readDateTime());
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    public static byte[] readBinary( BsonReader reader ){
+        switch (reader.getCurrentBsonType()){
+            case STRING:
+                return Base64.getDecoder().decode(reader.readString());
+            case BINARY:
+                return reader.readBinaryData().getData();
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    public static int readInteger( BsonReader reader, int defaultValue ){
+        switch (reader.getCurrentBsonType()){
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return (int) reader.readInt64();
+            case DOUBLE:
+                return (int) reader.readDouble();
+            default:
+                reader.skipValue();
+                return defaultValue;
+        }
+    }
+
+    public static boolean readBoolean( BsonReader reader, boolean defaultValue ){
+        if(reader.getCurrentBsonType() == BsonType.BOOLEAN){
+            return reader.readBoolean();
+        }
+        reader.skipValue();
+        return defaultValue;
+    }
+
+    public static List<String> readStringList( BsonReader reader ){
+        List<String> list = new ArrayList<>();
+        if(reader.getCurrentBsonType() != BsonType.ARRAY){
+            reader.skipValue();
+            return list;
+        }
+        reader.readStartArray();
+        while(reader.readBsonType() != BsonType.END_OF_DOCUMENT){
+            list.add(readString(reader));
+        }
+        reader.readEndArray();
+        return list;
+    }
+
+    public static JsonObject readJsonObject( BsonReader reader, DecoderContext decoderContext ){
+        if(reader.getCurrentBsonType() != BsonType.DOCUMENT){
+            reader.skipValue();
+            return null;
+        }
+        return JSON_CODEC.decode(reader, decoderContext);
+    }
+
+}
@@ -0,0 +1,160 @@
+package eu.kuffel.vxapp.utils;
+
+import com.mongodb.async.AsyncBatchCursor;
+import com.mongodb.async.client.MongoIterable;
+import eu.kuffel.vxapp.Application;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.streams.ReadStream;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * ReadStream over the cursor of a find operation.
+ * Documents are fetched batch by batch, the next batch is only requested when the previous one was
+ * handled and the stream is not paused, so only one batch is held in memory.
+ * The query starts when a handler is set, all handlers are called on the context that created the stream.
+ *
+ * @author akuffel
+ * @param <S> Document class of the collection
+ * @param <T> Element class of the stream
+ * @version 1.0.0
+ */
+public class AppDBOReadStream<S, T> implements ReadStream<T> {
+
+    private final Context context;
+    private final MongoIterable<S> iterable;
+    private final Function<S, T> mapper;
+    private final int batchSize;
+
+    private final ArrayDeque<S> batch = new ArrayDeque<>();
+    private AsyncBatchCursor<S> cursor;
+    private boolean started;
+    private boolean fetching;
+    private boolean exhausted;
+    private boolean closed;
+    private boolean paused;
+
+    private Handler<T> handler;
+    private Handler<Void> endHandler;
+    private Handler<Throwable> exceptionHandler;
+
+
+    /**
+     * @param vertx Vertx instance
+     * @param iterable Prepared find operation
+     * @param mapper Maps documents to stream elements
+     * @param batchSize Documents per batch
+     */
+    public AppDBOReadStream( Vertx vertx, MongoIterable<S> iterable, Function<S, T> mapper, int batchSize ){
+        this.context = vertx.getOrCreateContext();
+        this.iterable = Objects.requireNonNull(iterable);
+        this.mapper = Objects.requireNonNull(mapper);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public AppDBOReadStream<S, T> exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public AppDBOReadStream<S, T> handler(Handler<T> handler) {
+        this.handler = handler;
+        if(handler != null){
+            if(!started){
+                started = true;
+                iterable.batchSize(batchSize).batchCursor(Application.mongo.callback(cursorResult -> {
+                    if(cursorResult.failed()){
+                        fail(cursorResult.cause());
+                    }else{
+                        cursor = cursorResult.result();
+                        cursor.setBatchSize(batchSize);
+                        drain();
+                    }
+                }));
+            }else{
+                context.runOnContext(v -> drain());
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public AppDBOReadStream<S, T> pause() {
+        paused = true;
+        return this;
+    }
+
+    @Override
+    public AppDBOReadStream<S, T> resume() {
+        if(paused){
+            paused = false;
+            context.runOnContext(v -> drain());
+        }
+        return this;
+    }
+
+    @Override
+    public AppDBOReadStream<S, T> endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        return this;
+    }
+
+    /**
+     * Stop reading and release the cursor, no further handlers are called.
+     */
+    public void close(){
+        if(!closed){
+            closed = true;
+            batch.clear();
+            if(cursor != null){
+                cursor.close();
+            }
+        }
+    }
+
+    private void drain(){
+        while(!closed && !paused && handler != null && !batch.isEmpty()){
+            handler.handle(mapper.apply(batch.poll()));
+        }
+        if(closed || paused || handler == null || !batch.isEmpty() || cursor == null || fetching){
+            return;
+        }
+        if(exhausted){
+            close();
+            if(endHandler != null){
+                endHandler.handle(null);
+            }
+            return;
+        }
+        fetching = true;
+        cursor.next(Application.mongo.callback(nextResult -> {
+            fetching = false;
+            if(nextResult.failed()){
+                fail(nextResult.cause());
+                return;
+            }
+            List<S> documents = nextResult.result();
+            if(documents == null){
+                exhausted = true;
+            }else{
+                batch.addAll(documents);
+            }
+            drain();
+        }));
+    }
+
+    private void fail( Throwable cause ){
+        close();
+        if(exceptionHandler != null){
+            exceptionHandler.handle(cause);
+        }
+    }
+
+}
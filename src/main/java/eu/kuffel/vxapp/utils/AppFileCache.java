@@ -0,0 +1,321 @@
+package eu.kuffel.vxapp.utils;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import eu.kuffel.vxapp.Application;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.RedisOptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used disk cache for gridfs files, so frequently downloaded files can be sent with sendFile
+ * instead of being read from gridfs every time. Files are cached after their first complete download,
+ * the least recently used files are deleted if the cache exceeds its byte budget.
+ * The index is kept in memory. Every process caches into a subdirectory of its own, which is locked while the process
+ * runs, subdirectories of stopped processes are removed on startup. Only files named like cache entries are deleted.
+ * Invalidations can be published on a Redis channel and applied to the caches of all nodes.
+ * One instance is shared by all verticles.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppFileCache {
+
+    private static final long DEFAULT_MAX_BYTES = 1024L*1024*1024; // 1 GB
+    private static final long DEFAULT_MAX_FILE_SIZE = 100L*1024*1024; // 100 MB
+
+    private static final String SUBDIRECTORY_PREFIX = "cache-";
+    private static final String LOCK_FILE = ".lock";
+    private static final String ENTRY_PATTERN = "[0-9a-f]{24}(\\.[0-9a-f-]{36}\\.tmp)?";
+    private static final String CHANNEL = "filecache:invalidate";
+
+    private static AppFileCache instance;
+
+    private final Vertx vertx;
+    private final String directory;
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final boolean redis;
+    private volatile boolean ready = false;
+    private FileLock lock;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> filling = ConcurrentHashMap.newKeySet();
+    private final AtomicLong invalidations = new AtomicLong();
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fills = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    private AppFileCache( Vertx vertx, JsonObject config ){
+        this.vertx = vertx;
+        String parent = config.getString("directory", new File(System.getProperty("java.io.tmpdir"), "vxapp-filecache").getPath());
+        this.directory = new File(parent, SUBDIRECTORY_PREFIX + UUID.randomUUID().toString()).getPath();
+        this.maxBytes = config.getLong("maxbytes", DEFAULT_MAX_BYTES);
+        this.maxFileSize = Math.min(config.getLong("maxfilesize", DEFAULT_MAX_FILE_SIZE), maxBytes);
+        this.redis = config.getBoolean("redis", false) && Application.cache != null;
+    }
+
+    /**
+     * Create the shared cache instance, subsequent calls return the existing instance.
+     * The directory is prepared in the background, files are cached once it is ready.
+     * @param vertx Vertx instance for the file system and the invalidation subscription
+     * @param config JsonObject with optional enabled (boolean), directory (parent of the cache directories),
+     *               maxbytes (byte budget), maxfilesize (bytes) and redis (boolean, publish invalidations)
+     * @return AppFileCache or null if the cache is disabled.
+     */
+    public static synchronized AppFileCache create( Vertx vertx, JsonObject config ){
+        if(instance == null){
+            if(config == null){
+                config = new JsonObject();
+            }
+            if(!config.getBoolean("enabled", true)){
+                return null;
+            }
+            AppFileCache cache = new AppFileCache(vertx, config);
+            vertx.<Void>executeBlocking(future -> {
+                try{
+                    cache.prepareDirectory();
+                    future.complete();
+                }catch(IOException e){
+                    future.fail(e);
+                }
+            }, prepared -> {
+                if(prepared.succeeded()){
+                    cache.ready = true;
+                }else{
+                    System.err.println("File cache " + cache.directory + " is disabled: " + prepared.cause().getMessage());
+                }
+            });
+            if(cache.redis){
+                cache.subscribe(vertx);
+            }
+            AppMetrics.register("filecache", cache::getMetrics);
+            instance = cache;
+        }
+        return instance;
+    }
+
+    /**
+     * Get the shared cache instance.
+     * @return AppFileCache or null if create was not called yet or the cache is disabled.
+     */
+    public static AppFileCache getInstance(){
+        return instance;
+    }
+
+    /**
+     * Get the path of a cached file and mark it as recently used.
+     * @param id Hex string of the file id
+     * @return Path of the cached file or null if it is not cached.
+     */
+    public synchronized String get( String id ){
+        if(entries.get(id) != null){
+            hits.incrementAndGet();
+            return getPath(id);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Copy a file from gridfs into the cache in the background, if it is not cached or filled yet and fits into the cache.
+     * @param file GridFSFile
+     */
+    public void fill( GridFSFile file ){
+        String id = file.getObjectId().toHexString();
+        long length = file.getLength();
+        if(!ready || length <= 0 || length > maxFileSize || isCached(id) || !filling.add(id)){
+            return;
+        }
+        // Files deleted while they are filled are not added.
+        long invalidation = invalidations.get();
+        String temp = getPath(id) + "." + UUID.randomUUID().toString() + ".tmp";
+        FileSystem fs = vertx.fileSystem();
+        fs.open(temp, new OpenOptions().setCreate(true).setWrite(true).setTruncateExisting(true), opened -> {
+            if(opened.failed()){
+                filling.remove(id);
+                return;
+            }
+            Application.gridfs.downloadStream(file, 0, length - 1, opened.result(), downloaded -> {
+                opened.result().close(closed -> {
+                    if(downloaded.failed() || closed.failed() || invalidations.get() != invalidation){
+                        fs.delete(temp, deleted -> filling.remove(id));
+                        return;
+                    }
+                    fs.move(temp, getPath(id), moved -> {
+                        if(moved.succeeded()){
+                            fills.incrementAndGet();
+                            put(id, length);
+                            filling.remove(id);
+                        }else{
+                            fs.delete(temp, deleted -> filling.remove(id));
+                        }
+                    });
+                });
+            });
+        });
+    }
+
+    /**
+     * Remove a file from the caches of all nodes, must be called if the file is renamed or deleted.
+     * @param id Hex string of the file id
+     */
+    public void invalidate( String id ){
+        invalidateLocal(id);
+        if(redis){
+            Application.cache.publish(CHANNEL, id, published -> {});
+        }
+    }
+
+    private void invalidateLocal( String id ){
+        invalidations.incrementAndGet();
+        Long length;
+        synchronized (this){
+            length = entries.remove(id);
+            if(length != null){
+                bytes -= length;
+            }
+        }
+        if(length != null){
+            vertx.fileSystem().delete(getPath(id), deleted -> {});
+        }
+    }
+
+    /**
+     * Get hits, misses, fills, evictions and the used bytes of the cache.
+     * @return JsonObject
+     */
+    public synchronized JsonObject getMetrics(){
+        long total = hits.get() + misses.get();
+        return new JsonObject()
+                .put("hits", hits.get())
+                .put("misses", misses.get())
+                .put("hitratio", total > 0 ? (double) hits.get() / total : 0.0)
+                .put("fills", fills.get())
+                .put("evictions", evictions.get())
+                .put("files", entries.size())
+                .put("bytes", bytes)
+                .put("maxbytes", maxBytes);
+    }
+
+    private synchronized boolean isCached( String id ){
+        return entries.containsKey(id);
+    }
+
+    private void put( String id, long length ){
+        Map<String, Long> evicted = new LinkedHashMap<>();
+        synchronized (this){
+            Long previous = entries.put(id, length);
+            bytes += length - (previous != null ? previous : 0);
+            Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+            while(bytes > maxBytes && eldest.hasNext()){
+                Map.Entry<String, Long> entry = eldest.next();
+                if(entry.getKey().equals(id)){
+                    continue;
+                }
+                bytes -= entry.getValue();
+                evicted.put(entry.getKey(), entry.getValue());
+                eldest.remove();
+            }
+        }
+        for(String evictedId : evicted.keySet()){
+            evictions.incrementAndGet();
+            vertx.fileSystem().delete(getPath(evictedId), deleted -> {});
+        }
+    }
+
+    /**
+     * Create and lock the directory of this process and remove the directories of stopped processes.
+     * Runs blocking, the lock is held until the process ends.
+     */
+    private void prepareDirectory() throws IOException {
+        File own = new File(directory);
+        if(!own.mkdirs()){
+            throw new IOException("Directory " + directory + " can not be created.");
+        }
+        FileChannel channel = new RandomAccessFile(new File(own, LOCK_FILE), "rw").getChannel();
+        lock = channel.lock();
+        File[] siblings = own.getParentFile().listFiles();
+        if(siblings == null){
+            return;
+        }
+        for(File sibling : siblings){
+            if(sibling.isDirectory() && sibling.getName().startsWith(SUBDIRECTORY_PREFIX) && !sibling.equals(own)){
+                deleteIfStopped(sibling);
+            }
+        }
+    }
+
+    /**
+     * Delete the entries of a cache directory whose lock is not held by a running process.
+     */
+    private static void deleteIfStopped( File cacheDirectory ) throws IOException {
+        File lockFile = new File(cacheDirectory, LOCK_FILE);
+        if(!lockFile.isFile()){
+            return;
+        }
+        try(FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel()){
+            FileLock stopped = channel.tryLock();
+            if(stopped == null){
+                return;
+            }
+            File[] files = cacheDirectory.listFiles();
+            if(files != null){
+                for(File file : files){
+                    if(file.isFile() && file.getName().matches(ENTRY_PATTERN)){
+                        file.delete();
+                    }
+                }
+            }
+            stopped.release();
+        }catch(OverlappingFileLockException e){
+            return;
+        }
+        lockFile.delete();
+        cacheDirectory.delete();
+    }
+
+    /**
+     * Listen for invalidations of other nodes, the subscription needs a connection of its own.
+     * @param vertx Vertx instance
+     */
+    private void subscribe( Vertx vertx ){
+        vertx.eventBus().<JsonObject>consumer("io.vertx.redis." + CHANNEL, message -> {
+            JsonObject value = message.body().getJsonObject("value");
+            String id = value != null ? value.getString("message") : null;
+            if(id != null){
+                invalidateLocal(id);
+            }
+        });
+        RedisClient subscriber = RedisClient.create(vertx, new RedisOptions(Application.config.getJsonObject("cache", new JsonObject())));
+        subscriber.subscribe(CHANNEL, subscribed -> {
+            if(subscribed.failed()){
+                System.err.println("Subscription of " + CHANNEL + " failed: " + subscribed.cause().getMessage());
+            }
+        });
+    }
+
+    private String getPath( String id ){
+        return new File(directory, id).getPath();
+    }
+
+}
@@ -87,6 +87,32 @@ public class AppHashing {
         }
     }
 
+    /**
+     * Create a MessageDigest for hashing streamed data chunk by chunk, see getHashHex.
+     * @param algorithm MD5, SHA-256, SHA-512
+     * @return MessageDigest
+     */
+    public static MessageDigest getDigest( String algorithm ){
+        if(algorithm == null){
+            algorithm = "SHA-256";
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("Hashing algorithm "+algorithm+" not available.");
+        }
+    }
+
+    /**
+     * Complete a MessageDigest and format the hash like getHashSHA.
+     * @param digest MessageDigest with all data
+     * @return Hex string of the hash, 64 characters for SHA-256
+     */
+    public static String getHashHex( MessageDigest digest ){
+        byte[] hash = digest.digest();
+        return String.format("%0" + (hash.length * 2) + "x", new java.math.BigInteger(1, hash));
+    }
+
     /**
      * Hashing function for secure password storage, source: https://www.owasp.org/index.php/Hashing_Java
      * @param password Password
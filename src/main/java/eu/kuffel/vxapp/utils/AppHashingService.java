@@ -0,0 +1,121 @@
+package eu.kuffel.vxapp.utils;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs expensive password hashing on a dedicated worker pool instead of the event loop.
+ * The number of waiting jobs is limited, if the pool is saturated new jobs fail immediately
+ * with a RejectedExecutionException, so callers can answer with a 503 instead of queueing forever.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppHashingService {
+
+    private static final String POOL_NAME = "vxapp-hashing";
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final int DEFAULT_QUEUE_LIMIT = 64;
+
+    private static WorkerExecutor executor;
+    private static int poolSize = DEFAULT_POOL_SIZE;
+    private static int queueLimit = DEFAULT_QUEUE_LIMIT;
+
+    private static final AtomicInteger pending = new AtomicInteger();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong waitNanos = new AtomicLong();
+    private static final AtomicLong hashNanos = new AtomicLong();
+    private static final AtomicLong maxHashNanos = new AtomicLong();
+
+
+    /**
+     * Create the hashing pool, subsequent calls have no effect.
+     * @param vertx Vertx instance
+     * @param config JsonObject with optional poolsize and queuelimit
+     */
+    public static synchronized void init( Vertx vertx, JsonObject config ){
+        if(executor != null){
+            return;
+        }
+        if(config == null){
+            config = new JsonObject();
+        }
+        poolSize = config.getInteger("poolsize", DEFAULT_POOL_SIZE);
+        queueLimit = config.getInteger("queuelimit", DEFAULT_QUEUE_LIMIT);
+        executor = vertx.createSharedWorkerExecutor(POOL_NAME, poolSize);
+        AppMetrics.register("hashing", AppHashingService::getMetrics);
+    }
+
+    /**
+     * Calculate a PBKDF2 password hash on the hashing pool.
+     * @param password Password
+     * @param salt Salt
+     * @param iterations Iterations
+     * @param keyLength Key length in bits
+     * @param callback Handler with the hash, called on the current context.
+     *                 Fails with a RejectedExecutionException if the pool is saturated.
+     */
+    public static void getHashPassword( char[] password, byte[] salt, int iterations, int keyLength, Handler<AsyncResult<byte[]>> callback ){
+        Objects.requireNonNull(callback);
+        Objects.requireNonNull(executor, "AppHashingService is not initialized.");
+        if(pending.incrementAndGet() > poolSize + queueLimit){
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            callback.handle(Future.failedFuture(new RejectedExecutionException("Hashing pool saturated.")));
+            return;
+        }
+        long submitted = System.nanoTime();
+        executor.<byte[]>executeBlocking(future -> {
+            long started = System.nanoTime();
+            waitNanos.addAndGet(started - submitted);
+            byte[] hash = AppHashing.getHashPassword(password, salt, iterations, keyLength);
+            long duration = System.nanoTime() - started;
+            hashNanos.addAndGet(duration);
+            maxHashNanos.accumulateAndGet(duration, Math::max);
+            future.complete(hash);
+        }, false, hashResult -> {
+            pending.decrementAndGet();
+            completed.incrementAndGet();
+            callback.handle(hashResult);
+        });
+    }
+
+    /**
+     * Check if an exception was caused by a saturated hashing pool.
+     * @param cause Throwable of a failed AsyncResult
+     * @return True if the job was rejected
+     */
+    public static boolean isRejected( Throwable cause ){
+        return cause instanceof RejectedExecutionException;
+    }
+
+    /**
+     * Get queue depth and latency metrics, latencies in milliseconds.
+     * @return JsonObject with metrics
+     */
+    public static JsonObject getMetrics(){
+        long done = completed.get();
+        JsonObject metrics = new JsonObject();
+        metrics.put("poolsize", poolSize);
+        metrics.put("queuelimit", queueLimit);
+        metrics.put("pending", pending.get());
+        metrics.put("queued", Math.max(0, pending.get() - poolSize));
+        metrics.put("completed", done);
+        metrics.put("rejected", rejected.get());
+        metrics.put("avgwait", done > 0 ? waitNanos.get() / done / 1000000.0 : 0.0);
+        metrics.put("avghash", done > 0 ? hashNanos.get() / done / 1000000.0 : 0.0);
+        metrics.put("maxhash", maxHashNanos.get() / 1000000.0);
+        return metrics;
+    }
+
+}
@@ -15,8 +15,16 @@ public class AppJsonMessages {
 
     public static final int SERVER_ERROR = 5000;
 
+    public static final int SERVICE_UNAVAILABLE = 5030;
+
     public static final int RATE_LIMIT_EXCEEDED = 4290;
 
+    public static final int PAYLOAD_TOO_LARGE = 4130;
+
+    public static final int CONFLICT = 4090;
+
+    public static final int PRECONDITION_FAILED = 4120;
+
     public static final int NOT_FOUND = 4040;
 
     public static final int INVALID_CREDENTIALS = 4033;
@@ -51,9 +59,21 @@ public class AppJsonMessages {
             case SERVER_ERROR:
                 messageJson = createMessageJson(500, "Internal server error", "Something went terribly wrong, try again later.", info );
                 break;
+            case SERVICE_UNAVAILABLE:
+                messageJson = createMessageJson(503, "Service unavailable", "The server is busy, please try again in a few seconds.", info );
+                break;
             case RATE_LIMIT_EXCEEDED:
                 messageJson = createMessageJson(429, "Rate limit exceeded", "Please try again in a few seconds.", info);
                 break;
+            case PAYLOAD_TOO_LARGE:
+                messageJson = createMessageJson(413, "Payload too large", "The request body exceeds the maximum size.", info);
+                break;
+            case CONFLICT:
+                messageJson = createMessageJson(409, "Conflict", "The ressource was changed in the meantime, check its state and try again.", info);
+                break;
+            case PRECONDITION_FAILED:
+                messageJson = createMessageJson(412, "Precondition failed", "The ressource was changed in the meantime, reload it and try again.", info);
+                break;
             case NOT_FOUND:
                 messageJson = createMessageJson(404, "Not found", "The specified ressource is not existing.", info);
                 break;
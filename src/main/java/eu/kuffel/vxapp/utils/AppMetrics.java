@@ -0,0 +1,44 @@
+package eu.kuffel.vxapp.utils;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry for runtime metrics (caches, pools, ...).
+ * Components register a supplier once, the current values are collected on every call of getJSON.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppMetrics {
+
+    private static final Map<String, Supplier<JsonObject>> sources = new ConcurrentSkipListMap<>();
+
+    /**
+     * Register a metrics source, an existing source with the same name will be replaced.
+     * @param name Unique name, used as key in the metrics json.
+     * @param source Supplier which returns the current metrics.
+     */
+    public static void register( String name, Supplier<JsonObject> source ){
+        Objects.requireNonNull(name);
+        Objects.requireNonNull(source);
+        sources.put(name, source);
+    }
+
+    /**
+     * Collect the metrics of all registered sources.
+     * @return JsonObject with one entry per source.
+     */
+    public static JsonObject getJSON(){
+        JsonObject metrics = new JsonObject();
+        for(Map.Entry<String, Supplier<JsonObject>> source : sources.entrySet()){
+            metrics.put(source.getKey(), source.getValue().get());
+        }
+        return metrics;
+    }
+
+}
@@ -0,0 +1,137 @@
+package eu.kuffel.vxapp.utils;
+
+import com.mongodb.client.model.Filters;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import org.bson.conversions.Bson;
+
+/**
+ * Opaque cursor for keyset pagination.
+ * A cursor contains the sort specification and the sort values and _id of the last document of a page.
+ * The next page is selected with a range filter on these values instead of skipping documents,
+ * so the cost of a page does not depend on its position. The sort always ends with _id to make it unique.
+ *
+ * Format: base64url({ "sort" : { field : direction, ... }, "values" : [ value, ..., _id ] })
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppPageCursor {
+
+    private final JsonObject sort;
+    private final JsonArray values;
+
+
+    private AppPageCursor( JsonObject sort, JsonArray values ){
+        this.sort = sort;
+        this.values = values;
+    }
+
+    /**
+     * Append the _id as last sort field if it is missing.
+     * @param sort Sort specification, e.g. { "created" : -1 }
+     * @return Sort specification ending with _id
+     */
+    public static JsonObject getUniqueSort( JsonObject sort ){
+        JsonObject uniqueSort = sort == null ? new JsonObject() : sort.copy();
+        if(!uniqueSort.containsKey("_id")){
+            int direction = 1;
+            for(String field : uniqueSort.fieldNames()){
+                direction = uniqueSort.getInteger(field);
+            }
+            uniqueSort.put("_id", direction);
+        }
+        return uniqueSort;
+    }
+
+    /**
+     * Create the cursor pointing behind the given document.
+     * @param uniqueSort Sort specification ending with _id
+     * @param document Json of the last document of a page
+     * @return Cursor string
+     */
+    public static String encode( JsonObject uniqueSort, JsonObject document ){
+        JsonArray values = new JsonArray();
+        for(String field : uniqueSort.fieldNames()){
+            Object value = document.getValue(field);
+            if(value == null){
+                values.addNull();
+            }else{
+                values.add(value);
+            }
+        }
+        JsonObject cursor = new JsonObject().put("sort", uniqueSort).put("values", values);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.encode().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode a cursor and check that it was created for the same sort specification.
+     * @param cursor Cursor string
+     * @param uniqueSort Sort specification ending with _id
+     * @return AppPageCursor or null if the cursor is invalid.
+     */
+    public static AppPageCursor decode( String cursor, JsonObject uniqueSort ){
+        try {
+            JsonObject json = new JsonObject(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+            JsonObject sort = json.getJsonObject("sort");
+            JsonArray values = json.getJsonArray("values");
+            if(sort == null || values == null || !sort.equals(uniqueSort) || values.size() != sort.size()){
+                return null;
+            }
+            return new AppPageCursor(sort, values);
+        } catch (IllegalArgumentException | DecodeException | ClassCastException ex){
+            return null;
+        }
+    }
+
+    /**
+     * Get the filter for all documents behind this cursor.
+     * For a sort on a,b,_id this is: a > va OR (a = va AND b > vb) OR (a = va AND b = vb AND _id > vid),
+     * with < instead of > for descending fields. Null and missing values sort before all other values,
+     * $gt and $lt never match them, so they are handled by getRange.
+     * @return Bson filter
+     */
+    public Bson getFilter(){
+        List<Bson> alternatives = new ArrayList<>();
+        List<Bson> equals = new ArrayList<>();
+        int i = 0;
+        for(Map.Entry<String, Object> entry : sort){
+            String field = entry.getKey();
+            Object value = values.getValue(i++);
+            Bson range = getRange(field, value, ((Number) entry.getValue()).intValue() < 0);
+            if(range != null){
+                if(equals.isEmpty()){
+                    alternatives.add(range);
+                }else{
+                    List<Bson> conditions = new ArrayList<>(equals);
+                    conditions.add(range);
+                    alternatives.add(Filters.and(conditions));
+                }
+            }
+            equals.add(Filters.eq(field, value));
+        }
+        return alternatives.size() == 1 ? alternatives.get(0) : Filters.or(alternatives);
+    }
+
+    /**
+     * Get the condition for values behind the given value in the sort order.
+     * @param field Fieldname
+     * @param value Value of the cursor, may be null
+     * @param descending Sort direction of the field
+     * @return Bson filter or null if no value is behind it (null in descending order).
+     */
+    private static Bson getRange( String field, Object value, boolean descending ){
+        if(value == null){
+            return descending ? null : Filters.ne(field, null);
+        }
+        return descending ? Filters.or(Filters.lt(field, value), Filters.eq(field, null)) : Filters.gt(field, value);
+    }
+
+}
@@ -0,0 +1,190 @@
+package eu.kuffel.vxapp.utils;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Coalesces identical concurrent reads, only the first caller of a key runs the query
+ * and all callers that arrive while it is in flight get the same result.
+ * Results are handed out on the context of each caller. By default reads are only coalesced
+ * within a verticle instance, shared mode coalesces them across all verticles of the JVM.
+ * Callers that joined a flight get a copy of the result if a copy function is given, otherwise the result
+ * is shared and must not be modified by the callers.
+ *
+ * @author akuffel
+ * @param <V> Result type
+ * @version 1.0.0
+ */
+public class AppSingleFlight<V> {
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean shared = false;
+
+    private static final Map<String, AppSingleFlight<?>> instances = new ConcurrentHashMap<>();
+
+    private final Map<Object, Flight<V>> flights = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+
+    private AppSingleFlight(){
+    }
+
+    /**
+     * Configure coalescing of all instances and register the metrics.
+     * @param config JsonObject with optional enabled (boolean) and shared (boolean, coalesce across verticles)
+     */
+    public static void init( JsonObject config ){
+        if(config == null){
+            config = new JsonObject();
+        }
+        enabled = config.getBoolean("enabled", true);
+        shared = config.getBoolean("shared", false);
+        AppMetrics.register("coalescing", AppSingleFlight::getMetrics);
+    }
+
+    /**
+     * Check if identical reads are coalesced, callers can skip building keys if not.
+     * @return true if coalescing is enabled.
+     */
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Get the instance for a kind of read, e.g. "findone".
+     * @param name Name of the instance, used as key in the metrics.
+     * @param <V> Result type
+     * @return AppSingleFlight
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> AppSingleFlight<V> get( String name ){
+        return (AppSingleFlight<V>) instances.computeIfAbsent(name, n -> new AppSingleFlight<V>());
+    }
+
+    /**
+     * Run the loader or join a running load of the same key, the result is shared by all callers.
+     * @param key Key which identifies identical reads, e.g. collection and query. Any value with equals and hashCode.
+     * @param loader Called with a handler for the result, if no load of the key is in flight.
+     * @param callback Handler with the result
+     */
+    public void execute( Object key, Handler<Handler<AsyncResult<V>>> loader, Handler<AsyncResult<V>> callback ){
+        execute(key, loader, null, callback);
+    }
+
+    /**
+     * Run the loader or join a running load of the same key.
+     * If the loader throws, the flight is completed with the exception.
+     * @param key Key which identifies identical reads, e.g. collection and query. Any value with equals and hashCode.
+     * @param loader Called with a handler for the result, if no load of the key is in flight.
+     * @param copy Optional function which copies the result for every caller that joined the flight.
+     * @param callback Handler with the result
+     */
+    public void execute( Object key, Handler<Handler<AsyncResult<V>>> loader, Function<V, V> copy, Handler<AsyncResult<V>> callback ){
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(loader);
+        Objects.requireNonNull(callback);
+        calls.incrementAndGet();
+        if(!enabled){
+            executions.incrementAndGet();
+            loader.handle(callback);
+            return;
+        }
+        Context context = Vertx.currentContext();
+        Object flightKey = shared || context == null ? key : Arrays.asList(context, key);
+        while(true){
+            Flight<V> flight = flights.computeIfAbsent(flightKey, k -> new Flight<>());
+            synchronized (flight){
+                if(flight.done){
+                    // Completed in the meantime, start a new flight.
+                    flights.remove(flightKey, flight);
+                    continue;
+                }
+                flight.waiters.add(new Waiter<>(context, callback));
+                if(flight.waiters.size() > 1){
+                    coalesced.incrementAndGet();
+                    return;
+                }
+            }
+            executions.incrementAndGet();
+            Handler<AsyncResult<V>> complete = result -> {
+                List<Waiter<V>> waiters;
+                synchronized (flight){
+                    if(flight.done){
+                        return;
+                    }
+                    flight.done = true;
+                    waiters = new ArrayList<>(flight.waiters);
+                }
+                flights.remove(flightKey, flight);
+                for(int i = 0; i < waiters.size(); i++){
+                    // The caller which ran the loader gets the result itself.
+                    boolean copied = i > 0 && copy != null && result.succeeded() && result.result() != null;
+                    waiters.get(i).complete(copied ? Future.succeededFuture(copy.apply(result.result())) : result);
+                }
+            };
+            try{
+                loader.handle(complete);
+            }catch(RuntimeException e){
+                complete.handle(Future.failedFuture(e));
+            }
+            return;
+        }
+    }
+
+    /**
+     * Get calls, executed loads and coalesced calls of all instances.
+     * @return JsonObject with one entry per instance.
+     */
+    public static JsonObject getMetrics(){
+        JsonObject metrics = new JsonObject();
+        for(Map.Entry<String, AppSingleFlight<?>> instance : instances.entrySet()){
+            AppSingleFlight<?> flight = instance.getValue();
+            metrics.put(instance.getKey(), new JsonObject()
+                    .put("calls", flight.calls.get())
+                    .put("executions", flight.executions.get())
+                    .put("coalesced", flight.coalesced.get())
+                    .put("inflight", flight.flights.size()));
+        }
+        return metrics;
+    }
+
+
+    private static class Flight<V> {
+        private final List<Waiter<V>> waiters = new ArrayList<>();
+        private boolean done = false;
+    }
+
+    private static class Waiter<V> {
+        private final Context context;
+        private final Handler<AsyncResult<V>> callback;
+
+        private Waiter( Context context, Handler<AsyncResult<V>> callback ){
+            this.context = context;
+            this.callback = callback;
+        }
+
+        private void complete( AsyncResult<V> result ){
+            if(context == null || context == Vertx.currentContext()){
+                callback.handle(result);
+            }else{
+                context.runOnContext(v -> callback.handle(result));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package eu.kuffel.vxapp.utils;
+
+import eu.kuffel.vxapp.Application;
+import eu.kuffel.vxapp.models.AppUser;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.RedisOptions;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * In-memory cache for AppUser objects of authenticated clients, keyed by the user id.
+ * The last activity is written with a targeted $set and at most once per interval per user.
+ * Cached users have to be invalidated whenever the user document is changed or deleted, cached users must not be
+ * modified. If redis is enabled, invalidations are published on a Redis channel and applied on all nodes.
+ * One instance is shared by all webserver verticles.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppUserCache {
+
+    private static final int DEFAULT_SIZE = 10000;
+    private static final long DEFAULT_TTL_MS = 10000; // short, changes of other nodes are not published without redis
+    private static final long DEFAULT_LASTACTIVE_INTERVAL_MS = 60000;
+
+    private static final String CHANNEL = "user:invalidate";
+
+    private static AppUserCache instance;
+
+    private final AppCache<String, AppUser> users;
+    private final long lastactiveInterval;
+    private final boolean redis;
+
+
+    private AppUserCache( JsonObject config ){
+        this.users = new AppCache<>(config.getInteger("size", DEFAULT_SIZE), config.getLong("ttl", DEFAULT_TTL_MS));
+        this.lastactiveInterval = config.getLong("lastactiveinterval", DEFAULT_LASTACTIVE_INTERVAL_MS);
+        this.redis = config.getBoolean("redis", false) && Application.cache != null;
+    }
+
+    /**
+     * Create the shared cache instance, subsequent calls return the existing instance.
+     * @param vertx Vertx instance for the eviction timer and the invalidation subscription
+     * @param config JsonObject with optional size, ttl (ms), lastactiveinterval (ms) and redis (boolean, publish invalidations)
+     * @return AppUserCache
+     */
+    public static synchronized AppUserCache create( Vertx vertx, JsonObject config ){
+        if(instance == null){
+            if(config == null){
+                config = new JsonObject();
+            }
+            AppUserCache cache = new AppUserCache(config);
+            vertx.setPeriodic(config.getLong("ttl", DEFAULT_TTL_MS), handler -> cache.users.evictExpired());
+            if(cache.redis){
+                cache.subscribe(vertx);
+            }
+            AppMetrics.register("usercache", cache.users::getMetrics);
+            instance = cache;
+        }
+        return instance;
+    }
+
+    /**
+     * Get the shared cache instance.
+     * @return AppUserCache or null if create was not called yet.
+     */
+    public static AppUserCache getInstance(){
+        return instance;
+    }
+
+    /**
+     * Find a user by its id, the database is only queried if the user is not cached.
+     * @param id User id or null
+     * @param callback Handler with the user or null if the id is unknown.
+     */
+    public void find( String id, Handler<AppUser> callback ){
+        Objects.requireNonNull(callback);
+        if(id == null){
+            callback.handle(null);
+            return;
+        }
+        AppUser cached = users.get(id);
+        if(cached != null){
+            callback.handle(cached);
+            return;
+        }
+        AppUser.findById(id, loadedUser -> {
+            if(loadedUser != null){
+                users.put(id, loadedUser);
+            }
+            callback.handle(loadedUser);
+        });
+    }
+
+    /**
+     * Update the last activity of a user, the database is only updated once per interval.
+     * @param user AppUser
+     */
+    public void touch( AppUser user ){
+        Objects.requireNonNull(user);
+        Instant now = Instant.now();
+        synchronized (user){
+            Instant lastactive = user.getLastactive();
+            if(lastactive != null && lastactive.plusMillis(lastactiveInterval).isAfter(now)){
+                return;
+            }
+            user.setLastactive(now);
+        }
+        user.updateLastactive(null);
+    }
+
+    /**
+     * Remove a user from the caches of all nodes, e.g. after it was changed or deleted.
+     * @param id User id
+     */
+    public void invalidate( String id ){
+        if(id == null){
+            return;
+        }
+        users.remove(id);
+        if(redis){
+            Application.cache.publish(CHANNEL, id, published -> {});
+        }
+    }
+
+    /**
+     * Listen for invalidations of other nodes, the subscription needs a connection of its own.
+     * @param vertx Vertx instance
+     */
+    private void subscribe( Vertx vertx ){
+        vertx.eventBus().<JsonObject>consumer("io.vertx.redis." + CHANNEL, message -> {
+            JsonObject value = message.body().getJsonObject("value");
+            String id = value != null ? value.getString("message") : null;
+            if(id != null){
+                users.remove(id);
+            }
+        });
+        RedisClient subscriber = RedisClient.create(vertx, new RedisOptions(Application.config.getJsonObject("cache", new JsonObject())));
+        subscriber.subscribe(CHANNEL, subscribed -> {
+            if(subscribed.failed()){
+                System.err.println("Subscription of " + CHANNEL + " failed: " + subscribed.cause().getMessage());
+            }
+        });
+    }
+
+}
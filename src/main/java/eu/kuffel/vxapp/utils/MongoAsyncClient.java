@@ -0,0 +1,151 @@
+package eu.kuffel.vxapp.utils;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoDatabase;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.impl.codec.json.JsonObjectCodec;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistries;
+
+
+/**
+ * Client of the async mongo driver, next to the vertx mongo client.
+ * Collections can be bound to a codec, so documents are mapped directly to and from POJOs
+ * and Bson filters are passed to the driver without a json conversion.
+ * Driver callbacks are dispatched back to the vertx context of the caller.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class MongoAsyncClient {
+
+    private static final String DEFAULT_DB_NAME = "default_db";
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final int DEFAULT_PORT = 27017;
+    private static final JsonObjectCodec JSON_CODEC = new JsonObjectCodec(new JsonObject());
+
+    private final Vertx vertx;
+    private final MongoClient mongo;
+    private final MongoDatabase db;
+    private final Map<String, MongoCollection<?>> collections = new ConcurrentHashMap<>();
+
+
+    /**
+     * Create a client with a connection pool of its own, it is not shared with other clients.
+     * @param vertx Vertx instance
+     * @param config JsonObject with the keys of the vertx mongo client: connection_string or host, port,
+     *               username, password and authSource, and db_name
+     * @return MongoAsyncClient
+     */
+    public static MongoAsyncClient create( Vertx vertx, JsonObject config ){
+        return new MongoAsyncClient(vertx, config);
+    }
+
+
+    private MongoAsyncClient( Vertx vertx, JsonObject config ){
+        this.vertx = vertx;
+        this.mongo = MongoClients.create(new ConnectionString(getConnectionString(config)));
+        this.db = mongo.getDatabase(config.getString("db_name", DEFAULT_DB_NAME));
+    }
+
+    /**
+     * Close the connections of the driver.
+     */
+    public void close(){
+        mongo.close();
+    }
+
+    /**
+     * Get a collection with plain documents.
+     * @param name Collection name
+     * @return MongoCollection
+     */
+    public MongoCollection<Document> getCollection( String name ){
+        return db.getCollection(name);
+    }
+
+    /**
+     * Get a collection which maps its documents with the specified codec.
+     * Other types, e.g. of Bson filters, are handled by the default codecs of the driver.
+     * @param name Collection name
+     * @param codec Codec of the document class
+     * @param <T> Document class
+     * @return MongoCollection
+     */
+    @SuppressWarnings("unchecked")
+    public <T> MongoCollection<T> getCollection( String name, Codec<T> codec ){
+        Objects.requireNonNull(codec);
+        String key = name + "/" + codec.getEncoderClass().getName();
+        return (MongoCollection<T>) collections.computeIfAbsent(key, k -> db.getCollection(name, codec.getEncoderClass())
+                .withCodecRegistry(CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(codec), MongoClients.getDefaultCodecRegistry())));
+    }
+
+    /**
+     * Get a collection with documents mapped to JsonObjects, like the vertx mongo client does.
+     * @param name Collection name
+     * @return MongoCollection
+     */
+    public MongoCollection<JsonObject> getJsonCollection( String name ){
+        return getCollection(name, JSON_CODEC);
+    }
+
+    private static String getConnectionString( JsonObject config ){
+        String connectionString = config.getString("connection_string", null);
+        if(connectionString != null){
+            return connectionString;
+        }
+        StringBuilder builder = new StringBuilder("mongodb://");
+        String username = config.getString("username", null);
+        if(username != null){
+            builder.append(encode(username)).append(":").append(encode(config.getString("password", ""))).append("@");
+        }
+        builder.append(config.getString("host", DEFAULT_HOST)).append(":").append(config.getInteger("port", DEFAULT_PORT)).append("/");
+        if(username != null && config.getString("authSource", null) != null){
+            builder.append("?authSource=").append(encode(config.getString("authSource")));
+        }
+        return builder.toString();
+    }
+
+    private static String encode( String value ){
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wrap a vertx handler into a driver callback, the handler is called on the context of the caller.
+     * @param handler Handler with the result
+     * @param <T> Result type
+     * @return SingleResultCallback
+     */
+    public <T> SingleResultCallback<T> callback( Handler<AsyncResult<T>> handler ){
+        Objects.requireNonNull(handler);
+        Context context = vertx.getOrCreateContext();
+        return (result, error) -> context.runOnContext(v -> {
+            if(error == null){
+                handler.handle(Future.succeededFuture(result));
+            }else{
+                handler.handle(Future.failedFuture(error));
+            }
+        });
+    }
+
+}
@@ -1,23 +1,42 @@
 package eu.kuffel.vxapp.utils;
 
+import com.mongodb.async.AsyncBatchCursor;
 import com.mongodb.async.SingleResultCallback;
 import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoCollection;
 import com.mongodb.async.client.gridfs.*;
 import com.mongodb.async.client.gridfs.helpers.AsyncStreamHelper;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import com.mongodb.client.gridfs.model.GridFSUploadOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
 import static io.vertx.ext.mongo.MongoClient.DEFAULT_POOL_NAME;
 import io.vertx.ext.mongo.impl.MongoClientImpl;
 
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
 
@@ -26,7 +45,17 @@ import org.bson.types.ObjectId;
  */
 public class MongoGridFSClient extends MongoClientImpl {
 
+    private static final int DOWNLOAD_BATCH_SIZE = 4; // chunks per read
+    private static final long WRITER_LEASE_MS = 60000; // lease of a resumable upload writer
+    private static final long WRITER_LEASE_MARGIN_MS = 20000; // writers renew their lease if less time is left
+
+    private final Vertx vertx;
     private final GridFSBucket bucket;
+    private final MongoCollection<Document> chunks;
+    private final MongoCollection<Document> hashes;
+    private final MongoCollection<Document> files;
+    private final MongoCollection<Document> uploads;
+    private final Integer chunkSize;
 
 
     public static MongoGridFSClient createNonShared(Vertx vertx, JsonObject config) {
@@ -44,9 +73,23 @@ public class MongoGridFSClient extends MongoClientImpl {
 
     public MongoGridFSClient(Vertx vertx, JsonObject config, String dataSourceName) {
         super(vertx, config, dataSourceName);
+        this.vertx = vertx;
+        this.chunkSize = config.getInteger("chunksize", null);
         String db_name = config.getString("db_name","gridfs_db");
         String bucket_name = config.getString("bucket_name","files");
         bucket = GridFSBuckets.create(mongo.getDatabase(db_name), bucket_name);
+        chunks = mongo.getDatabase(db_name).getCollection(bucket_name + ".chunks");
+        files = mongo.getDatabase(db_name).getCollection(bucket_name + ".files");
+        // Sessions of resumable uploads, their chunks are written to the chunks collection as they arrive.
+        uploads = mongo.getDatabase(db_name).getCollection(bucket_name + ".uploads");
+        uploads.createIndex(new Document("updated", 1), (result, t) -> {});
+        // Index of the SHA-256 hashes of the stored files with their number of references.
+        if(config.getBoolean("deduplicate", true)){
+            hashes = mongo.getDatabase(db_name).getCollection(bucket_name + ".hashes");
+            hashes.createIndex(new Document("fileId", 1), (result, t) -> {});
+        }else{
+            hashes = null;
+        }
     }
 
 
@@ -61,11 +104,7 @@ public class MongoGridFSClient extends MongoClientImpl {
         Objects.nonNull(filename);
         Objects.nonNull(buffer);
         Objects.nonNull(callback);
-        GridFSUploadOptions options = new GridFSUploadOptions();
-        if(metadata != null){
-            options.metadata(Document.parse(metadata.encode()));
-        }
-        GridFSUploadStream stream = bucket.openUploadStream(filename,options);
+        GridFSUploadStream stream = bucket.openUploadStream(filename,getUploadOptions(metadata));
         stream.write(ByteBuffer.wrap(buffer.getBytes()),new SingleResultCallback<Integer>() {
             @Override
             public void onResult(Integer filesize, Throwable uploadError) {
@@ -79,6 +118,176 @@ public class MongoGridFSClient extends MongoClientImpl {
         });
     }
 
+    /**
+     * Upload a ReadStream (e.g. a HttpServerRequest) with the given filename to gridfs, chunk by chunk.
+     * The source is paused while a chunk is written, so the memory of an upload is bounded by the gridfs chunk size.
+     * The source is resumed by this method, it should be paused by the caller if data can arrive before.
+     * The content is hashed with SHA-256 while it is written. If deduplication is enabled and a file with the same hash
+     * is stored, the written chunks are removed and the upload gets a files document of its own, with its filename
+     * and metadata, which references the stored chunks. If the expected hash is passed and already stored,
+     * the content is only hashed and no chunks are written.
+     * @param filename Filename
+     * @param metadata Optional Metadata
+     * @param source ReadStream with the file content
+     * @param maxSize Maximum file size in bytes, 0 for no limit. Larger uploads are aborted with a SizeLimitExceededException.
+     * @param expectedHash Optional hex SHA-256 hash of the content, uploads with another hash fail with a HashMismatchException.
+     * @param callback Vertx Handler with _id, sha256, length, deduplicated, filename and metadata of the upload,
+     *                 called on the context of the caller.
+     */
+    public void uploadStream( String filename, JsonObject metadata, ReadStream<Buffer> source, long maxSize, String expectedHash, Handler<AsyncResult<JsonObject>> callback ){
+        Objects.requireNonNull(filename);
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(callback);
+        Context context = vertx.getOrCreateContext();
+        if(hashes == null || expectedHash == null){
+            storeStream(context, filename, metadata, source, maxSize, expectedHash, callback);
+            return;
+        }
+        hashes.find(Filters.eq("_id", expectedHash)).first(onContext(context, found -> {
+            if(found.failed() || found.result() == null){
+                storeStream(context, filename, metadata, source, maxSize, expectedHash, callback);
+                return;
+            }
+            new StreamUpload(context, null, source, maxSize).start(hashed -> {
+                if(hashed.failed()){
+                    callback.handle(Future.failedFuture(hashed.cause()));
+                }else if(!expectedHash.equals(hashed.result())){
+                    callback.handle(Future.failedFuture(new HashMismatchException()));
+                }else{
+                    addReference(context, expectedHash, referenced -> {
+                        if(referenced.succeeded() && referenced.result() != null){
+                            storeReference(context, new ObjectId(), referenced.result(), filename, metadata, callback);
+                        }else{
+                            callback.handle(Future.failedFuture(referenced.failed() ? referenced.cause() : new IllegalStateException("The stored file was deleted in the meantime.")));
+                        }
+                    });
+                }
+            });
+        }));
+    }
+
+    /**
+     * Write the content to gridfs and keep it, if no file with the same hash is stored.
+     */
+    private void storeStream( Context context, String filename, JsonObject metadata, ReadStream<Buffer> source, long maxSize, String expectedHash, Handler<AsyncResult<JsonObject>> callback ){
+        GridFSUploadStream stream = bucket.openUploadStream(filename, getUploadOptions(metadata));
+        StreamUpload upload = new StreamUpload(context, stream, source, maxSize);
+        upload.start(hashed -> {
+            if(hashed.failed()){
+                callback.handle(Future.failedFuture(hashed.cause()));
+                return;
+            }
+            String hash = hashed.result();
+            if(expectedHash != null && !expectedHash.equals(hash)){
+                stream.abort(onContext(context, aborted -> callback.handle(Future.failedFuture(new HashMismatchException()))));
+                return;
+            }
+            ObjectId fileId = stream.getObjectId();
+            Document entry = new Document("_id", hash)
+                    .append("fileId", fileId)
+                    .append("length", upload.length)
+                    .append("chunkSize", chunkSize != null ? chunkSize : bucket.getChunkSizeBytes())
+                    .append("md5", upload.md5Hex)
+                    .append("refs", 1);
+            if(hashes == null){
+                stream.close(onContext(context, closed -> callback.handle(closed.succeeded() ? Future.succeededFuture(getUploadResult(fileId, entry, false, filename, metadata)) : Future.failedFuture(closed.cause()))));
+                return;
+            }
+            addReference(context, hash, referenced -> {
+                if(referenced.succeeded() && referenced.result() != null){
+                    // Duplicate, the written chunks are removed.
+                    stream.abort(onContext(context, aborted -> storeReference(context, fileId, referenced.result(), filename, metadata, callback)));
+                    return;
+                }
+                stream.close(onContext(context, closed -> {
+                    if(closed.failed()){
+                        callback.handle(Future.failedFuture(closed.cause()));
+                        return;
+                    }
+                    // Without an index entry, e.g. if the same content was stored concurrently, the file is only not deduplicated.
+                    hashes.insertOne(entry, onContext(context, inserted -> callback.handle(Future.succeededFuture(getUploadResult(fileId, entry, false, filename, metadata)))));
+                }));
+            });
+        });
+    }
+
+    /**
+     * Add a reference to a stored hash.
+     * @param callback Handler with the updated index entry or null if the hash is not stored.
+     */
+    private void addReference( Context context, String hash, Handler<AsyncResult<Document>> callback ){
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+        hashes.findOneAndUpdate(Filters.eq("_id", hash), Updates.inc("refs", 1), options, onContext(context, callback));
+    }
+
+    /**
+     * Store the files document of a deduplicated upload, with the filename and metadata of the upload and the contentId
+     * of the stored chunks. The reference must be added to the index entry before, it is removed again on failure.
+     * Nothing of the other files with the same content is read or returned.
+     */
+    private void storeReference( Context context, ObjectId fileId, Document entry, String filename, JsonObject metadata, Handler<AsyncResult<JsonObject>> callback ){
+        ObjectId contentId = entry.getObjectId("fileId");
+        getContent(context, entry, content -> {
+            if(content.failed()){
+                dereference(contentId, v -> callback.handle(Future.failedFuture(content.cause())));
+                return;
+            }
+            Document file = new Document("_id", fileId)
+                    .append("length", getLong(entry, "length"))
+                    .append("chunkSize", content.result().getInteger("chunkSize"))
+                    .append("uploadDate", new Date())
+                    .append("md5", content.result().getString("md5"))
+                    .append("filename", filename)
+                    .append("contentId", contentId);
+            if(metadata != null){
+                file.append("metadata", Document.parse(metadata.encode()));
+            }
+            files.insertOne(file, onContext(context, inserted -> {
+                if(inserted.failed()){
+                    dereference(contentId, v -> callback.handle(Future.failedFuture(inserted.cause())));
+                    return;
+                }
+                callback.handle(Future.succeededFuture(getUploadResult(fileId, entry, true, filename, metadata)));
+            }));
+        });
+    }
+
+    /**
+     * Get the chunkSize and md5 of stored content. Index entries of older versions do not contain them,
+     * they are read from the files document of the content.
+     */
+    private void getContent( Context context, Document entry, Handler<AsyncResult<Document>> callback ){
+        if(entry.get("chunkSize") != null && entry.get("md5") != null){
+            callback.handle(Future.succeededFuture(entry));
+            return;
+        }
+        files.find(Filters.eq("_id", entry.getObjectId("fileId"))).projection(new Document("chunkSize", 1).append("md5", 1)).first(onContext(context, found -> {
+            if(found.succeeded() && found.result() == null){
+                callback.handle(Future.failedFuture(new IllegalStateException("The stored file was deleted in the meantime.")));
+                return;
+            }
+            callback.handle(found);
+        }));
+    }
+
+    /**
+     * Get the result of a stored upload.
+     */
+    private static JsonObject getUploadResult( ObjectId fileId, Document entry, boolean deduplicated, String filename, JsonObject metadata ){
+        JsonObject result = new JsonObject();
+        result.put("_id", fileId.toHexString());
+        result.put("sha256", entry.getString("_id"));
+        result.put("length", getLong(entry, "length"));
+        result.put("deduplicated", deduplicated);
+        result.put("filename", filename);
+        result.put("metadata", metadata);
+        return result;
+    }
+
+    private static JsonObject toJson( Object document ){
+        return document instanceof Document ? new JsonObject(((Document) document).toJson()) : null;
+    }
+
     /**
      * Get a file from gridfs as vertx buffer.
      * @param objectId MongoDB ObjectID
@@ -87,35 +296,38 @@ public class MongoGridFSClient extends MongoClientImpl {
     public void downloadFile( ObjectId objectId, Handler<Buffer> callback ){
         Objects.nonNull(objectId);
         Objects.nonNull(callback);
-        GridFSDownloadStream downloadStream = bucket.openDownloadStream(objectId);
-        downloadStream.getGridFSFile(new SingleResultCallback<GridFSFile>() {
-            @Override
-            public void onResult(GridFSFile file, Throwable t) {
-                if(file != null){
-                    ByteBuffer byteBuffer = ByteBuffer.allocate((int)file.getLength());
-                    downloadStream.read(byteBuffer, new SingleResultCallback<Integer>() {
-                        @Override
-                        public void onResult(Integer result, Throwable t) {
-                            if(result > 0){
-                                Buffer data = Buffer.buffer(byteBuffer.array());
-                                downloadStream.close(new SingleResultCallback<Void>() {
-                                    @Override
-                                    public void onResult(Void result, Throwable t) {
-                                        callback.handle(data);
-                                    }
-                                });
-                            }else{
-                                callback.handle(null);
-                            }
-                        }
-                    });
-                }else{
-                    callback.handle(null);
-                }
+        // Read like a download, deduplicated files have no chunks of their own.
+        getFile(objectId, file -> {
+            if(file == null || file.getLength() <= 0){
+                callback.handle(null);
+                return;
             }
+            BufferStream data = new BufferStream();
+            downloadStream(file, 0, file.getLength() - 1, data, downloaded -> callback.handle(downloaded.succeeded() ? data.buffer : null));
         });
     }
 
+    /**
+     * Write a byte range of a file to a WriteStream (e.g. a HttpServerResponse), chunk by chunk.
+     * Chunks are read in small batches directly from the chunks collection, so a range starts at its first chunk
+     * and the next batch is only read when the target can take more data.
+     * The target is not ended by this method.
+     * @param file GridFSFile, see getFile
+     * @param start First byte (inclusive)
+     * @param end Last byte (inclusive)
+     * @param target WriteStream for the content
+     * @param callback Vertx Handler with the number of written bytes, called on the context of the caller.
+     * @return StreamDownload, which can be cancelled if the target is closed.
+     */
+    public StreamDownload downloadStream( GridFSFile file, long start, long end, WriteStream<Buffer> target, Handler<AsyncResult<Long>> callback ){
+        Objects.requireNonNull(file);
+        Objects.requireNonNull(target);
+        Objects.requireNonNull(callback);
+        StreamDownload download = new StreamDownload(vertx.getOrCreateContext(), getContentId(file), file.getChunkSize(), file.getLength(), start, end, target, callback);
+        download.start(chunks);
+        return download;
+    }
+
     /**
      * Get GridFSFile Object
      * @param objectId MongoDB ObjectID
@@ -150,6 +362,7 @@ public class MongoGridFSClient extends MongoClientImpl {
         bucket.rename(objectId, newFilename, new SingleResultCallback<Void>() {
             @Override
             public void onResult(Void result, Throwable t) {
+                invalidateCached(objectId);
                 if(callback != null){
                     callback.handle(result);
                 }
@@ -160,22 +373,1020 @@ public class MongoGridFSClient extends MongoClientImpl {
 
     /**
      * Given a id, delete this stored file's files collection document and associated chunks from a GridFS bucket.
+     * Deduplicated files share their chunks, which are only deleted with the last reference.
      * @param objectId the ObjectId of the file to be deleted
      * @param callback the callback that is completed once the file has been deleted
      */
     public void deleteFile( ObjectId objectId, Handler<Void> callback ){
         Objects.nonNull(objectId);
-        bucket.delete(objectId, new SingleResultCallback<Void>() {
-            @Override
-            public void onResult(Void result, Throwable t) {
-                if(callback != null){
-                    callback.handle(result);
+        Handler<Void> done = v -> {
+            invalidateCached(objectId);
+            if(callback != null){
+                callback.handle(null);
+            }
+        };
+        files.findOneAndDelete(Filters.eq("_id", objectId), (file, t) -> {
+            if(t != null || file == null){
+                done.handle(null);
+                return;
+            }
+            Object contentId = file.get("contentId");
+            if(contentId instanceof ObjectId && !contentId.equals(objectId)){
+                if(hashes != null){
+                    dereference((ObjectId) contentId, done);
+                }else{
+                    // Without the index the other references are unknown, the chunks are kept.
+                    done.handle(null);
+                }
+            }else if(hashes != null){
+                dereference(objectId, done);
+            }else{
+                deleteChunks(objectId, done);
+            }
+        });
+    }
+
+    /**
+     * Remove a reference to stored content and delete its chunks with the last reference.
+     * @param contentId Id of the chunks
+     */
+    private void dereference( ObjectId contentId, Handler<Void> callback ){
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+        hashes.findOneAndUpdate(Filters.eq("fileId", contentId), Updates.inc("refs", -1), options, (entry, t) -> {
+            if(t == null && entry == null){
+                // Not deduplicated
+                deleteChunks(contentId, callback);
+            }else if(t != null || entry.getInteger("refs", 0) > 0){
+                callback.handle(null);
+            }else{
+                // Uploads which referenced the hash in the meantime keep the chunks.
+                hashes.deleteOne(Filters.and(Filters.eq("_id", entry.getString("_id")), Filters.lte("refs", 0)), (deleted, deleteError) -> {
+                    if(deleteError == null && deleted.getDeletedCount() > 0){
+                        deleteChunks(contentId, callback);
+                    }else{
+                        callback.handle(null);
+                    }
+                });
+            }
+        });
+    }
+
+    private void deleteChunks( ObjectId contentId, Handler<Void> callback ){
+        chunks.deleteMany(Filters.eq("files_id", contentId), (deleted, t) -> callback.handle(null));
+    }
+
+
+    /**
+     * Create a resumable upload session. The id of the session is the id of the file after finalizeUpload.
+     * Sessions can only be read and changed by their owner, other owners get null as if the session does not exist.
+     * @param filename Filename
+     * @param metadata Optional Metadata
+     * @param length Optional total length in bytes, finalizeUpload requires all bytes if it is set.
+     * @param owner Owner of the session, e.g. the id of the user
+     * @param callback Vertx Handler with the session, see getUpload
+     */
+    public void createUpload( String filename, JsonObject metadata, Long length, String owner, Handler<AsyncResult<JsonObject>> callback ){
+        Objects.requireNonNull(filename);
+        Objects.requireNonNull(owner);
+        Objects.requireNonNull(callback);
+        Context context = vertx.getOrCreateContext();
+        Date now = new Date();
+        Document session = new Document("_id", new ObjectId())
+                .append("filename", filename)
+                .append("metadata", metadata != null ? Document.parse(metadata.encode()) : null)
+                .append("length", length)
+                .append("received", 0L)
+                .append("chunkSize", chunkSize != null ? chunkSize : bucket.getChunkSizeBytes())
+                .append("owner", owner)
+                .append("created", now)
+                .append("updated", now);
+        uploads.insertOne(session, onContext(context, inserted -> {
+            callback.handle(inserted.succeeded() ? Future.succeededFuture(getUploadJSON(session)) : Future.failedFuture(inserted.cause()));
+        }));
+    }
+
+    /**
+     * Get the progress of a resumable upload session.
+     * @param id Hex string of the session id
+     * @param owner Owner of the session
+     * @param callback Vertx Handler with _id, filename, length, received, chunkSize, created and updated or null if the session
+     *                 does not exist or has another owner.
+     */
+    public void getUpload( String id, String owner, Handler<AsyncResult<JsonObject>> callback ){
+        Objects.requireNonNull(callback);
+        Context context = vertx.getOrCreateContext();
+        if(!ObjectId.isValid(id)){
+            callback.handle(Future.succeededFuture(null));
+            return;
+        }
+        uploads.find(getOwned(new ObjectId(id), owner)).first(onContext(context, found -> {
+            callback.handle(found.succeeded() ? Future.succeededFuture(found.result() != null ? getUploadJSON(found.result()) : null) : Future.failedFuture(found.cause()));
+        }));
+    }
+
+    /**
+     * Append a ReadStream (e.g. a HttpServerRequest) to a resumable upload session, chunk by chunk.
+     * The offset must be the number of received bytes of the session, progress is stored after every complete chunk
+     * and at the end of the stream. Interrupted uploads are continued at the received bytes of the session.
+     * A write claims the session with a writer token before chunks are touched, concurrent writes and finalizeUpload
+     * are rejected until the write ends or its lease expires.
+     * The source is resumed by this method, it should be paused by the caller if data can arrive before.
+     * @param id Hex string of the session id
+     * @param owner Owner of the session
+     * @param offset Offset of the content
+     * @param source ReadStream with the content
+     * @param maxSize Maximum file size in bytes if the session has no length, 0 for no limit.
+     * @param callback Vertx Handler with the session or null if it does not exist or has another owner. Fails with an UploadConflictException
+     *                 if the offset is not the received bytes of the session or the session is changed concurrently.
+     */
+    public void writeUpload( String id, String owner, long offset, ReadStream<Buffer> source, long maxSize, Handler<AsyncResult<JsonObject>> callback ){
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(callback);
+        Context context = vertx.getOrCreateContext();
+        if(!ObjectId.isValid(id)){
+            callback.handle(Future.succeededFuture(null));
+            return;
+        }
+        ObjectId fileId = new ObjectId(id);
+        String writer = UUID.randomUUID().toString();
+        Date now = new Date();
+        Bson claimable = Filters.and(
+                getOwned(fileId, owner),
+                Filters.eq("received", offset),
+                Filters.ne("finalizing", true),
+                Filters.or(Filters.eq("writer", null), Filters.lt("writerUntil", now)));
+        Bson claim = Updates.combine(
+                Updates.set("writer", writer),
+                Updates.set("writerUntil", new Date(now.getTime() + WRITER_LEASE_MS)),
+                Updates.set("updated", now));
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+        uploads.findOneAndUpdate(claimable, claim, options, onContext(context, claimed -> {
+            if(claimed.failed()){
+                callback.handle(Future.failedFuture(claimed.cause()));
+                return;
+            }
+            Document session = claimed.result();
+            if(session == null){
+                getUpload(id, owner, existing -> {
+                    if(existing.succeeded() && existing.result() != null){
+                        callback.handle(Future.failedFuture(new UploadConflictException(existing.result().getLong("received", 0L))));
+                    }else{
+                        callback.handle(existing.failed() ? Future.failedFuture(existing.cause()) : Future.succeededFuture(null));
+                    }
+                });
+                return;
+            }
+            long received = getLong(session, "received");
+            Long length = session.get("length") != null ? getLong(session, "length") : null;
+            long limit = length != null ? length : maxSize;
+            int sessionChunkSize = session.getInteger("chunkSize");
+            int partial = (int) (received % sessionChunkSize);
+            if(partial == 0){
+                new ChunkWriter(context, session, writer, now.getTime(), Buffer.buffer(), source, limit, callback).start();
+                return;
+            }
+            // The last chunk is incomplete, it is continued.
+            Bson lastChunk = Filters.and(Filters.eq("files_id", fileId), Filters.eq("n", (int) (received / sessionChunkSize)));
+            chunks.find(lastChunk).first(onContext(context, chunk -> {
+                Binary data = chunk.succeeded() && chunk.result() != null ? (Binary) chunk.result().get("data") : null;
+                if(data == null || data.length() < partial){
+                    releaseWriter(fileId, writer);
+                    callback.handle(Future.failedFuture(chunk.failed() ? chunk.cause() : new IllegalStateException("Upload " + id + " is incomplete.")));
+                    return;
+                }
+                new ChunkWriter(context, session, writer, now.getTime(), Buffer.buffer(data.getData()).getBuffer(0, partial), source, limit, callback).start();
+            }));
+        }));
+    }
+
+    /**
+     * Finalize a resumable upload session, the received chunks become a gridfs file with the id of the session.
+     * The chunks are read once to calculate the md5 and the SHA-256 hash. If deduplication is enabled and a file with
+     * the same hash is stored, the chunks are removed and the files document references the stored chunks instead.
+     * @param id Hex string of the session id
+     * @param owner Owner of the session
+     * @param callback Vertx Handler with _id, sha256, length, deduplicated, filename and metadata of the stored file
+     *                 or null if the session does not exist or has another owner.
+     *                 Fails with an UploadConflictException if bytes are missing or the session is already finalized.
+     */
+    public void finalizeUpload( String id, String owner, Handler<AsyncResult<JsonObject>> callback ){
+        Objects.requireNonNull(callback);
+        Context context = vertx.getOrCreateContext();
+        if(!ObjectId.isValid(id)){
+            callback.handle(Future.succeededFuture(null));
+            return;
+        }
+        ObjectId fileId = new ObjectId(id);
+        // Only sessions without a live writer are finalized, the token of an expired writer is revoked.
+        Date now = new Date();
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+        Bson claimable = Filters.and(
+                getOwned(fileId, owner),
+                Filters.ne("finalizing", true),
+                Filters.or(Filters.eq("writer", null), Filters.lt("writerUntil", now)));
+        Bson claim = Updates.combine(Updates.set("finalizing", true), Updates.unset("writer"), Updates.unset("writerUntil"), Updates.set("updated", now));
+        uploads.findOneAndUpdate(claimable, claim, options, onContext(context, claimed -> {
+            if(claimed.failed()){
+                callback.handle(Future.failedFuture(claimed.cause()));
+                return;
+            }
+            Document session = claimed.result();
+            if(session == null){
+                getUpload(id, owner, existing -> {
+                    if(existing.succeeded() && existing.result() != null){
+                        callback.handle(Future.failedFuture(new UploadConflictException(existing.result().getLong("received", 0L))));
+                    }else{
+                        callback.handle(existing.failed() ? Future.failedFuture(existing.cause()) : Future.succeededFuture(null));
+                    }
+                });
+                return;
+            }
+            long received = getLong(session, "received");
+            if(session.get("length") != null && getLong(session, "length") != received){
+                releaseUpload(fileId);
+                callback.handle(Future.failedFuture(new UploadConflictException(received)));
+                return;
+            }
+            int sessionChunkSize = session.getInteger("chunkSize");
+            int chunkCount = (int) ((received + sessionChunkSize - 1) / sessionChunkSize);
+            // Chunks of interrupted writes beyond the received bytes are removed.
+            chunks.deleteMany(Filters.and(Filters.eq("files_id", fileId), Filters.gte("n", chunkCount)), onContext(context, cleaned -> {
+                if(cleaned.failed()){
+                    releaseUpload(fileId);
+                    callback.handle(Future.failedFuture(cleaned.cause()));
+                    return;
                 }
+                DigestStream digests = new DigestStream();
+                new StreamDownload(context, fileId, sessionChunkSize, received, 0, received - 1, digests, read -> {
+                    if(read.failed()){
+                        releaseUpload(fileId);
+                        callback.handle(Future.failedFuture(read.cause()));
+                        return;
+                    }
+                    completeUpload(context, session, AppHashing.getHashHex(digests.md5), AppHashing.getHashHex(digests.sha256), callback);
+                }).start(chunks);
+            }));
+        }));
+    }
+
+    /**
+     * Delete a resumable upload session and its chunks.
+     * @param id Hex string of the session id
+     * @param owner Owner of the session
+     * @param callback Vertx Handler with true if the session was deleted, false if it does not exist, has another owner or is finalizing.
+     */
+    public void deleteUpload( String id, String owner, Handler<AsyncResult<Boolean>> callback ){
+        Objects.requireNonNull(callback);
+        Context context = vertx.getOrCreateContext();
+        if(!ObjectId.isValid(id)){
+            callback.handle(Future.succeededFuture(false));
+            return;
+        }
+        ObjectId fileId = new ObjectId(id);
+        uploads.deleteOne(Filters.and(getOwned(fileId, owner), Filters.ne("finalizing", true)), onContext(context, deleted -> {
+            if(deleted.failed()){
+                callback.handle(Future.failedFuture(deleted.cause()));
+            }else if(deleted.result().getDeletedCount() > 0){
+                chunks.deleteMany(Filters.eq("files_id", fileId), onContext(context, cleaned -> callback.handle(Future.succeededFuture(true))));
+            }else{
+                callback.handle(Future.succeededFuture(false));
+            }
+        }));
+    }
+
+    /**
+     * Delete resumable upload sessions and their chunks, which were not changed within the given time.
+     * Sessions which are finalizing keep their chunks, the file may still be stored. Sessions whose files document
+     * was stored are only removed, their chunks belong to the file.
+     * @param maxAge Maximum age of the last change in ms
+     */
+    public void deleteExpiredUploads( long maxAge ){
+        Date expired = new Date(System.currentTimeMillis() - maxAge);
+        uploads.find(Filters.lt("updated", expired)).projection(new Document("_id", 1)).into(new ArrayList<Document>(), (sessions, t) -> {
+            if(sessions == null){
+                return;
+            }
+            for(Document session : sessions){
+                ObjectId fileId = session.getObjectId("_id");
+                files.find(Filters.eq("_id", fileId)).projection(new Document("contentId", 1)).first((file, findError) -> {
+                    if(findError != null){
+                        return;
+                    }
+                    if(file != null){
+                        // Finalized, but the session was not removed. Chunks of the session are only unused if the file references others.
+                        uploads.deleteOne(Filters.eq("_id", fileId), (deleted, deleteError) -> {
+                            if(deleteError == null && file.get("contentId") != null && !fileId.equals(file.get("contentId"))){
+                                chunks.deleteMany(Filters.eq("files_id", fileId), (cleaned, cleanError) -> {});
+                            }
+                        });
+                        return;
+                    }
+                    Bson abandoned = Filters.and(Filters.eq("_id", fileId), Filters.lt("updated", expired), Filters.ne("finalizing", true));
+                    uploads.deleteOne(abandoned, (deleted, deleteError) -> {
+                        if(deleteError == null && deleted.getDeletedCount() > 0){
+                            chunks.deleteMany(Filters.eq("files_id", fileId), (cleaned, cleanError) -> {});
+                        }
+                    });
+                });
             }
         });
     }
 
+    /**
+     * Store the files document of a finalized upload, which references the chunks of a stored file with the same hash.
+     */
+    private void completeUpload( Context context, Document session, String md5, String sha256, Handler<AsyncResult<JsonObject>> callback ){
+        ObjectId fileId = session.getObjectId("_id");
+        long received = getLong(session, "received");
+        Document file = new Document("_id", fileId)
+                .append("length", received)
+                .append("chunkSize", session.getInteger("chunkSize"))
+                .append("uploadDate", new Date())
+                .append("md5", md5)
+                .append("filename", session.getString("filename"));
+        if(session.get("metadata") != null){
+            file.append("metadata", session.get("metadata"));
+        }
+        Document entry = new Document("_id", sha256)
+                .append("fileId", fileId)
+                .append("length", received)
+                .append("chunkSize", session.getInteger("chunkSize"))
+                .append("md5", md5)
+                .append("refs", 1);
+        Handler<Void> store = v -> files.insertOne(file, onContext(context, inserted -> {
+            if(inserted.failed()){
+                releaseUpload(fileId);
+                callback.handle(Future.failedFuture(inserted.cause()));
+                return;
+            }
+            uploads.deleteOne(Filters.eq("_id", fileId), (deleted, t) -> {});
+            if(hashes == null){
+                callback.handle(Future.succeededFuture(getUploadResult(fileId, entry, false, session.getString("filename"), toJson(session.get("metadata")))));
+                return;
+            }
+            // A concurrent upload of the same content keeps both files, this one is only not deduplicated.
+            hashes.insertOne(entry, onContext(context, indexed -> callback.handle(Future.succeededFuture(getUploadResult(fileId, entry, false, session.getString("filename"), toJson(session.get("metadata")))))));
+        }));
+        if(hashes == null){
+            store.handle(null);
+            return;
+        }
+        addReference(context, sha256, referenced -> {
+            if(referenced.succeeded() && referenced.result() != null){
+                // The upload gets a files document of its own, its chunks are replaced by the stored ones.
+                storeReference(context, fileId, referenced.result(), session.getString("filename"), toJson(session.get("metadata")), stored -> {
+                    if(stored.failed()){
+                        releaseUpload(fileId);
+                    }else{
+                        uploads.deleteOne(Filters.eq("_id", fileId), (deleted, t) -> {
+                            chunks.deleteMany(Filters.eq("files_id", fileId), (cleaned, cleanError) -> {});
+                        });
+                    }
+                    callback.handle(stored);
+                });
+            }else{
+                store.handle(null);
+            }
+        });
+    }
+
+    private static Bson getOwned( ObjectId fileId, String owner ){
+        return Filters.and(Filters.eq("_id", fileId), Filters.eq("owner", owner));
+    }
+
+    private void releaseUpload( ObjectId fileId ){
+        uploads.updateOne(Filters.eq("_id", fileId), Updates.set("finalizing", false), (result, t) -> {});
+    }
+
+    private void releaseWriter( ObjectId fileId, String writer ){
+        Bson owned = Filters.and(Filters.eq("_id", fileId), Filters.eq("writer", writer));
+        uploads.updateOne(owned, Updates.combine(Updates.unset("writer"), Updates.unset("writerUntil")), (result, t) -> {});
+    }
+
+    private static JsonObject getUploadJSON( Document session ){
+        JsonObject upload = new JsonObject();
+        upload.put("_id", session.getObjectId("_id").toHexString());
+        upload.put("filename", session.getString("filename"));
+        upload.put("length", session.get("length") != null ? getLong(session, "length") : null);
+        upload.put("received", getLong(session, "received"));
+        upload.put("chunkSize", session.getInteger("chunkSize"));
+        upload.put("created", ((Date) session.get("created")).toInstant());
+        upload.put("updated", ((Date) session.get("updated")).toInstant());
+        return upload;
+    }
+
+    /**
+     * Get the id of the chunks of a file, deduplicated files reference the chunks of another file.
+     */
+    @SuppressWarnings("deprecation") // The 3.3 driver only exposes custom fields of the files document as extra elements.
+    private static ObjectId getContentId( GridFSFile file ){
+        Document extra = file.getExtraElements();
+        Object contentId = extra != null ? extra.get("contentId") : null;
+        return contentId instanceof ObjectId ? (ObjectId) contentId : file.getObjectId();
+    }
+
+    private static long getLong( Document document, String key ){
+        Object value = document.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+
+    private void invalidateCached( ObjectId objectId ){
+        AppFileCache fileCache = AppFileCache.getInstance();
+        if(fileCache != null){
+            fileCache.invalidate(objectId.toHexString());
+        }
+    }
+
+    private static <T> SingleResultCallback<T> onContext( Context context, Handler<AsyncResult<T>> handler ){
+        return (result, t) -> context.runOnContext(v -> handler.handle(t == null ? Future.succeededFuture(result) : Future.failedFuture(t)));
+    }
+
+    private GridFSUploadOptions getUploadOptions( JsonObject metadata ){
+        GridFSUploadOptions options = new GridFSUploadOptions();
+        if(metadata != null){
+            options.metadata(Document.parse(metadata.encode()));
+        }
+        if(chunkSize != null){
+            options.chunkSizeBytes(chunkSize);
+        }
+        return options;
+    }
+
+
+    /**
+     * Thrown if a streamed upload exceeds its maximum size.
+     */
+    public static class SizeLimitExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public SizeLimitExceededException( long maxSize ){
+            super("Upload exceeds the maximum size of " + maxSize + " bytes.");
+        }
+    }
+
+
+    /**
+     * Reads the chunks of a byte range and writes them to a WriteStream, with drain based backpressure.
+     * The driver completes reads on its own threads, all state is changed on the context of the download.
+     */
+    public static class StreamDownload {
+        private final Context context;
+        private final ObjectId fileId;
+        private final int chunkSize;
+        private final long length;
+        private final long start;
+        private final long end;
+        private final WriteStream<Buffer> target;
+        private final Handler<AsyncResult<Long>> callback;
+        private AsyncBatchCursor<Document> cursor;
+        private int expectedChunk;
+        private long written = 0;
+        private boolean finished = false;
+
+        private StreamDownload( Context context, ObjectId fileId, int chunkSize, long length, long start, long end, WriteStream<Buffer> target, Handler<AsyncResult<Long>> callback ){
+            this.context = context;
+            this.fileId = fileId;
+            this.chunkSize = chunkSize;
+            this.length = length;
+            this.start = start;
+            this.end = end;
+            this.target = target;
+            this.callback = callback;
+        }
+
+        /**
+         * Stop reading, e.g. because the connection was closed. The callback is called with a failure.
+         */
+        public void cancel(){
+            if(Vertx.currentContext() == context){
+                fail(new IllegalStateException("Download cancelled."));
+            }else{
+                context.runOnContext(v -> fail(new IllegalStateException("Download cancelled.")));
+            }
+        }
+
+        private void start( MongoCollection<Document> chunks ){
+            if(start > end || end >= length){
+                finish();
+                return;
+            }
+            int firstChunk = (int) (start / chunkSize);
+            int lastChunk = (int) (end / chunkSize);
+            expectedChunk = firstChunk;
+            chunks.find(Filters.and(Filters.eq("files_id", fileId), Filters.gte("n", firstChunk), Filters.lte("n", lastChunk)))
+                    .sort(Sorts.ascending("n"))
+                    .batchSize(DOWNLOAD_BATCH_SIZE)
+                    .batchCursor((batchCursor, t) -> context.runOnContext(v -> {
+                        if(t != null){
+                            fail(t);
+                        }else{
+                            cursor = batchCursor;
+                            if(finished){
+                                cursor.close();
+                            }else{
+                                read();
+                            }
+                        }
+                    }));
+        }
+
+        private void read(){
+            if(finished){
+                return;
+            }
+            cursor.next((batch, t) -> context.runOnContext(v -> {
+                if(finished){
+                    return;
+                }
+                if(t != null){
+                    fail(t);
+                }else if(batch == null || batch.isEmpty()){
+                    finish();
+                }else if(write(batch)){
+                    if(target.writeQueueFull()){
+                        target.drainHandler(drained -> read());
+                    }else{
+                        read();
+                    }
+                }
+            }));
+        }
+
+        private boolean write( List<Document> batch ){
+            for(Document chunk : batch){
+                Integer n = chunk.getInteger("n");
+                Binary data = (Binary) chunk.get("data");
+                if(n == null || n != expectedChunk || data == null){
+                    fail(new IllegalStateException("Chunk " + expectedChunk + " of file " + fileId + " is missing."));
+                    return false;
+                }
+                expectedChunk++;
+                long chunkStart = (long) n * chunkSize;
+                byte[] bytes = data.getData();
+                int from = (int) Math.max(start - chunkStart, 0);
+                int to = (int) Math.min(end - chunkStart + 1, bytes.length);
+                if(to > from){
+                    target.write(Buffer.buffer(bytes).slice(from, to));
+                    written += to - from;
+                }
+            }
+            return true;
+        }
+
+        private void finish(){
+            if(finished){
+                return;
+            }
+            finished = true;
+            closeCursor();
+            long expected = Math.max(end - start + 1, 0);
+            if(written == expected || start > end){
+                callback.handle(Future.succeededFuture(written));
+            }else{
+                callback.handle(Future.failedFuture(new IllegalStateException("File " + fileId + " is incomplete.")));
+            }
+        }
+
+        private void fail( Throwable cause ){
+            if(finished){
+                return;
+            }
+            finished = true;
+            closeCursor();
+            callback.handle(Future.failedFuture(cause));
+        }
+
+        private void closeCursor(){
+            if(cursor != null && !cursor.isClosed()){
+                cursor.close();
+            }
+        }
+    }
+
+
+    /**
+     * Thrown if the hash of an upload does not match the expected hash.
+     */
+    public static class HashMismatchException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public HashMismatchException(){
+            super("The SHA-256 hash of the upload does not match the expected hash.");
+        }
+    }
+
+
+    /**
+     * Thrown if a write to a resumable upload does not start at its received bytes or the upload is finalizing.
+     */
+    public static class UploadConflictException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final long received;
+
+        public UploadConflictException( long received ){
+            super("The upload has received " + received + " bytes.");
+            this.received = received;
+        }
+
+        public long getReceived(){
+            return received;
+        }
+    }
+
+
+    /**
+     * Writes the buffers of a ReadStream to the chunks of a resumable upload session. Complete chunks are written
+     * as soon as they are filled, the incomplete last chunk at the end of the stream. The received bytes of the session
+     * are updated after every chunk, only while the writer token is still owned. The lease of the token is renewed
+     * with every update and before a chunk is written if it is about to expire, the token is released at the end.
+     */
+    private class ChunkWriter {
+        private final Context context;
+        private final Document session;
+        private final ObjectId fileId;
+        private final String writer;
+        private final int chunkSize;
+        private final ReadStream<Buffer> source;
+        private final long limit;
+        private final Handler<AsyncResult<JsonObject>> callback;
+        private final ArrayDeque<PendingChunk> pending = new ArrayDeque<>();
+        private Buffer current;
+        private int chunk;
+        private long received;
+        private long total;
+        private long leaseUntil;
+        private boolean writing = false;
+        private boolean ended = false;
+        private boolean finished = false;
+        private Throwable failure;
+
+        private ChunkWriter( Context context, Document session, String writer, long claimed, Buffer current, ReadStream<Buffer> source, long limit, Handler<AsyncResult<JsonObject>> callback ){
+            this.context = context;
+            this.session = session;
+            this.fileId = session.getObjectId("_id");
+            this.writer = writer;
+            this.leaseUntil = claimed + WRITER_LEASE_MS;
+            this.chunkSize = session.getInteger("chunkSize");
+            this.current = current;
+            this.source = source;
+            this.limit = limit;
+            this.callback = callback;
+            this.received = getLong(session, "received");
+            this.chunk = (int) (received / chunkSize);
+            this.total = received;
+        }
+
+        private void start(){
+            source.exceptionHandler(this::fail);
+            source.endHandler(v -> {
+                ended = true;
+                next();
+            });
+            source.handler(data -> {
+                if(failure != null){
+                    return;
+                }
+                total += data.length();
+                if(limit > 0 && total > limit){
+                    fail(new SizeLimitExceededException(limit));
+                    return;
+                }
+                current.appendBuffer(data);
+                while(current.length() >= chunkSize){
+                    pending.add(new PendingChunk(chunk, current.getBytes(0, chunkSize), (long) (chunk + 1) * chunkSize));
+                    current = current.getBuffer(chunkSize, current.length());
+                    chunk++;
+                }
+                if(!pending.isEmpty()){
+                    source.pause();
+                    next();
+                }
+            });
+            source.resume();
+        }
+
+        private void next(){
+            if(writing || finished || failure != null){
+                return;
+            }
+            PendingChunk data = pending.poll();
+            if(data == null && ended && total > received){
+                data = new PendingChunk(chunk, current.getBytes(), total);
+            }
+            if(data != null){
+                write(data);
+            }else if(ended){
+                finished = true;
+                releaseWriter(fileId, writer);
+                session.put("received", received);
+                callback.handle(Future.succeededFuture(getUploadJSON(session)));
+            }else{
+                source.resume();
+            }
+        }
+
+        private void write( PendingChunk data ){
+            writing = true;
+            if(System.currentTimeMillis() < leaseUntil - WRITER_LEASE_MARGIN_MS){
+                writeChunk(data);
+                return;
+            }
+            // The chunk is only written while the lease is valid, otherwise another writer could have claimed the session.
+            long renewed = System.currentTimeMillis();
+            uploads.updateOne(getOwned(), getRenewal(renewed), onContext(context, updated -> {
+                if(updated.failed() || updated.result().getMatchedCount() == 0){
+                    written(updated.failed() ? updated.cause() : new UploadConflictException(received), received);
+                    return;
+                }
+                leaseUntil = renewed + WRITER_LEASE_MS;
+                writeChunk(data);
+            }));
+        }
+
+        private void writeChunk( PendingChunk data ){
+            long written = data.received;
+            Bson filter = Filters.and(Filters.eq("files_id", fileId), Filters.eq("n", data.n));
+            Document chunkDocument = new Document("files_id", fileId).append("n", data.n).append("data", new Binary(data.data));
+            chunks.replaceOne(filter, chunkDocument, new UpdateOptions().upsert(true), onContext(context, replaced -> {
+                if(replaced.failed()){
+                    written(replaced.cause(), written);
+                    return;
+                }
+                long renewed = System.currentTimeMillis();
+                uploads.updateOne(getOwned(), Updates.combine(Updates.set("received", written), getRenewal(renewed)), onContext(context, updated -> {
+                    if(updated.succeeded() && updated.result().getMatchedCount() == 0){
+                        written(new UploadConflictException(received), written);
+                    }else{
+                        if(updated.succeeded()){
+                            leaseUntil = renewed + WRITER_LEASE_MS;
+                            session.put("updated", new Date(renewed));
+                        }
+                        written(updated.failed() ? updated.cause() : null, written);
+                    }
+                }));
+            }));
+        }
+
+        private Bson getOwned(){
+            return Filters.and(Filters.eq("_id", fileId), Filters.eq("writer", writer), Filters.eq("received", received));
+        }
+
+        private Bson getRenewal( long renewed ){
+            return Updates.combine(Updates.set("writerUntil", new Date(renewed + WRITER_LEASE_MS)), Updates.set("updated", new Date(renewed)));
+        }
+
+        private void written( Throwable error, long written ){
+            writing = false;
+            if(error != null && failure == null){
+                failure = error;
+            }
+            if(failure != null){
+                finished = true;
+                releaseWriter(fileId, writer);
+                callback.handle(Future.failedFuture(failure));
+                return;
+            }
+            received = written;
+            next();
+        }
+
+        private void fail( Throwable cause ){
+            if(failure != null || finished){
+                return;
+            }
+            failure = cause;
+            pending.clear();
+            // The rest of the source is discarded.
+            source.resume();
+            if(!writing){
+                finished = true;
+                releaseWriter(fileId, writer);
+                callback.handle(Future.failedFuture(failure));
+            }
+        }
+    }
+
+
+    /**
+     * Content of a chunk and the received bytes of the session after it is written.
+     */
+    private static class PendingChunk {
+        private final int n;
+        private final byte[] data;
+        private final long received;
+
+        private PendingChunk( int n, byte[] data, long received ){
+            this.n = n;
+            this.data = data;
+            this.received = received;
+        }
+    }
+
+
+    /**
+     * Collects the written data in a Buffer.
+     */
+    private static class BufferStream implements WriteStream<Buffer> {
+        private final Buffer buffer = Buffer.buffer();
+
+        @Override
+        public BufferStream exceptionHandler( Handler<Throwable> handler ){
+            return this;
+        }
+
+        @Override
+        public BufferStream write( Buffer data ){
+            buffer.appendBuffer(data);
+            return this;
+        }
+
+        @Override
+        public void end(){
+        }
+
+        @Override
+        public void end( Buffer data ){
+            write(data);
+        }
+
+        @Override
+        public BufferStream setWriteQueueMaxSize( int maxSize ){
+            return this;
+        }
+
+        @Override
+        public boolean writeQueueFull(){
+            return false;
+        }
+
+        @Override
+        public BufferStream drainHandler( Handler<Void> handler ){
+            return this;
+        }
+    }
+
 
+    /**
+     * Calculates the md5 and SHA-256 hash of the written data.
+     */
+    private static class DigestStream implements WriteStream<Buffer> {
+        private final MessageDigest md5 = AppHashing.getDigest("MD5");
+        private final MessageDigest sha256 = AppHashing.getDigest("SHA-256");
+
+        @Override
+        public DigestStream exceptionHandler( Handler<Throwable> handler ){
+            return this;
+        }
+
+        @Override
+        public DigestStream write( Buffer data ){
+            byte[] bytes = data.getBytes();
+            md5.update(bytes);
+            sha256.update(bytes);
+            return this;
+        }
+
+        @Override
+        public void end(){
+        }
+
+        @Override
+        public void end( Buffer data ){
+            write(data);
+        }
+
+        @Override
+        public DigestStream setWriteQueueMaxSize( int maxSize ){
+            return this;
+        }
+
+        @Override
+        public boolean writeQueueFull(){
+            return false;
+        }
+
+        @Override
+        public DigestStream drainHandler( Handler<Void> handler ){
+            return this;
+        }
+    }
+
+
+    /**
+     * Writes the buffers of a ReadStream to a GridFSUploadStream, one write at a time, and hashes them with SHA-256 and md5.
+     * Without a GridFSUploadStream the content is only hashed. The stream is not closed, the caller decides
+     * if the content is kept or aborted when the hash is known. Failed uploads are aborted.
+     * The driver completes writes on its own threads, all state is changed on the context of the upload.
+     */
+    private static class StreamUpload {
+        private final Context context;
+        private final GridFSUploadStream stream;
+        private final ReadStream<Buffer> source;
+        private final long maxSize;
+        private final MessageDigest digest = AppHashing.getDigest("SHA-256");
+        private final MessageDigest md5 = AppHashing.getDigest("MD5");
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        private Handler<AsyncResult<String>> callback;
+        private long length = 0;
+        private String md5Hex;
+        private boolean writing = false;
+        private boolean ended = false;
+        private boolean finished = false;
+        private Throwable failure;
+
+        private StreamUpload( Context context, GridFSUploadStream stream, ReadStream<Buffer> source, long maxSize ){
+            this.context = context;
+            this.stream = stream;
+            this.source = source;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Start reading the source.
+         * @param callback Handler with the hex SHA-256 hash of the content, when all data is written.
+         */
+        private void start( Handler<AsyncResult<String>> callback ){
+            this.callback = callback;
+            source.exceptionHandler(this::fail);
+            source.endHandler(v -> {
+                ended = true;
+                next();
+            });
+            source.handler(data -> {
+                if(failure != null){
+                    return;
+                }
+                length += data.length();
+                if(maxSize > 0 && length > maxSize){
+                    fail(new SizeLimitExceededException(maxSize));
+                    return;
+                }
+                byte[] bytes = data.getBytes();
+                digest.update(bytes);
+                md5.update(bytes);
+                if(stream == null){
+                    return;
+                }
+                // Already paused streams may deliver buffered data, it is queued until the current write is done.
+                pending.add(bytes);
+                source.pause();
+                next();
+            });
+            source.resume();
+        }
+
+        private void next(){
+            if(writing || finished || failure != null){
+                return;
+            }
+            byte[] data = pending.poll();
+            if(data != null){
+                writing = true;
+                stream.write(ByteBuffer.wrap(data), (written, writeError) -> context.runOnContext(v -> {
+                    writing = false;
+                    if(writeError != null && failure == null){
+                        failure = writeError;
+                    }
+                    if(failure != null){
+                        abort();
+                    }else{
+                        next();
+                    }
+                }));
+            }else if(ended){
+                finished = true;
+                md5Hex = AppHashing.getHashHex(md5);
+                callback.handle(Future.succeededFuture(AppHashing.getHashHex(digest)));
+            }else{
+                source.resume();
+            }
+        }
+
+        private void fail( Throwable cause ){
+            if(failure != null || finished){
+                return;
+            }
+            failure = cause;
+            pending.clear();
+            // The rest of the source is discarded.
+            source.resume();
+            if(!writing){
+                abort();
+            }
+        }
+
+        private void abort(){
+            if(finished){
+                return;
+            }
+            finished = true;
+            if(stream == null){
+                callback.handle(Future.failedFuture(failure));
+                return;
+            }
+            stream.abort((result, abortError) -> context.runOnContext(v -> callback.handle(Future.failedFuture(failure))));
+        }
+    }
 
 
 
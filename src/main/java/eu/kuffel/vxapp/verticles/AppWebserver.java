@@ -4,8 +4,18 @@ import com.mongodb.client.model.Filters;
 import eu.kuffel.vxapp.handlers.*;
 import eu.kuffel.vxapp.routers.AppClientRouter;
 import eu.kuffel.vxapp.routers.AppEntityRouter;
+import eu.kuffel.vxapp.routers.AppFileRouter;
 import eu.kuffel.vxapp.routers.AppUserRouter;
+import eu.kuffel.vxapp.utils.AppClientCache;
+import eu.kuffel.vxapp.utils.AppCountCache;
+import eu.kuffel.vxapp.utils.AppDBOCache;
+import eu.kuffel.vxapp.utils.AppFileCache;
+import eu.kuffel.vxapp.utils.AppHashingService;
+import eu.kuffel.vxapp.utils.AppUserCache;
+import eu.kuffel.vxapp.utils.AppClientToken;
 import eu.kuffel.vxapp.utils.AppJsonMessages;
+import eu.kuffel.vxapp.utils.AppMetrics;
+import eu.kuffel.vxapp.utils.AppSingleFlight;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.http.*;
 import io.vertx.core.json.JsonObject;
@@ -14,6 +24,8 @@ import io.vertx.ext.web.Router;
 import io.vertx.ext.web.handler.*;
 import org.bson.conversions.Bson;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.Date;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
@@ -61,16 +73,29 @@ public class AppWebserver extends AbstractVerticle {
         router = Router.router(vertx);
 
         // Configure and add default middleware handlers.
+        // Streamed uploads skip the BodyHandler, they are paused until their route reads them. Streamed uploads and downloads skip the request timeout.
         int postlimit = webserverConfig.getInteger("postlimit",0);
-        if(postlimit > 0){
-            router.route().handler(BodyHandler.create().setBodyLimit(postlimit));
-        }else{
-            router.route().handler(BodyHandler.create());
-        }
+        BodyHandler bodyHandler = postlimit > 0 ? BodyHandler.create().setBodyLimit(postlimit) : BodyHandler.create();
+        router.route().handler(rc -> {
+            if(AppFileRouter.isStreamingUpload(rc.request())){
+                rc.request().pause();
+                rc.addBodyEndHandler(v -> rc.request().resume());
+                rc.next();
+            }else{
+                bodyHandler.handle(rc);
+            }
+        });
         router.route().handler(CookieHandler.create());
         int timeout = webserverConfig.getInteger("timeout",0);
         if(timeout > 0){
-            router.route().handler(TimeoutHandler.create(timeout));
+            TimeoutHandler timeoutHandler = TimeoutHandler.create(timeout);
+            router.route().handler(rc -> {
+                if(AppFileRouter.isStreaming(rc.request())){
+                    rc.next();
+                }else{
+                    timeoutHandler.handle(rc);
+                }
+            });
         }
 
         router.route().handler(ResponseTimeHandler.create());
@@ -96,14 +121,18 @@ public class AppWebserver extends AbstractVerticle {
         // Require x-api-key for all routers
         router.route("/api/*").handler(AppApiKeyHandler.create(webserverConfig.getString("apikey",null)));
 
-        // Require x-api-client-key for all routers
+        // Require x-api-client-key for all routers, clients are cached and counters are written back periodically
+        AppClientCache.create(vertx, webserverConfig.getJsonObject("clientcache", new JsonObject()));
+        AppClientToken.init(vertx, config().getJsonObject("application", new JsonObject()).getString("secret"), webserverConfig.getJsonObject("clienttokens", null));
         router.route("/api/*").handler(AppClientKeyHandler.create());
 
         // Loads the current user into the context (if client is authenticated)
+        AppHashingService.init(vertx, webserverConfig.getJsonObject("hashing", new JsonObject()));
+        AppUserCache.create(vertx, webserverConfig.getJsonObject("usercache", new JsonObject()));
         router.route("/api/*").handler(AppUserHandler.create());
 
         // Watches requests rates and limits them if a client exceeds them.
-        router.route("/api/*").handler(AppRateLimitHandler.create());
+        router.route("/api/*").handler(AppRateLimitHandler.create(vertx, webserverConfig.getJsonObject("ratelimit", new JsonObject())));
 
 
         // Mount subrouters....
@@ -115,13 +144,34 @@ public class AppWebserver extends AbstractVerticle {
         router.mountSubRouter("/api", AppUserRouter.router(vertx));
 
         // /api/entities
-        router.mountSubRouter("/api", AppEntityRouter.router(vertx));
+        AppCountCache.create(vertx, webserverConfig.getJsonObject("countcache", new JsonObject()));
+        AppDBOCache.create(vertx, webserverConfig.getJsonObject("dbocache", new JsonObject()));
+        AppSingleFlight.init(webserverConfig.getJsonObject("coalescing", new JsonObject()));
+        router.mountSubRouter("/api", AppEntityRouter.router(vertx, webserverConfig.getJsonObject("bulk", new JsonObject())));
+
+        // /api/files
+        AppFileCache.create(vertx, config().getJsonObject("filesystem", new JsonObject()).getJsonObject("filecache", new JsonObject()));
+        router.mountSubRouter("/api", AppFileRouter.router(vertx, webserverConfig.getJsonObject("files", new JsonObject())));
 
 
 
 
         router.route("/api/debug").handler(AppDevelopHandler.create());
 
+        // Metrics expose cache keys and load of all clients, they need the admin key in addition to the api key.
+        // Without an admin key the endpoint is disabled.
+        String metricsKey = webserverConfig.getJsonObject("metrics", new JsonObject()).getString("adminkey", null);
+        router.get("/api/metrics").handler( rc -> {
+            String adminKeyHeader = rc.request().getHeader("x-admin-key");
+            if(metricsKey == null){
+                AppJsonMessages.sendMessage(rc, AppJsonMessages.NOT_FOUND);
+            }else if(adminKeyHeader == null || !MessageDigest.isEqual(adminKeyHeader.getBytes(StandardCharsets.UTF_8), metricsKey.getBytes(StandardCharsets.UTF_8))){
+                AppJsonMessages.sendMessage(rc, AppJsonMessages.ACCESS_DENIED);
+            }else{
+                rc.response().end(AppMetrics.getJSON().encode());
+            }
+        });
+
         router.route("/api/develop").handler( rc -> {
 
 
@@ -130,9 +180,7 @@ public class AppWebserver extends AbstractVerticle {
 
             /*
             AppEntity e = new AppEntity();
-            e.getTags().add("A");
-            e.getTags().add("B");
-            e.getTags().add("C");
+            e.setTags(Arrays.asList("A", "B", "C"));
             e.setNested( new JsonObject().put("key1","A").put("key2","B"));
             e.save(saved->{
                 //rc.response().write(saved.getJSON().encode()).end();
@@ -0,0 +1,71 @@
+package eu.kuffel.vxapp.handlers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the GCRA arithmetic, the period is long enough that the test run does not refill the bucket.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppGcraRateLimiterTest {
+
+    private static final long PERIOD = 60000;
+
+    @Test
+    public void allowsBurstUpToLimit(){
+        AppGcraRateLimiter limiter = new AppGcraRateLimiter();
+        for(int i = 0; i < 5; i++){
+            AppRateLimiter.Result result = acquire(limiter, "a", 5);
+            assertTrue(result.isAllowed());
+            assertEquals(5, result.getLimit());
+            assertEquals(4 - i, result.getRemaining());
+        }
+        AppRateLimiter.Result rejected = acquire(limiter, "a", 5);
+        assertFalse(rejected.isAllowed());
+        assertEquals(0, rejected.getRemaining());
+    }
+
+    @Test
+    public void resetIsTimeUntilNextRequest(){
+        AppGcraRateLimiter limiter = new AppGcraRateLimiter();
+        AppRateLimiter.Result first = acquire(limiter, "a", 5);
+        assertTrue(first.getReset() > PERIOD / 5 - 1000 && first.getReset() <= PERIOD / 5);
+        for(int i = 1; i < 5; i++){
+            acquire(limiter, "a", 5);
+        }
+        AppRateLimiter.Result rejected = acquire(limiter, "a", 5);
+        assertTrue(rejected.getReset() > PERIOD - 1000 && rejected.getReset() <= PERIOD);
+    }
+
+    @Test
+    public void keysAreIndependent(){
+        AppGcraRateLimiter limiter = new AppGcraRateLimiter();
+        acquire(limiter, "a", 1);
+        assertFalse(acquire(limiter, "a", 1).isAllowed());
+        assertTrue(acquire(limiter, "b", 1).isAllowed());
+    }
+
+    @Test
+    public void cleanupKeepsActiveKeys(){
+        AppGcraRateLimiter limiter = new AppGcraRateLimiter();
+        acquire(limiter, "a", 1);
+        limiter.cleanup();
+        assertFalse(acquire(limiter, "a", 1).isAllowed());
+    }
+
+    private static AppRateLimiter.Result acquire( AppRateLimiter limiter, String key, int limit ){
+        List<AppRateLimiter.Result> results = new ArrayList<>();
+        limiter.acquire(key, limit, PERIOD, results::add);
+        assertEquals(1, results.size());
+        return results.get(0);
+    }
+
+}
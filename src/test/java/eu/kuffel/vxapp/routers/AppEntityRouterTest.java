@@ -0,0 +1,45 @@
+package eu.kuffel.vxapp.routers;
+
+import com.mongodb.MongoClient;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the translation of entity patches into update operators.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppEntityRouterTest {
+
+    @Test
+    public void patchSetsKnownFields(){
+        JsonObject patch = new JsonObject().put("title", "t").put("tags", new JsonArray().add("a").add("b"));
+        assertEquals(BsonDocument.parse("{ \"$inc\" : { \"version\" : 1 }, \"$set\" : { \"title\" : \"t\", \"tags\" : [\"a\", \"b\"] } }"),
+                toBson(AppEntityRouter.createPatchUpdate(patch)));
+    }
+
+    @Test
+    public void patchUnsetsNullFields(){
+        JsonObject patch = new JsonObject().put("title", "t").putNull("body");
+        assertEquals(BsonDocument.parse("{ \"$inc\" : { \"version\" : 1 }, \"$set\" : { \"title\" : \"t\" }, \"$unset\" : { \"body\" : \"\" } }"),
+                toBson(AppEntityRouter.createPatchUpdate(patch)));
+    }
+
+    @Test
+    public void patchSkipsIdVersionAndUnknownFields(){
+        JsonObject patch = new JsonObject().put("_id", "x").put("version", 7).put("unknown", 1).putNull("other");
+        assertEquals(BsonDocument.parse("{ \"$inc\" : { \"version\" : 1 } }"),
+                toBson(AppEntityRouter.createPatchUpdate(patch)));
+    }
+
+    private static BsonDocument toBson( Bson update ){
+        return update.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+    }
+
+}
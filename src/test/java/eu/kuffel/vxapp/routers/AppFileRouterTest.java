@@ -0,0 +1,60 @@
+package eu.kuffel.vxapp.routers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the Range and If-None-Match header handling of file downloads.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppFileRouterTest {
+
+    @Test
+    public void parseRangeWithStartAndEnd(){
+        assertArrayEquals(new long[]{0, 499}, AppFileRouter.parseRange("bytes=0-499", 1000));
+        assertArrayEquals(new long[]{500, 999}, AppFileRouter.parseRange(" bytes=500-999 ", 1000));
+        assertArrayEquals(new long[]{500, 999}, AppFileRouter.parseRange("bytes=500-5000", 1000));
+    }
+
+    @Test
+    public void parseRangeOpenEnd(){
+        assertArrayEquals(new long[]{500, 999}, AppFileRouter.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[]{999, 999}, AppFileRouter.parseRange("bytes=999-", 1000));
+    }
+
+    @Test
+    public void parseRangeSuffix(){
+        assertArrayEquals(new long[]{500, 999}, AppFileRouter.parseRange("bytes=-500", 1000));
+        assertArrayEquals(new long[]{0, 999}, AppFileRouter.parseRange("bytes=-5000", 1000));
+    }
+
+    @Test
+    public void parseRangeRejectsInvalidRanges(){
+        assertNull(AppFileRouter.parseRange("bytes=1000-", 1000));
+        assertNull(AppFileRouter.parseRange("bytes=500-100", 1000));
+        assertNull(AppFileRouter.parseRange("bytes=-0", 1000));
+        assertNull(AppFileRouter.parseRange("bytes=0-10,20-30", 1000));
+        assertNull(AppFileRouter.parseRange("bytes=a-b", 1000));
+        assertNull(AppFileRouter.parseRange("bytes=100", 1000));
+        assertNull(AppFileRouter.parseRange("items=0-10", 1000));
+        assertNull(AppFileRouter.parseRange("bytes=0-", 0));
+    }
+
+    @Test
+    public void matchesETag(){
+        assertTrue(AppFileRouter.matchesETag("\"abc\"", "\"abc\""));
+        assertTrue(AppFileRouter.matchesETag("W/\"abc\"", "\"abc\""));
+        assertTrue(AppFileRouter.matchesETag("\"xyz\", \"abc\"", "\"abc\""));
+        assertTrue(AppFileRouter.matchesETag("*", "\"abc\""));
+        assertFalse(AppFileRouter.matchesETag("\"xyz\"", "\"abc\""));
+        assertFalse(AppFileRouter.matchesETag("abc", "\"abc\""));
+        assertFalse(AppFileRouter.matchesETag(null, "\"abc\""));
+    }
+
+}
@@ -0,0 +1,49 @@
+package eu.kuffel.vxapp.utils;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Tests for the query normalization of the count cache keys.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppCountCacheTest {
+
+    @Test
+    public void normalizeSortsKeys(){
+        JsonObject a = new JsonObject().put("type", "note").put("author", "x");
+        JsonObject b = new JsonObject().put("author", "x").put("type", "note");
+        assertEquals(AppCountCache.normalize(a), AppCountCache.normalize(b));
+        assertEquals("{\"author\":\"x\",\"type\":\"note\"}", AppCountCache.normalize(a));
+    }
+
+    @Test
+    public void normalizeSortsNestedKeys(){
+        JsonObject a = new JsonObject().put("$or", new JsonArray()
+                .add(new JsonObject().put("b", 1).put("a", new JsonObject().put("y", true).put("x", false))));
+        JsonObject b = new JsonObject().put("$or", new JsonArray()
+                .add(new JsonObject().put("a", new JsonObject().put("x", false).put("y", true)).put("b", 1)));
+        assertEquals(AppCountCache.normalize(a), AppCountCache.normalize(b));
+        assertEquals("{\"$or\":[{\"a\":{\"x\":false,\"y\":true},\"b\":1}]}", AppCountCache.normalize(a));
+    }
+
+    @Test
+    public void normalizeKeepsArrayOrder(){
+        assertNotEquals(AppCountCache.normalize(new JsonObject().put("tags", new JsonArray().add("a").add("b"))),
+                AppCountCache.normalize(new JsonObject().put("tags", new JsonArray().add("b").add("a"))));
+    }
+
+    @Test
+    public void normalizeDistinguishesValues(){
+        assertNotEquals(AppCountCache.normalize(new JsonObject().put("version", 1)),
+                AppCountCache.normalize(new JsonObject().put("version", "1")));
+        assertEquals("{\"deleted\":null}", AppCountCache.normalize(new JsonObject().putNull("deleted")));
+    }
+
+}
@@ -0,0 +1,86 @@
+package eu.kuffel.vxapp.utils;
+
+import com.mongodb.MongoClient;
+import io.vertx.core.json.JsonObject;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for the keyset pagination cursor.
+ *
+ * @author akuffel
+ * @version 1.0.0
+ */
+public class AppPageCursorTest {
+
+    @Test
+    public void getUniqueSortAppendsIdWithLastDirection(){
+        JsonObject sort = AppPageCursor.getUniqueSort(new JsonObject().put("created", -1));
+        assertEquals(new JsonObject().put("created", -1).put("_id", -1), sort);
+        assertEquals(new JsonObject().put("_id", 1), AppPageCursor.getUniqueSort(null));
+    }
+
+    @Test
+    public void filterAscending(){
+        JsonObject sort = AppPageCursor.getUniqueSort(new JsonObject().put("title", 1));
+        String cursor = AppPageCursor.encode(sort, new JsonObject().put("title", "b").put("_id", "2"));
+        assertEquals(parse("{ \"$or\" : [ { \"title\" : { \"$gt\" : \"b\" } }, { \"title\" : \"b\", \"_id\" : { \"$gt\" : \"2\" } } ] }"),
+                toBson(AppPageCursor.decode(cursor, sort).getFilter()));
+    }
+
+    @Test
+    public void filterDescendingIncludesNull(){
+        JsonObject sort = AppPageCursor.getUniqueSort(new JsonObject().put("title", -1));
+        String cursor = AppPageCursor.encode(sort, new JsonObject().put("title", "b").put("_id", "2"));
+        assertEquals(parse("{ \"$or\" : [ { \"$or\" : [ { \"title\" : { \"$lt\" : \"b\" } }, { \"title\" : null } ] }, "
+                        + "{ \"title\" : \"b\", \"$or\" : [ { \"_id\" : { \"$lt\" : \"2\" } }, { \"_id\" : null } ] } ] }"),
+                toBson(AppPageCursor.decode(cursor, sort).getFilter()));
+    }
+
+    @Test
+    public void filterAscendingAfterNull(){
+        JsonObject sort = AppPageCursor.getUniqueSort(new JsonObject().put("title", 1));
+        String cursor = AppPageCursor.encode(sort, new JsonObject().put("_id", "2"));
+        assertEquals(parse("{ \"$or\" : [ { \"title\" : { \"$ne\" : null } }, { \"title\" : null, \"_id\" : { \"$gt\" : \"2\" } } ] }"),
+                toBson(AppPageCursor.decode(cursor, sort).getFilter()));
+    }
+
+    @Test
+    public void filterDescendingAfterNull(){
+        JsonObject sort = AppPageCursor.getUniqueSort(new JsonObject().put("title", -1));
+        String cursor = AppPageCursor.encode(sort, new JsonObject().put("_id", "2"));
+        assertEquals(parse("{ \"title\" : null, \"$or\" : [ { \"_id\" : { \"$lt\" : \"2\" } }, { \"_id\" : null } ] }"),
+                toBson(AppPageCursor.decode(cursor, sort).getFilter()));
+    }
+
+    @Test
+    public void decodeRejectsOtherSort(){
+        JsonObject sort = AppPageCursor.getUniqueSort(new JsonObject().put("title", 1));
+        String cursor = AppPageCursor.encode(sort, new JsonObject().put("title", "b").put("_id", "2"));
+        assertNotNull(AppPageCursor.decode(cursor, sort));
+        assertNull(AppPageCursor.decode(cursor, AppPageCursor.getUniqueSort(new JsonObject().put("title", -1))));
+        assertNull(AppPageCursor.decode(cursor, AppPageCursor.getUniqueSort(new JsonObject().put("created", 1))));
+    }
+
+    @Test
+    public void decodeRejectsInvalidCursor(){
+        JsonObject sort = AppPageCursor.getUniqueSort(null);
+        assertNull(AppPageCursor.decode("not a cursor!", sort));
+        assertNull(AppPageCursor.decode("bm90IGpzb24", sort));
+        assertNull(AppPageCursor.decode("eyJzb3J0IjoxfQ", sort));
+    }
+
+    private static BsonDocument toBson( Bson filter ){
+        return filter.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+    }
+
+    private static BsonDocument parse( String json ){
+        return BsonDocument.parse(json);
+    }
+
+}